@@ -1,27 +1,45 @@
 DROP TABLE IF EXISTS Reservations;
 DROP TABLE IF EXISTS Users;
+DROP TABLE IF EXISTS ItineraryLegs;
 DROP TABLE IF EXISTS Itineraries;
 DROP TABLE IF EXISTS Capacities;
+DROP TABLE IF EXISTS Outbox;
+DROP TABLE IF EXISTS OutboxOffsets;
+DROP TABLE IF EXISTS Connections;
+DROP TABLE IF EXISTS ConnectionRoutes;
 
 CREATE TABLE Users (
     username VARCHAR(20) PRIMARY KEY,
     password VARBINARY(20),
     balance int,
     salt VARBINARY(20),
+    version int NOT NULL DEFAULT 0,
 );
 
 
 CREATE TABLE Itineraries (
-    it_id int PRIMARY KEY,
+    it_id bigint PRIMARY KEY,
     price int,
     first_flight_id int,
     second_flight_id int,
 );
 
 
+-- every leg of itineraries with more than two legs, whose it_id is a hash of their fids (probed past
+-- collisions, so the legs stored here are what an it_id means)
+CREATE TABLE ItineraryLegs (
+    it_id bigint,
+    leg int,
+    fid int,
+    PRIMARY KEY (it_id, leg),
+);
+
+CREATE INDEX ItineraryLegsByFlight ON ItineraryLegs (fid);
+
+
 CREATE TABLE Reservations (
     ID int IDENTITY(1, 1) PRIMARY KEY,
-    itinerary int UNIQUE,
+    itinerary bigint,
     date int,
     FOREIGN KEY (itinerary) REFERENCES Itineraries(it_id),
     username VARCHAR(20) NOT NULL,
@@ -31,6 +49,43 @@ CREATE TABLE Reservations (
 );
 
 CREATE TABLE Capacities (
-    fid int PRIMARY KEY,
+    fid int,
+    bucket int,
     capacity int,
+    PRIMARY KEY (fid, bucket),
+);
+
+CREATE TABLE Outbox (
+    seq bigint IDENTITY(1, 1) PRIMARY KEY,
+    kind VARCHAR(10),
+    username VARCHAR(20),
+    reservation int,
+    itinerary bigint,
+    amount int,
+);
+
+CREATE TABLE OutboxOffsets (
+    subscriber VARCHAR(50) PRIMARY KEY,
+    seq bigint,
+);
+
+-- shortest one-hop itineraries per (day, origin, dest), materialized on first search of the route
+CREATE TABLE Connections (
+    day_of_month int,
+    origin_city VARCHAR(34),
+    dest_city VARCHAR(34),
+    total_time int,
+    fid1 int,
+    fid2 int,
+    PRIMARY KEY (day_of_month, origin_city, dest_city, total_time, fid1, fid2),
+);
+
+CREATE INDEX ConnectionsByDest ON Connections (day_of_month, dest_city);
+
+-- routes whose Connections rows are current
+CREATE TABLE ConnectionRoutes (
+    day_of_month int,
+    origin_city VARCHAR(34),
+    dest_city VARCHAR(34),
+    PRIMARY KEY (day_of_month, origin_city, dest_city),
 );
@@ -0,0 +1,185 @@
+package flightapp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control in front of the command dispatcher. A command is admitted only if its type
+ * has a free in-flight slot, its user's token bucket has a token and the global token bucket has
+ * a token; otherwise it is rejected right away with a retry hint instead of queueing behind the
+ * work that is already running.
+ *
+ * A rate or in-flight limit of 0 means unlimited. All limits can be changed while the service is
+ * running; buckets pick up a new rate on their next refill.
+ */
+public class AdmissionControl {
+  // retry hint when a command type has no free in-flight slot
+  private static final long BUSY_RETRY_MS = 50;
+  // idle user buckets are dropped once there are this many
+  private static final int MAX_IDLE_BUCKETS = 10_000;
+
+  /**
+   * Classic token bucket: {@code rate} tokens per second, holding at most {@code burst}
+   */
+  static class TokenBucket {
+    private double tokens = -1; // filled on first use
+    private long lastRefill;
+
+    /**
+     * @return 0 if a token was taken, otherwise the milliseconds until one is available
+     */
+    synchronized long tryAcquire(double rate, double burst, long now) {
+      if (tokens < 0) {
+        tokens = burst;
+      } else {
+        tokens = Math.min(burst, tokens + (now - lastRefill) / 1e9 * rate);
+      }
+      lastRefill = now;
+      if (tokens >= 1) {
+        tokens--;
+        return 0;
+      }
+      return Math.max(1, (long) Math.ceil((1 - tokens) / rate * 1000));
+    }
+
+    synchronized void refund() {
+      tokens++;
+    }
+
+    synchronized boolean idleSince(long cutoff) {
+      return lastRefill < cutoff;
+    }
+  }
+
+  private volatile double userRate;
+  private volatile double userBurst;
+  private volatile double globalRate;
+  private volatile double globalBurst;
+  private volatile int defaultMaxInFlight;
+
+  private final TokenBucket globalBucket = new TokenBucket();
+  private final Map<String, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+  private final Map<String, Integer> maxInFlight = new ConcurrentHashMap<>();
+  private final Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+
+  public AdmissionControl(double userRate, double userBurst, double globalRate, double globalBurst,
+      int defaultMaxInFlight) {
+    this.userRate = userRate;
+    this.userBurst = userBurst;
+    this.globalRate = globalRate;
+    this.globalBurst = globalBurst;
+    this.defaultMaxInFlight = defaultMaxInFlight;
+  }
+
+  /**
+   * Reads the limits from the flightapp.admission.* system properties, unlimited by default. Bursts
+   * default to one second's worth of tokens.
+   */
+  public static AdmissionControl fromSystemProperties() {
+    double userRate = doubleProperty("flightapp.admission.userRate", 0);
+    double globalRate = doubleProperty("flightapp.admission.globalRate", 0);
+    AdmissionControl admission = new AdmissionControl(userRate,
+        doubleProperty("flightapp.admission.userBurst", userRate), globalRate,
+        doubleProperty("flightapp.admission.globalBurst", globalRate),
+        Integer.getInteger("flightapp.admission.maxInFlight", 0));
+    String prefix = "flightapp.admission.maxInFlight.";
+    for (String name : System.getProperties().stringPropertyNames()) {
+      if (name.startsWith(prefix)) {
+        admission.setMaxInFlight(name.substring(prefix.length()), Integer.getInteger(name));
+      }
+    }
+    return admission;
+  }
+
+  private static double doubleProperty(String name, double defaultValue) {
+    String value = System.getProperty(name);
+    return value == null ? defaultValue : Double.parseDouble(value);
+  }
+
+  /**
+   * Tries to admit a command. An admitted command holds an in-flight slot until {@link #done} is
+   * called with the same command type.
+   *
+   * @param user    key of the user's bucket
+   * @param command command type, e.g. "search"
+   * @return 0 if admitted, otherwise how many milliseconds to wait before retrying
+   */
+  public long tryAdmit(String user, String command) {
+    AtomicInteger running = inFlight.computeIfAbsent(command, c -> new AtomicInteger());
+    int limit = maxInFlight.getOrDefault(command, defaultMaxInFlight);
+    if (running.incrementAndGet() > limit && limit > 0) {
+      running.decrementAndGet();
+      return BUSY_RETRY_MS;
+    }
+
+    long now = System.nanoTime();
+    TokenBucket userBucket = null;
+    double rate = userRate;
+    if (rate > 0) {
+      if (userBuckets.size() > MAX_IDLE_BUCKETS) {
+        evictIdleBuckets(rate, now);
+      }
+      userBucket = userBuckets.computeIfAbsent(user, u -> new TokenBucket());
+      long wait = userBucket.tryAcquire(rate, Math.max(1, userBurst), now);
+      if (wait > 0) {
+        running.decrementAndGet();
+        return wait;
+      }
+    }
+    rate = globalRate;
+    if (rate > 0) {
+      long wait = globalBucket.tryAcquire(rate, Math.max(1, globalBurst), now);
+      if (wait > 0) {
+        if (userBucket != null) {
+          userBucket.refund();
+        }
+        running.decrementAndGet();
+        return wait;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Releases the in-flight slot of an admitted command
+   */
+  public void done(String command) {
+    inFlight.get(command).decrementAndGet();
+  }
+
+  // a bucket idle for burst / rate seconds is full again, so dropping it loses nothing
+  private void evictIdleBuckets(double rate, long now) {
+    long refillNanos = (long) (Math.max(1, userBurst) / rate * 1e9);
+    userBuckets.values().removeIf(bucket -> bucket.idleSince(now - refillNanos));
+  }
+
+  public void setUserRate(double perSecond, double burst) {
+    userRate = perSecond;
+    userBurst = burst;
+  }
+
+  public void setGlobalRate(double perSecond, double burst) {
+    globalRate = perSecond;
+    globalBurst = burst;
+  }
+
+  /**
+   * Sets the in-flight limit of every command type without a limit of its own
+   */
+  public void setDefaultMaxInFlight(int limit) {
+    defaultMaxInFlight = limit;
+  }
+
+  public void setMaxInFlight(String command, int limit) {
+    maxInFlight.put(command, limit);
+  }
+
+  /**
+   * @return the number of admitted commands of this type still running
+   */
+  public int getInFlight(String command) {
+    AtomicInteger running = inFlight.get(command);
+    return running == null ? 0 : running.get();
+  }
+}
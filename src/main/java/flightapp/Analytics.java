@@ -0,0 +1,315 @@
+package flightapp;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Occupancy and revenue over one snapshot of the live reservations.
+ *
+ * Reservations are added one at a time by a single reader, as they stream out of the snapshot,
+ * and aggregated in parallel: every {@link #CHUNK} reservations are handed to a fork-join task
+ * that adds them into one of a few per-worker totals, while the reader goes on reading. At most
+ * two chunks per worker are in flight, so memory stays bounded however many reservations there
+ * are. Flights are indexed densely by fid, so aggregating a leg is two array writes.
+ */
+public class Analytics {
+  static final int CHUNK = 1 << 16;
+
+  private final Flight[] flights;
+  private final int[] indexByFid;
+  private final List<String> cities = new ArrayList<>();
+  private final int[] origins;
+  private final int[] dests;
+  // remaining seats of each flight in Capacities, -1 if its seats were never touched
+  private final int[] remaining;
+
+  private final ForkJoinPool pool;
+  private final Semaphore inFlight;
+  private final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+  private final ConcurrentLinkedQueue<Totals> idle = new ConcurrentLinkedQueue<>();
+  private final List<Totals> allTotals = Collections.synchronizedList(new ArrayList<>());
+  private Chunk chunk = new Chunk();
+  private long skipped = 0;
+
+  /**
+   * Reservations of one chunk as parallel arrays; legs of reservation i are
+   * {@code legs[legStart[i] .. legStart[i + 1])}, as dense flight indexes
+   */
+  private static final class Chunk {
+    int size = 0;
+    final boolean[] paid = new boolean[CHUNK];
+    final int[] price = new int[CHUNK];
+    final int[] legStart = new int[CHUNK + 1];
+    int[] legs = new int[CHUNK * 2];
+  }
+
+  /**
+   * Sums of the chunks one worker aggregated
+   */
+  private final class Totals {
+    final int[] seatsSold = new int[flights.length];
+    // by origin * cities + dest of the whole itinerary
+    final int[] reservations = new int[cities.size() * cities.size()];
+    final long[] paidRevenue = new long[reservations.length];
+    final long[] unpaidValue = new long[reservations.length];
+  }
+
+  /**
+   * @param flights every flight a reservation can refer to
+   */
+  public Analytics(Collection<Flight> flights) {
+    this(flights, ForkJoinPool.commonPool());
+  }
+
+  public Analytics(Collection<Flight> flights, ForkJoinPool pool) {
+    this.flights = flights.toArray(new Flight[0]);
+    int maxFid = 0;
+    for (Flight f : this.flights) {
+      maxFid = Math.max(maxFid, f.fid);
+    }
+    indexByFid = new int[maxFid + 1];
+    Arrays.fill(indexByFid, -1);
+    origins = new int[this.flights.length];
+    dests = new int[this.flights.length];
+    Map<String, Integer> cityIds = new HashMap<>();
+    for (int i = 0; i < this.flights.length; i++) {
+      indexByFid[this.flights[i].fid] = i;
+      origins[i] = cityId(cityIds, this.flights[i].originCity);
+      dests[i] = cityId(cityIds, this.flights[i].destCity);
+    }
+    remaining = new int[this.flights.length];
+    Arrays.fill(remaining, -1);
+    this.pool = pool;
+    inFlight = new Semaphore(2 * pool.getParallelism());
+  }
+
+  private int cityId(Map<String, Integer> cityIds, String city) {
+    Integer id = cityIds.get(city);
+    if (id == null) {
+      id = cities.size();
+      cityIds.put(city, id);
+      cities.add(city);
+    }
+    return id;
+  }
+
+  private int index(int fid) {
+    return fid >= 0 && fid < indexByFid.length ? indexByFid[fid] : -1;
+  }
+
+  /**
+   * Adds a live reservation of a direct or one-hop itinerary
+   *
+   * @param secondFid -1 for a direct flight
+   */
+  public void addReservation(boolean paid, int price, int firstFid, int secondFid)
+      throws InterruptedException {
+    int first = index(firstFid);
+    int second = secondFid == -1 ? -2 : index(secondFid);
+    if (first == -1 || second == -1) {
+      skipped++;
+      return;
+    }
+    Chunk c = chunk;
+    c.legs[c.legStart[c.size]] = first;
+    c.legStart[c.size + 1] = c.legStart[c.size] + 1;
+    if (second >= 0) {
+      c.legs[c.legStart[c.size + 1]++] = second;
+    }
+    finishReservation(paid, price);
+  }
+
+  /**
+   * Adds a live reservation of an itinerary of any length
+   */
+  public void addReservation(boolean paid, int price, int[] fids) throws InterruptedException {
+    Chunk c = chunk;
+    int start = c.legStart[c.size];
+    if (start + fids.length > c.legs.length) {
+      c.legs = Arrays.copyOf(c.legs, Math.max(c.legs.length * 2, start + fids.length));
+    }
+    for (int i = 0; i < fids.length; i++) {
+      int leg = index(fids[i]);
+      if (leg == -1) {
+        skipped++;
+        return;
+      }
+      c.legs[start + i] = leg;
+    }
+    c.legStart[c.size + 1] = start + fids.length;
+    finishReservation(paid, price);
+  }
+
+  private void finishReservation(boolean paid, int price) throws InterruptedException {
+    Chunk c = chunk;
+    c.paid[c.size] = paid;
+    c.price[c.size] = price;
+    c.size++;
+    if (c.size == CHUNK) {
+      submit(c);
+      chunk = new Chunk();
+    } else if (c.legStart[c.size] + 4 > c.legs.length) {
+      c.legs = Arrays.copyOf(c.legs, c.legs.length * 2);
+    }
+  }
+
+  /**
+   * Records the seats left on a flight, summed over its Capacities buckets
+   */
+  public void setRemainingSeats(int fid, int seats) {
+    int i = index(fid);
+    if (i != -1) {
+      remaining[i] = seats;
+    }
+  }
+
+  private void submit(Chunk c) throws InterruptedException {
+    inFlight.acquire();
+    tasks.add(pool.submit(() -> {
+      try {
+        Totals totals = idle.poll();
+        if (totals == null) {
+          totals = new Totals();
+          allTotals.add(totals);
+        }
+        aggregate(c, totals);
+        idle.add(totals);
+      } finally {
+        inFlight.release();
+      }
+    }));
+  }
+
+  private void aggregate(Chunk c, Totals totals) {
+    int routes = cities.size();
+    for (int r = 0; r < c.size; r++) {
+      int from = c.legStart[r];
+      int to = c.legStart[r + 1];
+      for (int l = from; l < to; l++) {
+        totals.seatsSold[c.legs[l]]++;
+      }
+      int route = origins[c.legs[from]] * routes + dests[c.legs[to - 1]];
+      totals.reservations[route]++;
+      if (c.paid[r]) {
+        totals.paidRevenue[route] += c.price[r];
+      } else {
+        totals.unpaidValue[route] += c.price[r];
+      }
+    }
+  }
+
+  /**
+   * Waits for the chunks still being aggregated and merges the totals of every worker
+   */
+  public Report finish() throws InterruptedException {
+    if (chunk.size > 0) {
+      submit(chunk);
+      chunk = new Chunk();
+    }
+    for (ForkJoinTask<?> task : tasks) {
+      task.join();
+    }
+    tasks.clear();
+    Totals sum = new Totals();
+    for (Totals totals : allTotals) {
+      for (int i = 0; i < sum.seatsSold.length; i++) {
+        sum.seatsSold[i] += totals.seatsSold[i];
+      }
+      for (int i = 0; i < sum.reservations.length; i++) {
+        sum.reservations[i] += totals.reservations[i];
+        sum.paidRevenue[i] += totals.paidRevenue[i];
+        sum.unpaidValue[i] += totals.unpaidValue[i];
+      }
+    }
+    return new Report(sum);
+  }
+
+  /**
+   * Occupancy per flight and revenue per route of one snapshot
+   */
+  public final class Report {
+    private final Totals totals;
+    public final long reservations;
+    public final long paidRevenue;
+    public final long unpaidValue;
+    // reservations referring to flights missing from the Flights snapshot
+    public final long skipped = Analytics.this.skipped;
+
+    private Report(Totals totals) {
+      this.totals = totals;
+      long count = 0;
+      long paid = 0;
+      long unpaid = 0;
+      for (int i = 0; i < totals.reservations.length; i++) {
+        count += totals.reservations[i];
+        paid += totals.paidRevenue[i];
+        unpaid += totals.unpaidValue[i];
+      }
+      reservations = count;
+      paidRevenue = paid;
+      unpaidValue = unpaid;
+    }
+
+    /**
+     * @return reserved seats over capacity, or 0 for a flight without capacity
+     */
+    public double loadFactor(int fid) {
+      int i = index(fid);
+      return i == -1 || flights[i].capacity <= 0 ? 0
+          : totals.seatsSold[i] / (double) flights[i].capacity;
+    }
+
+    /**
+     * Writes one line per flight with seats reserved or taken, by day then fid. seats_taken is
+     * capacity minus the seats left in Capacities and also counts seats held but not (yet)
+     * reserved, e.g. by the seat cluster; it is empty for flights never booked.
+     */
+    public void writeOccupancy(Writer out) throws IOException {
+      Integer[] order = new Integer[flights.length];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, Comparator.comparingInt((Integer i) -> flights[i].dayOfMonth)
+          .thenComparingInt(i -> flights[i].fid));
+      out.write("day,fid,carrier,flight_num,origin,dest,capacity,seats_reserved,seats_taken,"
+          + "load_factor\n");
+      for (int i : order) {
+        if (totals.seatsSold[i] == 0 && remaining[i] == -1) {
+          continue;
+        }
+        Flight f = flights[i];
+        out.write(f.dayOfMonth + "," + f.fid + "," + f.carrierId + "," + f.flightNum + ","
+            + csv(f.originCity) + "," + csv(f.destCity) + "," + f.capacity + ","
+            + totals.seatsSold[i] + "," + (remaining[i] == -1 ? "" : f.capacity - remaining[i])
+            + "," + String.format(Locale.ROOT, "%.3f", loadFactor(f.fid)) + "\n");
+      }
+    }
+
+    /**
+     * Writes one line per route (origin and destination of the whole itinerary) with
+     * reservations, highest paid revenue first
+     */
+    public void writeRevenue(Writer out) throws IOException {
+      List<Integer> routes = new ArrayList<>();
+      for (int i = 0; i < totals.reservations.length; i++) {
+        if (totals.reservations[i] > 0) {
+          routes.add(i);
+        }
+      }
+      routes.sort(Comparator.comparingLong((Integer i) -> -totals.paidRevenue[i])
+          .thenComparingInt(i -> i));
+      out.write("origin,dest,reservations,paid_revenue,unpaid_value\n");
+      for (int i : routes) {
+        out.write(csv(cities.get(i / cities.size())) + "," + csv(cities.get(i % cities.size()))
+            + "," + totals.reservations[i] + "," + totals.paidRevenue[i] + ","
+            + totals.unpaidValue[i] + "\n");
+      }
+    }
+  }
+
+  private static String csv(String value) {
+    return value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+        ? "\"" + value.replace("\"", "\"\"") + "\"" : value;
+  }
+}
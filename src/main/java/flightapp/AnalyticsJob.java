@@ -0,0 +1,44 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.Connection;
+
+/**
+ * Occupancy and revenue reports from one snapshot of the reservations, computed off the booking
+ * path: the job runs on its own connection, reads under SNAPSHOT isolation so bookings never
+ * wait on it, and aggregates in this process (see {@link Analytics}).
+ *
+ * Run with: java flightapp.AnalyticsJob occupancy.csv revenue.csv
+ */
+public class AnalyticsJob {
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.out.println("Usage: AnalyticsJob <occupancy.csv> <revenue.csv>");
+      return;
+    }
+    try (Connection conn = Query.openConnectionFromDbConn()) {
+      JdbcFlightStorage storage = new JdbcFlightStorage(conn);
+      long begin = System.nanoTime();
+      Analytics analytics = new Analytics(storage.loadFlights());
+      long loaded = System.nanoTime();
+      storage.readAnalyticsSnapshot(analytics);
+      Analytics.Report report = analytics.finish();
+      long aggregated = System.nanoTime();
+      try (Writer out = Files.newBufferedWriter(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+        report.writeOccupancy(out);
+      }
+      try (Writer out = Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+        report.writeRevenue(out);
+      }
+      System.out.println(String.format(
+          "%,d reservations, %,d paid, %,d unpaid; flights %.2fs, snapshot %.2fs, reports %.2fs",
+          report.reservations, report.paidRevenue, report.unpaidValue, (loaded - begin) / 1e9,
+          (aggregated - loaded) / 1e9, (System.nanoTime() - aggregated) / 1e9));
+      if (report.skipped > 0) {
+        System.out.println(report.skipped + " reservations refer to unknown flights");
+      }
+    }
+  }
+}
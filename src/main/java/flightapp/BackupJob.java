@@ -0,0 +1,290 @@
+package flightapp;
+
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+import flightapp.ColumnarFile.Column;
+import flightapp.ColumnarFile.Type;
+
+/**
+ * Export and import of the Users, Itineraries, ItineraryLegs, Reservations and Capacities tables
+ * as one {@link ColumnarFile} per table, e.g. to clone a database for load tests.
+ *
+ * {@code export} pages through each table in primary key order, one chunk of {@link #CHUNK}
+ * rows per query, and each chunk is on disk before the next page is read. Rerun after a crash,
+ * it keeps the complete chunks and continues after the key of the last one. Export a quiescent
+ * database: pages are separate reads, not one snapshot.
+ *
+ * {@code import} loads the tables in foreign key order into a database with those tables
+ * cleared. Each chunk is inserted as one JDBC batch in one transaction, with the table's
+ * nonclustered indexes disabled, and the table's indexes are rebuilt once it is loaded. Rerun
+ * after a crash, it skips the chunks whose last row is already there.
+ *
+ * Run with: java flightapp.BackupJob export|import dir [table...]
+ */
+public class BackupJob {
+  static final int CHUNK = 1 << 16;
+
+  /**
+   * How one table is paged out and inserted back
+   */
+  private static final class Table {
+    final String name;
+    final List<Column> columns;
+    final String exportSql;
+    // column bound to each parameter after TOP, from the last row exported
+    final int[] exportKeys;
+    final String importSql;
+    final int[] importParams;
+    // null if the insert skips existing rows and chunks can simply be inserted again
+    final String importedSql;
+    final int[] importedKeys;
+
+    Table(String name, List<Column> columns, String exportSql, int[] exportKeys,
+        String importSql, int[] importParams, String importedSql, int[] importedKeys) {
+      this.name = name;
+      this.columns = columns;
+      this.exportSql = exportSql;
+      this.exportKeys = exportKeys;
+      this.importSql = importSql;
+      this.importParams = importParams;
+      this.importedSql = importedSql;
+      this.importedKeys = importedKeys;
+    }
+  }
+
+  private static Column column(String name, Type type) {
+    return new Column(name, type);
+  }
+
+  // in foreign key order
+  private static final List<Table> TABLES = Arrays.asList(
+      new Table("Users", Arrays.asList(column("username", Type.STRING),
+          column("password", Type.BYTES), column("balance", Type.INT),
+          column("salt", Type.BYTES), column("version", Type.INT)),
+          QueryStorage.EXPORT_USERS, new int[] {0},
+          QueryStorage.IMPORT_USERS, new int[] {0, 1, 2, 3, 4},
+          QueryStorage.IMPORTED_USER, new int[] {0}),
+      new Table("Itineraries", Arrays.asList(column("it_id", Type.LONG),
+          column("price", Type.INT), column("first_flight_id", Type.INT),
+          column("second_flight_id", Type.INT)),
+          QueryStorage.EXPORT_ITINERARIES, new int[] {0},
+          QueryStorage.IMPORT_ITINERARIES, new int[] {0, 1, 2, 3, 0}, null, null),
+      new Table("ItineraryLegs", Arrays.asList(column("it_id", Type.LONG),
+          column("leg", Type.INT), column("fid", Type.INT)),
+          QueryStorage.EXPORT_ITINERARY_LEGS, new int[] {0, 0, 1},
+          QueryStorage.IMPORT_ITINERARY_LEGS, new int[] {0, 1, 2, 0, 1}, null, null),
+      new Table("Reservations", Arrays.asList(column("ID", Type.INT),
+          column("itinerary", Type.LONG), column("date", Type.INT),
+          column("username", Type.STRING), column("paid", Type.INT),
+          column("cancelled", Type.INT)),
+          QueryStorage.EXPORT_RESERVATIONS, new int[] {0},
+          QueryStorage.IMPORT_RESERVATIONS, new int[] {0, 1, 2, 3, 4, 5},
+          QueryStorage.IMPORTED_RESERVATION, new int[] {0}),
+      new Table("Capacities", Arrays.asList(column("fid", Type.INT),
+          column("bucket", Type.INT), column("capacity", Type.INT)),
+          QueryStorage.EXPORT_CAPACITIES, new int[] {0, 0, 1},
+          QueryStorage.IMPORT_CAPACITIES, new int[] {0, 1, 2},
+          QueryStorage.IMPORTED_CAPACITY, new int[] {0, 1}));
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2 || !(args[0].equals("export") || args[0].equals("import"))) {
+      System.out.println("Usage: BackupJob export|import <dir> [table...]");
+      return;
+    }
+    Path dir = Paths.get(args[1]);
+    Set<String> only = new HashSet<>(Arrays.asList(args).subList(2, args.length));
+    try (Connection conn = Query.openConnectionFromDbConn()) {
+      StatementCache statements = StatementCache.forConnection(conn);
+      Files.createDirectories(dir);
+      for (Table table : TABLES) {
+        if (!only.isEmpty() && !only.contains(table.name)) {
+          continue;
+        }
+        long begin = System.nanoTime();
+        Path file = dir.resolve(table.name + ".col");
+        long rows = args[0].equals("export") ? export(statements, table, file)
+            : load(conn, statements, table, file);
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        System.out.println(String.format("%s: %,d rows in %.1fs (%,.0f rows/s), %,d bytes",
+            table.name, rows, seconds, rows / seconds, Files.size(file)));
+      }
+    }
+  }
+
+  /**
+   * @return the rows written in this run
+   */
+  private static long export(StatementCache statements, Table table, Path file)
+      throws Exception {
+    ColumnarFile.Chunk chunk = new ColumnarFile.Chunk(table.columns, CHUNK);
+    Object[] lastKey = new Object[table.columns.size()];
+    ColumnarFile.Writer writer;
+    if (Files.exists(file)) {
+      writer = ColumnarFile.append(file, table.columns, chunk);
+      if (chunk.rows() > 0) {
+        for (int c = 0; c < lastKey.length; c++) {
+          lastKey[c] = chunk.get(c, chunk.rows() - 1);
+        }
+      }
+    } else {
+      writer = ColumnarFile.create(file, table.columns);
+    }
+    long rows = 0;
+    try (ColumnarFile.Writer out = writer) {
+      PreparedStatement page = statements.get(table.exportSql);
+      page.setFetchSize(CHUNK);
+      while (true) {
+        page.clearParameters();
+        page.setInt(1, CHUNK);
+        for (int p = 0; p < table.exportKeys.length; p++) {
+          int c = table.exportKeys[p];
+          setKey(page, p + 2, table.columns.get(c).type, lastKey[c]);
+        }
+        chunk.clear();
+        Object[] row = new Object[table.columns.size()];
+        try (ResultSet resultSet = page.executeQuery()) {
+          while (resultSet.next()) {
+            for (int c = 0; c < row.length; c++) {
+              row[c] = get(resultSet, c + 1, table.columns.get(c).type);
+            }
+            chunk.add(row);
+          }
+        }
+        if (chunk.rows() == 0) {
+          return rows;
+        }
+        out.write(chunk);
+        rows += chunk.rows();
+        System.arraycopy(row, 0, lastKey, 0, row.length);
+      }
+    }
+  }
+
+  /**
+   * @return the rows inserted in this run
+   */
+  private static long load(Connection conn, StatementCache statements, Table table, Path file)
+      throws Exception {
+    PreparedStatement disable = statements.get(QueryStorage.DISABLE_SECONDARY_INDEXES);
+    disable.setString(1, table.name);
+    disable.setString(2, table.name);
+    disable.execute();
+    boolean identity = table.name.equals("Reservations");
+    if (identity) {
+      statements.get(QueryStorage.RESERVATIONS_IDENTITY_INSERT_ON).execute();
+    }
+    long rows = 0;
+    ColumnarFile.Chunk chunk = new ColumnarFile.Chunk(table.columns, CHUNK);
+    try (ColumnarFile.Reader reader = ColumnarFile.open(file)) {
+      PreparedStatement insert = statements.get(table.importSql);
+      while (reader.next(chunk)) {
+        if (imported(statements, table, chunk)) {
+          continue;
+        }
+        conn.setAutoCommit(false);
+        try {
+          for (int r = 0; r < chunk.rows(); r++) {
+            for (int p = 0; p < table.importParams.length; p++) {
+              int c = table.importParams[p];
+              set(insert, p + 1, table.columns.get(c).type, chunk.get(c, r));
+            }
+            insert.addBatch();
+          }
+          insert.executeBatch();
+          conn.commit();
+        } catch (SQLException e) {
+          insert.clearBatch();
+          conn.rollback();
+          throw e;
+        } finally {
+          conn.setAutoCommit(true);
+        }
+        rows += chunk.rows();
+      }
+    } finally {
+      if (identity) {
+        statements.get(QueryStorage.RESERVATIONS_IDENTITY_INSERT_OFF).execute();
+      }
+      PreparedStatement rebuild = statements.get(QueryStorage.REBUILD_INDEXES);
+      rebuild.setString(1, table.name);
+      rebuild.execute();
+    }
+    return rows;
+  }
+
+  // whether the chunk's last row, and so the whole chunk, was committed by an earlier run
+  private static boolean imported(StatementCache statements, Table table,
+      ColumnarFile.Chunk chunk) throws SQLException {
+    if (table.importedSql == null) {
+      return false;
+    }
+    PreparedStatement check = statements.get(table.importedSql);
+    check.clearParameters();
+    for (int p = 0; p < table.importedKeys.length; p++) {
+      int c = table.importedKeys[p];
+      set(check, p + 1, table.columns.get(c).type, chunk.get(c, chunk.rows() - 1));
+    }
+    try (ResultSet resultSet = check.executeQuery()) {
+      return resultSet.next() && resultSet.getInt(1) > 0;
+    }
+  }
+
+  // binds a key of the last row exported, or the lowest key before the first page
+  private static void setKey(PreparedStatement statement, int index, Type type, Object key)
+      throws SQLException {
+    if (key != null) {
+      set(statement, index, type, key);
+    } else if (type == Type.STRING) {
+      statement.setString(index, "");
+    } else if (type == Type.LONG) {
+      statement.setLong(index, Long.MIN_VALUE);
+    } else {
+      statement.setInt(index, Integer.MIN_VALUE);
+    }
+  }
+
+  private static void set(PreparedStatement statement, int index, Type type, Object value)
+      throws SQLException {
+    switch (type) {
+      case INT:
+        if (value == null) {
+          statement.setNull(index, Types.INTEGER);
+        } else {
+          statement.setInt(index, (Integer) value);
+        }
+        break;
+      case LONG:
+        if (value == null) {
+          statement.setNull(index, Types.BIGINT);
+        } else {
+          statement.setLong(index, (Long) value);
+        }
+        break;
+      case STRING:
+        statement.setString(index, (String) value);
+        break;
+      default:
+        statement.setBytes(index, (byte[]) value);
+    }
+  }
+
+  private static Object get(ResultSet resultSet, int index, Type type) throws SQLException {
+    Object value;
+    switch (type) {
+      case INT:
+        value = resultSet.getInt(index);
+        break;
+      case LONG:
+        value = resultSet.getLong(index);
+        break;
+      case STRING:
+        value = resultSet.getString(index);
+        break;
+      default:
+        value = resultSet.getBytes(index);
+    }
+    return resultSet.wasNull() ? null : value;
+  }
+}
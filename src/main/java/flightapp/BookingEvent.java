@@ -0,0 +1,37 @@
+package flightapp;
+
+/**
+ * A change to a reservation, recorded in the outbox in the same transaction as the change itself
+ */
+public class BookingEvent {
+  public enum Kind {
+    BOOKED, PAID, CANCELED
+  }
+
+  public long seq;
+  public Kind kind;
+  public String username;
+  public int reservationId;
+  // Itinerary.key() of the reservation's itinerary
+  public long itinerary;
+  // price for BOOKED and PAID, the refund for CANCELED
+  public int amount;
+
+  public BookingEvent(long seq, Kind kind, String username, int reservationId, long itinerary,
+      int amount) {
+    this.seq = seq;
+    this.kind = kind;
+    this.username = username;
+    this.reservationId = reservationId;
+    this.itinerary = itinerary;
+    this.amount = amount;
+  }
+
+  /**
+   * One line per event, as written by the file sink of {@link OutboxRelay}
+   */
+  @Override
+  public String toString() {
+    return seq + " " + kind + " " + username + " " + reservationId + " " + itinerary + " " + amount;
+  }
+}
@@ -0,0 +1,254 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Backend whose seat inventory lives on a {@link SeatCluster} instead of the delegate. Booking
+ * first holds the seats on the nodes owning the legs, then records the reservation in the
+ * delegate, then commits the holds; if recording fails the holds are aborted, and if a hold
+ * expired before its commit the recorded reservation is canceled again. Cancellation
+ * returns the seats to the cluster once the delegate has canceled the reservation.
+ *
+ * Everything else is passed through to the delegate.
+ */
+public class ClusterFlightStorage implements FlightStorage {
+  private final FlightStorage delegate;
+  private final SeatCluster cluster;
+
+  /**
+   * @param cluster may be shared between sessions; it is not closed with this storage
+   */
+  public ClusterFlightStorage(FlightStorage delegate, SeatCluster cluster) {
+    this.delegate = delegate;
+    this.cluster = cluster;
+  }
+
+  @Override
+  public void clearTables() throws SQLException {
+    delegate.clearTables();
+  }
+
+  @Override
+  public boolean createUser(String username, byte[] passwordHash, byte[] salt, int balance)
+      throws SQLException {
+    return delegate.createUser(username, passwordHash, salt, balance);
+  }
+
+  @Override
+  public byte[] getSalt(String username) throws SQLException {
+    return delegate.getSalt(username);
+  }
+
+  @Override
+  public boolean checkPassword(String username, byte[] passwordHash) throws SQLException {
+    return delegate.checkPassword(username, passwordHash);
+  }
+
+  @Override
+  public List<Itinerary> searchItineraries(String originCity, String destCity, boolean directOnly,
+      int dayOfMonth, int count) throws SQLException {
+    return delegate.searchItineraries(originCity, destCity, directOnly, dayOfMonth, count);
+  }
+
+  /**
+   * The delegate never sees the seats held on the cluster, so its counts only fall with
+   * Capacities; a sold-out flight may still be listed and fail at booking.
+   */
+  @Override
+  public List<Itinerary> searchAvailable(String originCity, String destCity, boolean directOnly,
+      int dayOfMonth, int count) throws SQLException {
+    return delegate.searchAvailable(originCity, destCity, directOnly, dayOfMonth, count);
+  }
+
+  @Override
+  public List<Itinerary> searchSkyline(String originCity, String destCity, boolean directOnly,
+      int dayOfMonth, int count) throws SQLException {
+    return delegate.searchSkyline(originCity, destCity, directOnly, dayOfMonth, count);
+  }
+
+  @Override
+  public List<Itinerary> searchMultiLeg(String originCity, String destCity, int dayOfMonth,
+      int maxLegs, int count) throws SQLException {
+    return delegate.searchMultiLeg(originCity, destCity, dayOfMonth, maxLegs, count);
+  }
+
+  @Override
+  public boolean hasReservationOnDay(String username, int dayOfMonth) throws SQLException {
+    return delegate.hasReservationOnDay(username, dayOfMonth);
+  }
+
+  @Override
+  public int bookItinerary(String username, Itinerary itinerary) throws SQLException {
+    try {
+      SeatCluster.Hold hold = cluster.reserve(itinerary);
+      if (hold == null) {
+        return -1;
+      }
+      int reservationId;
+      try {
+        reservationId = delegate.recordReservation(username, itinerary);
+      } catch (SQLException | RuntimeException e) {
+        try {
+          hold.abort();
+        } catch (IOException suppressed) {
+          e.addSuppressed(suppressed);
+        }
+        throw e;
+      }
+      if (reservationId == -1) {
+        hold.abort();
+        return -1;
+      }
+      if (!hold.commit()) {
+        // a node may already have sold that seat again, so the reservation cannot stand
+        delegate.cancelReservation(username, reservationId, false);
+        throw new SQLException("Seat hold expired before reservation " + reservationId
+            + " was committed");
+      }
+      return reservationId;
+    } catch (IOException e) {
+      throw new SQLException("Seat cluster unavailable", e);
+    }
+  }
+
+  @Override
+  public int recordReservation(String username, Itinerary itinerary) throws SQLException {
+    return delegate.recordReservation(username, itinerary);
+  }
+
+  @Override
+  public int getUnpaidReservationPrice(String username, int reservationId) throws SQLException {
+    return delegate.getUnpaidReservationPrice(username, reservationId);
+  }
+
+  @Override
+  public int getBalance(String username) throws SQLException {
+    return delegate.getBalance(username);
+  }
+
+  @Override
+  public int payReservation(String username, int reservationId) throws SQLException {
+    return delegate.payReservation(username, reservationId);
+  }
+
+  @Override
+  public Payment payReservations(String username, List<Integer> reservationIds)
+      throws SQLException {
+    return delegate.payReservations(username, reservationIds);
+  }
+
+  @Override
+  public Reservation cancelReservation(String username, int reservationId, boolean releaseSeats)
+      throws SQLException {
+    Reservation canceled = delegate.cancelReservation(username, reservationId, false);
+    if (releaseSeats && canceled != null && canceled.itinerary != null) {
+      try {
+        cluster.release(canceled.itinerary);
+      } catch (IOException e) {
+        throw new SQLException("Seat cluster unavailable", e);
+      }
+    }
+    return canceled;
+  }
+
+  /**
+   * Cancels the reservations one at a time, since the seats are returned outside the delegate's
+   * transaction anyway
+   */
+  @Override
+  public List<Reservation> cancelReservations(List<Reservation> reservations)
+      throws SQLException {
+    List<Reservation> canceled = new ArrayList<>();
+    for (Reservation reservation : reservations) {
+      Reservation result = cancelReservation(reservation.username, reservation.id, true);
+      if (result != null) {
+        canceled.add(result);
+      }
+    }
+    return canceled;
+  }
+
+  /**
+   * Books each replacement before canceling its reservation, one at a time, since the seats move
+   * outside the delegate's transaction anyway. A failed cancellation takes its replacement back, so
+   * a re-run finds the reservation as it was.
+   */
+  @Override
+  public List<Rebooking> rebookReservations(List<Rebooking> rebookings) throws SQLException {
+    for (Rebooking rebooking : rebookings) {
+      Reservation reservation = rebooking.reservation;
+      rebooking.replacement = null;
+      rebooking.reservationId = -1;
+      for (Itinerary candidate : rebooking.candidates) {
+        int id = bookItinerary(reservation.username, candidate);
+        if (id != -1) {
+          rebooking.replacement = candidate;
+          rebooking.reservationId = id;
+          break;
+        }
+      }
+      try {
+        rebooking.canceled = cancelReservation(reservation.username, reservation.id, true);
+      } catch (SQLException | RuntimeException e) {
+        if (rebooking.reservationId != -1) {
+          try {
+            cancelReservation(reservation.username, rebooking.reservationId, true);
+          } catch (SQLException suppressed) {
+            e.addSuppressed(suppressed);
+          }
+        }
+        throw e;
+      }
+      if (rebooking.canceled == null && rebooking.reservationId != -1) {
+        // canceled by someone else meanwhile, so the replacement is not wanted either
+        cancelReservation(reservation.username, rebooking.reservationId, true);
+        rebooking.replacement = null;
+        rebooking.reservationId = -1;
+      }
+    }
+    return rebookings;
+  }
+
+  @Override
+  public boolean cancelFlight(int fid) throws SQLException {
+    return delegate.cancelFlight(fid);
+  }
+
+  @Override
+  public List<Reservation> getReservationsOnFlight(int fid, int afterId, int limit)
+      throws SQLException {
+    return delegate.getReservationsOnFlight(fid, afterId, limit);
+  }
+
+  @Override
+  public List<Reservation> getReservations(String username) throws SQLException {
+    return delegate.getReservations(username);
+  }
+
+  @Override
+  public List<BookingEvent> readEvents(long afterSeq, int limit) throws SQLException {
+    return delegate.readEvents(afterSeq, limit);
+  }
+
+  @Override
+  public void purgeEvents(long throughSeq) throws SQLException {
+    delegate.purgeEvents(throughSeq);
+  }
+
+  @Override
+  public long getSubscriberOffset(String subscriber) throws SQLException {
+    return delegate.getSubscriberOffset(subscriber);
+  }
+
+  @Override
+  public void saveSubscriberOffset(String subscriber, long seq) throws SQLException {
+    delegate.saveSubscriberOffset(subscriber, seq);
+  }
+
+  @Override
+  public void close() throws SQLException {
+    delegate.close();
+  }
+}
@@ -0,0 +1,523 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Compressed columnar file of one table's rows, written and read in chunks through a
+ * {@link FileChannel}.
+ *
+ * The file is a header (magic, then the name and type of every column) followed by chunks. A
+ * chunk is its row count, payload length and CRC-32, then the payload: for every column its raw
+ * and compressed lengths and the deflated column data. A column holds a null bitmap and then the
+ * non-null values: ints and longs as zigzag varints of the difference to the previous value, so
+ * ascending keys take a byte or two, and strings and byte arrays as a varint length and the
+ * bytes. A file cut off while a chunk was written is valid up to its last complete chunk, which
+ * {@link #append} finds and resumes after.
+ */
+public class ColumnarFile {
+  private static final int MAGIC = 0x46434f4c; // "FCOL"
+  private static final int CHUNK_HEADER = 12;
+
+  public enum Type { INT, LONG, STRING, BYTES }
+
+  public static final class Column {
+    public final String name;
+    public final Type type;
+
+    public Column(String name, Type type) {
+      this.name = name;
+      this.type = type;
+    }
+  }
+
+  /**
+   * Up to {@code capacity} rows, stored column by column
+   */
+  public static final class Chunk {
+    public final List<Column> columns;
+    private final Object[] values;
+    private final boolean[][] nulls;
+    private int rows;
+
+    public Chunk(List<Column> columns, int capacity) {
+      this.columns = columns;
+      values = new Object[columns.size()];
+      nulls = new boolean[columns.size()][capacity];
+      for (int c = 0; c < values.length; c++) {
+        switch (columns.get(c).type) {
+          case INT:
+            values[c] = new int[capacity];
+            break;
+          case LONG:
+            values[c] = new long[capacity];
+            break;
+          case STRING:
+            values[c] = new String[capacity];
+            break;
+          default:
+            values[c] = new byte[capacity][];
+        }
+      }
+    }
+
+    public int rows() {
+      return rows;
+    }
+
+    public int capacity() {
+      return nulls.length == 0 ? 0 : nulls[0].length;
+    }
+
+    public void clear() {
+      rows = 0;
+    }
+
+    /**
+     * Appends a row; {@code row} holds an Integer, Long, String, byte[] or null per column
+     */
+    public void add(Object... row) {
+      for (int c = 0; c < values.length; c++) {
+        nulls[c][rows] = row[c] == null;
+        if (row[c] == null) {
+          continue;
+        }
+        switch (columns.get(c).type) {
+          case INT:
+            ((int[]) values[c])[rows] = (Integer) row[c];
+            break;
+          case LONG:
+            ((long[]) values[c])[rows] = (Long) row[c];
+            break;
+          case STRING:
+            ((String[]) values[c])[rows] = (String) row[c];
+            break;
+          default:
+            ((byte[][]) values[c])[rows] = (byte[]) row[c];
+        }
+      }
+      rows++;
+    }
+
+    /**
+     * @return the value in a row as an Integer, Long, String, byte[] or null
+     */
+    public Object get(int column, int row) {
+      if (nulls[column][row]) {
+        return null;
+      }
+      switch (columns.get(column).type) {
+        case INT:
+          return ((int[]) values[column])[row];
+        case LONG:
+          return ((long[]) values[column])[row];
+        case STRING:
+          return ((String[]) values[column])[row];
+        default:
+          return ((byte[][]) values[column])[row];
+      }
+    }
+
+    private void encode(int c, Bytes out) {
+      byte[] bitmap = new byte[(rows + 7) / 8];
+      for (int r = 0; r < rows; r++) {
+        if (nulls[c][r]) {
+          bitmap[r >> 3] |= (byte) (1 << (r & 7));
+        }
+      }
+      out.write(bitmap, 0, bitmap.length);
+      long previous = 0;
+      for (int r = 0; r < rows; r++) {
+        if (nulls[c][r]) {
+          continue;
+        }
+        switch (columns.get(c).type) {
+          case INT:
+          case LONG:
+            long value = columns.get(c).type == Type.INT ? ((int[]) values[c])[r]
+                : ((long[]) values[c])[r];
+            long delta = value - previous;
+            out.writeVarLong((delta << 1) ^ (delta >> 63));
+            previous = value;
+            break;
+          case STRING:
+            byte[] utf8 = ((String[]) values[c])[r].getBytes(StandardCharsets.UTF_8);
+            out.writeVarLong(utf8.length);
+            out.write(utf8, 0, utf8.length);
+            break;
+          default:
+            byte[] bytes = ((byte[][]) values[c])[r];
+            out.writeVarLong(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+      }
+    }
+
+    private void decode(int c, ByteBuffer in, int rowCount) {
+      byte[] bitmap = new byte[(rowCount + 7) / 8];
+      in.get(bitmap);
+      long previous = 0;
+      for (int r = 0; r < rowCount; r++) {
+        nulls[c][r] = (bitmap[r >> 3] & (1 << (r & 7))) != 0;
+        if (nulls[c][r]) {
+          continue;
+        }
+        switch (columns.get(c).type) {
+          case INT:
+          case LONG:
+            long zigzag = readVarLong(in);
+            previous += (zigzag >>> 1) ^ -(zigzag & 1);
+            if (columns.get(c).type == Type.INT) {
+              ((int[]) values[c])[r] = (int) previous;
+            } else {
+              ((long[]) values[c])[r] = previous;
+            }
+            break;
+          case STRING:
+            byte[] utf8 = new byte[(int) readVarLong(in)];
+            in.get(utf8);
+            ((String[]) values[c])[r] = new String(utf8, StandardCharsets.UTF_8);
+            break;
+          default:
+            byte[] bytes = new byte[(int) readVarLong(in)];
+            in.get(bytes);
+            ((byte[][]) values[c])[r] = bytes;
+        }
+      }
+      rows = rowCount;
+    }
+  }
+
+  /**
+   * Growable byte array
+   */
+  private static final class Bytes {
+    private byte[] buf;
+    private int size;
+
+    Bytes(int capacity) {
+      buf = new byte[capacity];
+    }
+
+    private void ensure(int more) {
+      if (size + more > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + more));
+      }
+    }
+
+    void write(int b) {
+      ensure(1);
+      buf[size++] = (byte) b;
+    }
+
+    void write(byte[] bytes, int offset, int length) {
+      ensure(length);
+      System.arraycopy(bytes, offset, buf, size, length);
+      size += length;
+    }
+
+    void writeVarLong(long value) {
+      ensure(10);
+      while ((value & ~0x7FL) != 0) {
+        buf[size++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buf[size++] = (byte) value;
+    }
+
+    void writeInt(int value) {
+      ensure(4);
+      buf[size++] = (byte) (value >>> 24);
+      buf[size++] = (byte) (value >>> 16);
+      buf[size++] = (byte) (value >>> 8);
+      buf[size++] = (byte) value;
+    }
+
+    void reset() {
+      size = 0;
+    }
+
+    int size() {
+      return size;
+    }
+
+    byte[] array() {
+      return buf;
+    }
+  }
+
+  private static long readVarLong(ByteBuffer in) {
+    long value = 0;
+    for (int shift = 0;; shift += 7) {
+      byte b = in.get();
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  /**
+   * Appends chunks to a file
+   */
+  public static final class Writer implements Closeable {
+    private final FileChannel channel;
+    private final List<Column> columns;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Bytes raw = new Bytes(1 << 20);
+    private final Bytes payload = new Bytes(1 << 20);
+    private byte[] compressed = new byte[1 << 16];
+
+    private Writer(FileChannel channel, List<Column> columns) {
+      this.channel = channel;
+      this.columns = columns;
+    }
+
+    /**
+     * Writes a chunk and forces it to disk, so that it survives a crash once this returns
+     */
+    public void write(Chunk chunk) throws IOException {
+      payload.reset();
+      for (int c = 0; c < columns.size(); c++) {
+        raw.reset();
+        chunk.encode(c, raw);
+        deflater.reset();
+        deflater.setInput(raw.array(), 0, raw.size());
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+          if (length == compressed.length) {
+            compressed = Arrays.copyOf(compressed, compressed.length * 2);
+          }
+          length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        payload.writeInt(raw.size());
+        payload.writeInt(length);
+        payload.write(compressed, 0, length);
+      }
+      CRC32 crc = new CRC32();
+      crc.update(payload.array(), 0, payload.size());
+      ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER);
+      header.putInt(chunk.rows()).putInt(payload.size()).putInt((int) crc.getValue()).flip();
+      writeFully(channel, header);
+      writeFully(channel, ByteBuffer.wrap(payload.array(), 0, payload.size()));
+      channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+      deflater.end();
+      channel.close();
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException();
+      }
+    }
+    buffer.flip();
+  }
+
+  /**
+   * Creates (or truncates) a file for the given columns
+   */
+  public static Writer create(Path path, List<Column> columns) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    Bytes header = new Bytes(256);
+    header.writeInt(MAGIC);
+    header.writeInt(columns.size());
+    for (Column column : columns) {
+      byte[] name = column.name.getBytes(StandardCharsets.UTF_8);
+      header.writeVarLong(name.length);
+      header.write(name, 0, name.length);
+      header.write(column.type.ordinal());
+    }
+    writeFully(channel, ByteBuffer.wrap(header.array(), 0, header.size()));
+    return new Writer(channel, columns);
+  }
+
+  /**
+   * Opens an existing file to add chunks after its last complete one, dropping any partly
+   * written chunk. The last complete chunk is read into {@code last} (cleared if there is none).
+   */
+  public static Writer append(Path path, List<Column> columns, Chunk last) throws IOException {
+    long end;
+    try (Reader reader = open(path)) {
+      if (!reader.columns().equals(names(columns))) {
+        throw new IOException(path + " has columns " + reader.columns());
+      }
+      end = reader.lastCompleteChunk(last);
+    }
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+    channel.truncate(end);
+    channel.position(end);
+    return new Writer(channel, columns);
+  }
+
+  private static List<String> names(List<Column> columns) {
+    List<String> names = new ArrayList<>();
+    for (Column column : columns) {
+      names.add(column.name + ":" + column.type);
+    }
+    return names;
+  }
+
+  /**
+   * Reads chunks in file order
+   */
+  public static final class Reader implements Closeable {
+    private final FileChannel channel;
+    private final List<String> columns = new ArrayList<>();
+    private final Inflater inflater = new Inflater();
+    private ByteBuffer payload = ByteBuffer.allocate(1 << 20);
+    private byte[] raw = new byte[1 << 20];
+
+    private Reader(FileChannel channel) throws IOException {
+      this.channel = channel;
+      ByteBuffer fixed = ByteBuffer.allocate(8);
+      readFully(channel, fixed);
+      if (fixed.getInt() != MAGIC) {
+        throw new IOException("not a columnar file");
+      }
+      int count = fixed.getInt();
+      // the header is small; read it a byte at a time
+      for (int c = 0; c < count; c++) {
+        byte[] name = new byte[(int) readVarLong(channel)];
+        readFully(channel, ByteBuffer.wrap(name));
+        ByteBuffer type = ByteBuffer.allocate(1);
+        readFully(channel, type);
+        columns.add(new String(name, StandardCharsets.UTF_8) + ":" + Type.values()[type.get()]);
+      }
+    }
+
+    private static long readVarLong(FileChannel channel) throws IOException {
+      ByteBuffer one = ByteBuffer.allocate(1);
+      long value = 0;
+      for (int shift = 0;; shift += 7) {
+        one.clear();
+        readFully(channel, one);
+        byte b = one.get();
+        value |= (long) (b & 0x7F) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+    }
+
+    /**
+     * @return "name:TYPE" of every column
+     */
+    public List<String> columns() {
+      return columns;
+    }
+
+    /**
+     * Reads the next complete chunk into {@code chunk}
+     *
+     * @return false at the end of the file or of its complete chunks
+     */
+    public boolean next(Chunk chunk) throws IOException {
+      return readChunk(chunk, true);
+    }
+
+    /**
+     * @return the start of the next chunk
+     */
+    public long position() throws IOException {
+      return channel.position();
+    }
+
+    private boolean readChunk(Chunk chunk, boolean decode) throws IOException {
+      long start = channel.position();
+      ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER);
+      try {
+        readFully(channel, header);
+      } catch (EOFException e) {
+        channel.position(start);
+        return false;
+      }
+      int rows = header.getInt();
+      int length = header.getInt();
+      int crc = header.getInt();
+      if (rows < 0 || length < 0 || rows > chunk.capacity()
+          || channel.position() + length > channel.size()) {
+        channel.position(start);
+        return false;
+      }
+      if (payload.capacity() < length) {
+        payload = ByteBuffer.allocate(length);
+      }
+      payload.clear().limit(length);
+      readFully(channel, payload);
+      CRC32 check = new CRC32();
+      check.update(payload.array(), 0, length);
+      if ((int) check.getValue() != crc) {
+        channel.position(start);
+        return false;
+      }
+      if (!decode) {
+        return true;
+      }
+      for (int c = 0; c < chunk.columns.size(); c++) {
+        int rawLength = payload.getInt();
+        int compressedLength = payload.getInt();
+        if (raw.length < rawLength) {
+          raw = new byte[rawLength];
+        }
+        inflater.reset();
+        inflater.setInput(payload.array(), payload.position(), compressedLength);
+        try {
+          int n = 0;
+          while (n < rawLength) {
+            n += inflater.inflate(raw, n, rawLength - n);
+          }
+        } catch (DataFormatException e) {
+          throw new IOException("corrupt column " + chunk.columns.get(c).name, e);
+        }
+        payload.position(payload.position() + compressedLength);
+        chunk.decode(c, ByteBuffer.wrap(raw, 0, rawLength), rows);
+      }
+      return true;
+    }
+
+    // checks every chunk, decoding only the last complete one into last
+    private long lastCompleteChunk(Chunk last) throws IOException {
+      last.clear();
+      long lastStart = -1;
+      long end = channel.position();
+      while (readChunk(last, false)) {
+        lastStart = end;
+        end = channel.position();
+      }
+      if (lastStart >= 0) {
+        channel.position(lastStart);
+        readChunk(last, true);
+      }
+      return end;
+    }
+
+    @Override
+    public void close() throws IOException {
+      inflater.end();
+      channel.close();
+    }
+  }
+
+  public static Reader open(Path path) throws IOException {
+    return new Reader(FileChannel.open(path, StandardOpenOption.READ));
+  }
+}
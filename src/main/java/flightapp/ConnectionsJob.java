@@ -0,0 +1,45 @@
+package flightapp;
+
+import java.sql.Connection;
+
+/**
+ * Maintenance of the materialized one-hop routes in the Connections table.
+ *
+ * {@code build} recomputes every route of the given days (all of July by default), one day per
+ * transaction, so that searches find their routes already materialized. {@code refresh} drops the
+ * routes that flights inserted into or changed in the Flights table outside this application can
+ * be part of; cancellations through the application do this themselves.
+ *
+ * Run with: java flightapp.ConnectionsJob build [day...] | refresh fid...
+ */
+public class ConnectionsJob {
+  private static final int DAYS_IN_JULY = 31;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1 || !(args[0].equals("build") || args[0].equals("refresh"))
+        || (args[0].equals("refresh") && args.length < 2)) {
+      System.out.println("Usage: ConnectionsJob build [day...] | refresh fid...");
+      return;
+    }
+    try (Connection conn = Query.openConnectionFromDbConn()) {
+      JdbcFlightStorage storage = new JdbcFlightStorage(conn);
+      if (args[0].equals("refresh")) {
+        for (int i = 1; i < args.length; i++) {
+          int fid = Integer.parseInt(args[i]);
+          System.out.println(
+              fid + (storage.refreshFlight(fid) ? ": routes dropped" : ": no such flight"));
+        }
+        return;
+      }
+      int[] days = new int[args.length > 1 ? args.length - 1 : DAYS_IN_JULY];
+      for (int i = 0; i < days.length; i++) {
+        days[i] = args.length > 1 ? Integer.parseInt(args[i + 1]) : i + 1;
+      }
+      for (int day : days) {
+        long begin = System.nanoTime();
+        storage.materializeDay(day);
+        System.out.println(String.format("day %d: %.2fs", day, (System.nanoTime() - begin) / 1e9));
+      }
+    }
+  }
+}
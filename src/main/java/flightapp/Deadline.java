@@ -0,0 +1,178 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time budget of the command running on this thread. Like {@link Trace} it lives in a thread
+ * local, begun and ended by {@link FlightService#execute}, so nothing has to be passed down.
+ *
+ * Every statement handed out by {@link StatementCache} gets the time left as its query timeout,
+ * and when the deadline passes a watchdog cancels the statement last handed out, so a statement
+ * blocked on a lock fails at the deadline instead of hanging the session. Once the deadline has
+ * passed, no further statement runs and no transaction commits: the storage rolls back on the
+ * resulting SQLException as on any other failure.
+ *
+ * Timeouts are per command type: flightapp.commandTimeoutMillis (default 30000, 0 for none),
+ * overridden by flightapp.commandTimeoutMillis.[type], e.g. .search.
+ */
+public class Deadline {
+  private static final long DEFAULT_TIMEOUT_MILLIS =
+      Long.getLong("flightapp.commandTimeoutMillis", 30_000);
+  private static final String TIMEOUT_PREFIX = "flightapp.commandTimeoutMillis.";
+
+  private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+  private static final ScheduledThreadPoolExecutor WATCHDOG =
+      new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "deadline-watchdog");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  static {
+    // almost every alarm is canceled long before it is due
+    WATCHDOG.setRemoveOnCancelPolicy(true);
+  }
+
+  private static final Map<String, LongAdder> timeouts = new ConcurrentHashMap<>();
+
+  private final String command;
+  private final long expiresAt;
+  private final ScheduledFuture<?> alarm;
+  // guarded by this
+  private Statement running;
+  private boolean ended;
+  // set once the deadline was enforced on this command
+  private volatile boolean enforced;
+  private boolean committed;
+
+  private Deadline(String command, long timeoutNanos) {
+    this.command = command;
+    this.expiresAt = System.nanoTime() + timeoutNanos;
+    this.alarm = WATCHDOG.schedule(this::expire, timeoutNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @return the timeout of this command type in milliseconds, 0 for none
+   */
+  public static long timeoutMillis(String command) {
+    return Long.getLong(TIMEOUT_PREFIX + command, DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Starts the deadline of a command on this thread, unless its type has no timeout
+   */
+  public static void begin(String command) {
+    long millis = timeoutMillis(command);
+    if (millis > 0) {
+      CURRENT.set(new Deadline(command, millis * 1_000_000));
+    }
+  }
+
+  /**
+   * Ends the deadline of the command on this thread
+   *
+   * @return true if the deadline stopped the command before it committed anything, so the
+   *         command changed nothing and its response should be a timeout
+   */
+  public static boolean end() {
+    Deadline deadline = CURRENT.get();
+    if (deadline == null) {
+      return false;
+    }
+    CURRENT.remove();
+    deadline.alarm.cancel(false);
+    synchronized (deadline) {
+      deadline.ended = true;
+      deadline.running = null;
+    }
+    if (!deadline.enforced || deadline.committed) {
+      return false;
+    }
+    timeouts.computeIfAbsent(deadline.command, c -> new LongAdder()).increment();
+    return true;
+  }
+
+  /**
+   * Sets the statement's query timeout to the time left and makes it the one the watchdog
+   * cancels; without a deadline, clears any timeout left by an earlier command
+   *
+   * @throws SQLTimeoutException if the deadline has passed
+   */
+  public static void apply(Statement statement) throws SQLException {
+    Deadline deadline = CURRENT.get();
+    if (deadline == null) {
+      statement.setQueryTimeout(0);
+      return;
+    }
+    long left = deadline.timeLeft();
+    // whole seconds, rounded up: the watchdog cancels at the exact deadline
+    statement.setQueryTimeout((int) Math.max(1, (left + 999_999_999) / 1_000_000_000));
+    synchronized (deadline) {
+      deadline.running = statement;
+    }
+  }
+
+  /**
+   * Throws if the command on this thread has run out of time, e.g. before committing
+   */
+  public static void check() throws SQLException {
+    Deadline deadline = CURRENT.get();
+    if (deadline != null) {
+      deadline.timeLeft();
+    }
+  }
+
+  /**
+   * Records that the command on this thread committed a transaction, so it did not time out
+   * without effect
+   */
+  public static void committed() {
+    Deadline deadline = CURRENT.get();
+    if (deadline != null) {
+      deadline.committed = true;
+    }
+  }
+
+  /**
+   * @return the commands of this type that timed out since the process started
+   */
+  public static long timeouts(String command) {
+    LongAdder count = timeouts.get(command);
+    return count == null ? 0 : count.sum();
+  }
+
+  /**
+   * @return timed out commands by command type
+   */
+  public static Map<String, Long> timeouts() {
+    Map<String, Long> counts = new TreeMap<>();
+    timeouts.forEach((command, count) -> counts.put(command, count.sum()));
+    return counts;
+  }
+
+  private long timeLeft() throws SQLTimeoutException {
+    long left = expiresAt - System.nanoTime();
+    if (left <= 0) {
+      enforced = true;
+      throw new SQLTimeoutException("Deadline of " + command + " exceeded");
+    }
+    return left;
+  }
+
+  private synchronized void expire() {
+    if (ended) {
+      return;
+    }
+    enforced = true;
+    if (running != null) {
+      try {
+        running.cancel();
+      } catch (SQLException e) {
+        // the statement fails on its own query timeout instead
+      }
+    }
+  }
+}
@@ -10,6 +10,7 @@ public class Flight {
     public int time;
     public int capacity;
     public int price;
+    public volatile boolean canceled;
 
     public Flight(int fid, int dayOfMonth, String carrierId, String flightNum, String originCity, String destCity,
                   int time, int capacity, int price) {
@@ -23,6 +24,16 @@ public class Flight {
         this.capacity = capacity;
         this.price = price;
     }
+    /**
+     * @return a copy of this flight showing {@code capacity} seats, e.g. the seats left
+     */
+    public Flight withCapacity(int capacity) {
+        Flight copy = new Flight(fid, dayOfMonth, carrierId, flightNum, originCity, destCity, time,
+                capacity, price);
+        copy.canceled = canceled;
+        return copy;
+    }
+
     @Override
     public String toString() {
         return "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId + " Number: "
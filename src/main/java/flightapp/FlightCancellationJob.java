@@ -0,0 +1,175 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Bulk re-accommodation after a carrier cancels a flight. The flight is marked canceled, then its
+ * live reservations are streamed in ID order one page at a time (keyset pagination, so the scan
+ * never re-reads a page). Replacement itineraries for the page are searched first, in parallel,
+ * each worker on its own backend. Then the page is canceled and rebooked in a single transaction,
+ * which refunds paid reservations, releases the seats on the other legs and books each passenger
+ * on the first replacement with seats, in reservation ID order so earlier bookings get first pick
+ * of the remaining seats. Progress and throughput are printed after every page.
+ *
+ * Released seats are reported to the {@link Waitlist} the job is given. Run from the command line
+ * the job has none: a waitlist only sees releases from its own process, so requests queued in a
+ * running service wait for that service's next cancellation on the same flights.
+ *
+ * Run with: java flightapp.FlightCancellationJob <fid> [threads] [page size]
+ */
+public class FlightCancellationJob {
+
+  /**
+   * Totals of one run
+   */
+  public static class Report {
+    public int reservations;
+    public int refunded;
+    public int rebooked;
+    public int stranded;
+    public long elapsedNanos;
+
+    @Override
+    public String toString() {
+      double seconds = elapsedNanos / 1e9;
+      return String.format("%d reservations (%d refunded), %d rebooked, %d stranded in %.2fs (%,.0f/s)",
+          reservations, refunded, rebooked, stranded, seconds,
+          seconds == 0 ? 0.0 : reservations / seconds);
+    }
+  }
+
+  // replacement candidates fetched per reservation, in case the best ones fill up first
+  private static final int CANDIDATES = 3;
+
+  private final FlightStorageFactory factory;
+  private final int threads;
+  private final int pageSize;
+  // told about released seats, null if there is none
+  private final Waitlist waitlist;
+
+  public FlightCancellationJob(FlightStorageFactory factory, int threads, int pageSize) {
+    this(factory, threads, pageSize, null);
+  }
+
+  public FlightCancellationJob(FlightStorageFactory factory, int threads, int pageSize,
+      Waitlist waitlist) {
+    this.factory = factory;
+    this.threads = threads;
+    this.pageSize = pageSize;
+    this.waitlist = waitlist;
+  }
+
+  /**
+   * Cancels the flight and re-accommodates every reservation on it. Safe to re-run after a
+   * failure: a page is canceled only together with its rebookings, so the reservations of a page
+   * that failed are still live and the next run finds them again.
+   */
+  public Report run(int fid) throws IOException, SQLException, InterruptedException {
+    Report report = new Report();
+    long begin = System.nanoTime();
+    List<FlightStorage> opened = Collections.synchronizedList(new ArrayList<>());
+    ThreadLocal<FlightStorage> workerStorage = new ThreadLocal<>();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    FlightStorage storage = factory.open();
+    try {
+      storage.cancelFlight(fid);
+      int afterId = 0;
+      while (true) {
+        List<Reservation> page = storage.getReservationsOnFlight(fid, afterId, pageSize);
+        if (page.isEmpty()) {
+          break;
+        }
+        afterId = page.get(page.size() - 1).id;
+
+        List<Future<List<Itinerary>>> searches = new ArrayList<>();
+        for (Reservation reservation : page) {
+          searches.add(pool.submit(() -> {
+            FlightStorage worker = workerStorage.get();
+            if (worker == null) {
+              worker = factory.open();
+              opened.add(worker);
+              workerStorage.set(worker);
+            }
+            return findReplacements(worker, reservation);
+          }));
+        }
+        List<Rebooking> rebookings = new ArrayList<>();
+        for (int i = 0; i < page.size(); i++) {
+          rebookings.add(new Rebooking(page.get(i), await(searches.get(i))));
+        }
+
+        for (Rebooking rebooking : storage.rebookReservations(rebookings)) {
+          Reservation canceled = rebooking.canceled;
+          if (canceled == null) {
+            continue; // canceled by its user since the scan
+          }
+          report.reservations++;
+          if (canceled.paid) {
+            report.refunded++;
+          }
+          if (rebooking.reservationId != -1) {
+            report.rebooked++;
+          } else {
+            report.stranded++;
+          }
+          if (waitlist != null && canceled.itinerary != null) {
+            waitlist.seatsReleased(canceled.itinerary);
+          }
+        }
+        report.elapsedNanos = System.nanoTime() - begin;
+        System.out.println("flight " + fid + ": " + report);
+      }
+    } finally {
+      pool.shutdown();
+      pool.awaitTermination(1, TimeUnit.MINUTES);
+      storage.close();
+      for (FlightStorage worker : opened) {
+        worker.close();
+      }
+    }
+    report.elapsedNanos = System.nanoTime() - begin;
+    return report;
+  }
+
+  /**
+   * Itineraries from the reservation's origin to its final destination on the same day
+   */
+  private static List<Itinerary> findReplacements(FlightStorage storage, Reservation reservation)
+      throws SQLException {
+    Itinerary original = reservation.itinerary;
+    if (original == null) {
+      return Collections.emptyList();
+    }
+    String destCity = original.lastLeg().destCity;
+    return storage.searchItineraries(original.f1.originCity, destCity, false,
+        reservation.dayOfMonth, CANDIDATES);
+  }
+
+  private static <T> T await(Future<T> future) throws SQLException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SQLException) {
+        throw (SQLException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.out.println("Usage: FlightCancellationJob <fid> [threads] [page size]");
+      return;
+    }
+    int fid = Integer.parseInt(args[0]);
+    int threads = args.length > 1 ? Integer.parseInt(args[1])
+        : Runtime.getRuntime().availableProcessors();
+    int pageSize = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+    FlightCancellationJob job = new FlightCancellationJob(
+        () -> new JdbcFlightStorage(Query.openConnectionFromDbConn()), threads, pageSize);
+    System.out.println("done: " + job.run(fid));
+  }
+}
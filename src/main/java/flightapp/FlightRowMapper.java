@@ -0,0 +1,118 @@
+package flightapp;
+
+import java.sql.*;
+
+/**
+ * Maps Flights rows to {@link Flight} objects by column ordinal. The ordinals are resolved once
+ * when the mapper is built, not by label on every getter call.
+ *
+ * A mapper can share a {@link Pool} of flights keyed by fid: when a row's flight is already pooled,
+ * only its fid (and canceled flag, if selected) is read and the pooled object is returned, so
+ * repeated searches over the same flights allocate neither a Flight nor its strings.
+ */
+public class FlightRowMapper {
+  // Flights columns a Flight is built from, in constructor order
+  private static final String[] COLUMNS = {"fid", "day_of_month", "carrier_id", "flight_num",
+      "origin_city", "dest_city", "actual_time", "capacity", "price"};
+
+  /**
+   * Direct-mapped cache of flights by fid. A Flights row never changes apart from its canceled
+   * flag, so a pooled flight can be handed out for every row with its fid.
+   */
+  public static class Pool {
+    private final Flight[] slots;
+
+    /**
+     * @param size number of slots, rounded up to a power of two
+     */
+    public Pool(int size) {
+      slots = new Flight[Integer.highestOneBit(Math.max(1, size - 1)) << 1];
+    }
+
+    public Flight get(int fid) {
+      Flight flight = slots[fid & (slots.length - 1)];
+      return flight != null && flight.fid == fid ? flight : null;
+    }
+
+    void put(Flight flight) {
+      slots[flight.fid & (slots.length - 1)] = flight;
+    }
+  }
+
+  private final int[] ordinals;
+  private final int canceledOrdinal; // 0 when the result has no canceled column
+  private final Pool pool; // null when not pooling
+
+  private FlightRowMapper(int[] ordinals, int canceledOrdinal, Pool pool) {
+    this.ordinals = ordinals;
+    this.canceledOrdinal = canceledOrdinal;
+    this.pool = pool;
+  }
+
+  /**
+   * Mapper for the nine flight columns starting at ordinal {@code first}, in the column order of
+   * {@link QueryStorage#SEARCH_ITINERARIES}
+   */
+  public static FlightRowMapper at(int first, Pool pool) {
+    int[] ordinals = new int[COLUMNS.length];
+    for (int i = 0; i < ordinals.length; i++) {
+      ordinals[i] = first + i;
+    }
+    return new FlightRowMapper(ordinals, 0, pool);
+  }
+
+  /**
+   * Like {@link #at}, with the canceled flag in the column after the nine flight columns
+   */
+  public static FlightRowMapper withCanceledAt(int first, Pool pool) {
+    return new FlightRowMapper(at(first, pool).ordinals, first + COLUMNS.length, pool);
+  }
+
+  /**
+   * Mapper for a result with Flights column labels in any order, e.g. {@code SELECT *}. Also maps
+   * the canceled flag if the result has it.
+   */
+  public static FlightRowMapper forColumns(ResultSetMetaData metaData, Pool pool)
+      throws SQLException {
+    int[] ordinals = new int[COLUMNS.length];
+    int canceledOrdinal = 0;
+    for (int column = 1; column <= metaData.getColumnCount(); column++) {
+      String label = metaData.getColumnLabel(column);
+      if (label.equalsIgnoreCase("canceled")) {
+        canceledOrdinal = column;
+      }
+      for (int i = 0; i < COLUMNS.length; i++) {
+        if (ordinals[i] == 0 && label.equalsIgnoreCase(COLUMNS[i])) {
+          ordinals[i] = column;
+        }
+      }
+    }
+    for (int i = 0; i < ordinals.length; i++) {
+      if (ordinals[i] == 0) {
+        throw new SQLException("Result has no " + COLUMNS[i] + " column");
+      }
+    }
+    return new FlightRowMapper(ordinals, canceledOrdinal, pool);
+  }
+
+  /**
+   * Maps the current row, reusing the pooled flight with the same fid if there is one
+   */
+  public Flight map(ResultSet results) throws SQLException {
+    int fid = results.getInt(ordinals[0]);
+    Flight flight = pool == null ? null : pool.get(fid);
+    if (flight == null) {
+      flight = new Flight(fid, results.getInt(ordinals[1]), results.getString(ordinals[2]),
+          results.getString(ordinals[3]), results.getString(ordinals[4]),
+          results.getString(ordinals[5]), results.getInt(ordinals[6]),
+          results.getInt(ordinals[7]), results.getInt(ordinals[8]));
+      if (pool != null) {
+        pool.put(flight);
+      }
+    }
+    if (canceledOrdinal != 0) {
+      flight.canceled = results.getInt(canceledOrdinal) != 0;
+    }
+    return flight;
+  }
+}
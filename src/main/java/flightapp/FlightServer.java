@@ -0,0 +1,301 @@
+package flightapp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Network front end of {@link FlightService}: a TCP line protocol, one command per line, with
+ * every connection a session of its own. Each response is written as {@link FlightService#execute}
+ * returns it, ending in a newline, and followed by an empty line, so a client knows where a
+ * multi-line response ends. A connection ends at {@code quit}, when the client closes it, or after
+ * {@code idleTimeoutMillis} without a command.
+ *
+ * Each connection has a thread of its own, blocked in a read while the client is idle. On Java 21
+ * and later these are virtual threads, so tens of thousands of idle clients cost a few platform
+ * threads; on older runtimes they fall back to platform threads with small stacks. The session's
+ * {@link Query} is opened on its first command, so an idle client holds no database connection.
+ * Beyond {@code maxConnections} open connections, new clients are told the server is busy and
+ * closed at once.
+ *
+ * {@link #close} stops accepting, lets the commands in flight finish and answers them, then closes
+ * every connection; connections still busy after the grace period are closed anyway.
+ */
+public class FlightServer implements AutoCloseable {
+  static final String BUSY = "Server busy, retry later\n";
+  static final String IDLE = "Idle timeout, goodbye\n";
+  static final String SHUTDOWN = "Server shutting down, goodbye\n";
+
+  private static final int BACKLOG = 1024;
+  // stack of a platform connection thread; a session only ever needs a shallow one
+  private static final long STACK_SIZE = 256 * 1024;
+
+  private class Connection implements Runnable {
+    final Socket socket;
+    // guarded by this
+    boolean busy;
+
+    Connection(Socket socket) {
+      this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+      Query session = null;
+      try (Socket s = socket;
+          BufferedReader in = new BufferedReader(
+              new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+          Writer out = new BufferedWriter(
+              new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+        s.setSoTimeout((int) idleTimeoutMillis);
+        s.setTcpNoDelay(true);
+        while (true) {
+          String command;
+          try {
+            command = in.readLine();
+          } catch (SocketTimeoutException e) {
+            respond(out, IDLE);
+            return;
+          }
+          if (command == null) {
+            if (closing) {
+              break; // input shut down by close
+            }
+            return;
+          }
+          if (command.trim().isEmpty()) {
+            continue;
+          }
+          synchronized (this) {
+            if (closing) {
+              break;
+            }
+            busy = true;
+          }
+          if (session == null) {
+            session = sessions.open();
+            session.setClient(s.getInetAddress().getHostAddress());
+          }
+          String response;
+          try {
+            response = FlightService.execute(session, command);
+          } catch (RuntimeException e) {
+            // a failed command ends neither the session nor the connection
+            e.printStackTrace();
+            response = "Error: command failed\n";
+          }
+          commands.increment();
+          respond(out, response);
+          if (response.equals("Goodbye\n")) {
+            return;
+          }
+          synchronized (this) {
+            busy = false;
+            if (closing) {
+              break;
+            }
+          }
+        }
+        respond(out, SHUTDOWN);
+      } catch (IOException | SQLException e) {
+        // client went away, was closed at shutdown, or no session could be opened
+      } finally {
+        if (session != null) {
+          try {
+            session.closeConnection();
+          } catch (SQLException e) {
+            // the session is gone either way
+          }
+        }
+        open.remove(this);
+        permits.release();
+      }
+    }
+
+    // wakes the thread if it is waiting for a command; a busy one sees closing when it is done
+    synchronized void stopReading() {
+      if (!busy) {
+        try {
+          socket.shutdownInput();
+        } catch (IOException e) {
+          // already closed
+        }
+      }
+    }
+  }
+
+  private final FlightService.SessionFactory sessions;
+  private final long idleTimeoutMillis;
+  private final ServerSocket server;
+  private final Semaphore permits;
+  private final ThreadFactory threads = connectionThreads();
+  private final Set<Connection> open = ConcurrentHashMap.newKeySet();
+  private final LongAdder commands = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final Thread acceptor;
+  private final CountDownLatch terminated = new CountDownLatch(1);
+  private volatile boolean closing;
+
+  /**
+   * @param port              0 for any free port, see {@link #port}
+   * @param sessions          opens the session of each connection
+   * @param maxConnections    connections served at once
+   * @param idleTimeoutMillis time a connection may wait for its next command, 0 for no limit
+   */
+  public FlightServer(int port, FlightService.SessionFactory sessions, int maxConnections,
+      long idleTimeoutMillis) throws IOException {
+    this.sessions = sessions;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.permits = new Semaphore(maxConnections);
+    this.server = new ServerSocket(port, BACKLOG);
+    // not a daemon, so a server started from main keeps its JVM alive
+    acceptor = new Thread(this::accept, "flight-server-acceptor");
+    acceptor.start();
+  }
+
+  /**
+   * @return the port the server listens on
+   */
+  public int port() {
+    return server.getLocalPort();
+  }
+
+  /**
+   * @return the connections open right now
+   */
+  public int connections() {
+    return open.size();
+  }
+
+  /**
+   * @return the commands executed since the server started
+   */
+  public long commands() {
+    return commands.sum();
+  }
+
+  /**
+   * @return the clients turned away because {@code maxConnections} were open
+   */
+  public long rejected() {
+    return rejected.sum();
+  }
+
+  /**
+   * @return true if connections run on virtual threads
+   */
+  public static boolean virtualThreads() {
+    return virtualThreadFactory() != null;
+  }
+
+  private void accept() {
+    while (!closing) {
+      Socket socket;
+      try {
+        socket = server.accept();
+      } catch (IOException e) {
+        return; // closed
+      }
+      if (!permits.tryAcquire()) {
+        rejected.increment();
+        try (Socket s = socket) {
+          s.getOutputStream().write((BUSY + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+          // client went away
+        }
+        continue;
+      }
+      Connection connection = new Connection(socket);
+      open.add(connection);
+      if (closing) {
+        // close may have stopped the open connections before this one was added
+        connection.stopReading();
+      }
+      threads.newThread(connection).start();
+    }
+  }
+
+  private static void respond(Writer out, String response) throws IOException {
+    out.write(response);
+    out.write(response.endsWith("\n") ? "\n" : "\n\n");
+    out.flush();
+  }
+
+  /**
+   * Shuts down with the grace period of flightapp.server.shutdownGraceMillis (default 10000)
+   */
+  @Override
+  public void close() {
+    shutdown(Long.getLong("flightapp.server.shutdownGraceMillis", 10_000));
+  }
+
+  /**
+   * Stops accepting connections, answers the commands in flight and closes every connection,
+   * forcibly once {@code graceMillis} have passed
+   */
+  public void shutdown(long graceMillis) {
+    closing = true;
+    try {
+      server.close();
+    } catch (IOException e) {
+      // not accepting either way
+    }
+    for (Connection connection : open) {
+      connection.stopReading();
+    }
+    long deadline = System.nanoTime() + graceMillis * 1_000_000;
+    try {
+      acceptor.join(graceMillis);
+      while (!open.isEmpty() && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Connection connection : open) {
+      try {
+        connection.socket.close();
+      } catch (IOException e) {
+        // already closed
+      }
+    }
+    terminated.countDown();
+  }
+
+  /**
+   * Waits until {@link #shutdown} has closed every connection
+   */
+  public void awaitTermination() throws InterruptedException {
+    terminated.await();
+  }
+
+  // virtual threads where the runtime has them, otherwise daemon platform threads
+  private static ThreadFactory connectionThreads() {
+    ThreadFactory virtual = virtualThreadFactory();
+    if (virtual != null) {
+      return virtual;
+    }
+    return r -> {
+      Thread thread = new Thread(null, r, "flight-server-connection", STACK_SIZE);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  // Thread.ofVirtual().name(...).factory(), looked up reflectively so this compiles on Java 17
+  private static ThreadFactory virtualThreadFactory() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+      builder = builderType.getMethod("name", String.class, long.class)
+          .invoke(builder, "flight-server-connection-", 0L);
+      return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+}
@@ -1,35 +1,106 @@
 package flightapp;
 
 import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 import java.sql.*;
 
 public class FlightService {
 
+  /** Command types with their own in-flight counter; anything else counts as "other" */
+  private static final Set<String> COMMANDS = new HashSet<>(Arrays.asList("login", "resume", "create",
+      "search", "book", "waitlist", "reservations", "pay", "cancel"));
+
+  private static final Pattern TOKEN = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+
+  // buffer size of the batch mode reader and writer
+  private static final int BATCH_BUFFER = 1 << 16;
+
+  /** Admission limits shared by every session in this process, adjustable at runtime */
+  public static final AdmissionControl admission = AdmissionControl.fromSystemProperties();
+
   /**
-   * Execute the specified command on the database query connection
+   * Execute the specified command on the database query connection, unless admission control
+   * rejects it. A command still running at its {@link Deadline} is stopped and rolled back.
    */
   public static String execute(Query q, String command) {
     String[] tokens = tokenize(command.trim());
-    String response;
 
     // empty input
     if (tokens.length == 0) {
-      response = "Please enter a command";
+      return "Please enter a command";
+    }
+    if (tokens[0].equals("quit")) {
+      return "Goodbye\n";
+    }
+
+    String type = COMMANDS.contains(tokens[0]) ? tokens[0] : "other";
+    long retryAfter = admission.tryAdmit(admissionKey(q), type);
+    if (retryAfter > 0) {
+      return "Overloaded, retry after " + retryAfter + " ms\n";
+    }
+    Trace.begin(tokens[0]);
+    Deadline.begin(type);
+    try {
+      String response;
+      try {
+        response = dispatch(q, tokens);
+      } catch (NumberFormatException e) {
+        // every number is parsed before the command touches the session
+        response = "Error: Failed to parse integer\n";
+      }
+      if (Deadline.end()) {
+        return "Timed out after " + Deadline.timeoutMillis(type) + " ms\n";
+      }
+      return response;
+    } finally {
+      Deadline.end(); // already ended unless dispatch threw
+      Trace.end();
+      admission.done(type);
     }
+  }
+
+  /**
+   * Bucket of the session's user. Sessions not logged in share a bucket per client address, or a
+   * single one for local sessions, so reconnecting does not get a fresh bucket.
+   */
+  static String admissionKey(Query q) {
+    String user = q.getUser();
+    if (user != null) {
+      return user.toLowerCase(Locale.ROOT);
+    }
+    return q.getClient() == null ? "anonymous" : "anonymous@" + q.getClient();
+  }
+
+  private static String dispatch(Query q, String[] tokens) {
+    String response;
 
     // login
-    else if (tokens[0].equals("login")) {
+    if (tokens[0].equals("login")) {
       if (tokens.length == 3) {
         String username = tokens[1];
         String password = tokens[2];
         response = q.transaction_login(username, password);
+      } else if (tokens.length == 4 && tokens[3].equals("token")) {
+        response = q.transaction_login(tokens[1], tokens[2], true);
       } else {
         response = "Error: Please provide a username and password";
       }
     }
 
+    // resume
+    else if (tokens[0].equals("resume")) {
+      if (tokens.length == 2) {
+        response = q.transaction_resume(tokens[1]);
+      } else {
+        response = "Error: Please provide a session token";
+      }
+    }
+
     // create
     else if (tokens[0].equals("create")) {
       if (tokens.length == 4) {
@@ -44,14 +115,26 @@ public class FlightService {
 
     // search
     else if (tokens[0].equals("search")) {
-      if (tokens.length == 6) {
+      if (tokens.length == 6 || tokens.length == 7) {
         String originCity = tokens[1];
         String destinationCity = tokens[2];
         boolean direct = tokens[3].equals("1");
         try {
           int day = Integer.valueOf(tokens[4]);
           int count = Integer.valueOf(tokens[5]);
-          response = q.transaction_search(originCity, destinationCity, direct, day, count);
+          boolean pareto = tokens.length == 7 && tokens[6].equals("pareto");
+          boolean available = tokens.length == 7 && tokens[6].equals("available");
+          int maxLegs = tokens.length == 7 && !pareto && !available
+              ? Integer.valueOf(tokens[6]) : 2;
+          if (pareto) {
+            response = q.transaction_searchSkyline(originCity, destinationCity, direct, day, count);
+          } else if (available) {
+            response = q.transaction_searchAvailable(originCity, destinationCity, direct, day, count);
+          } else if (!direct && maxLegs > 2) {
+            response = q.transaction_search(originCity, destinationCity, day, count, maxLegs);
+          } else {
+            response = q.transaction_search(originCity, destinationCity, direct, day, count);
+          }
         } catch (NumberFormatException e) {
           response = "Failed to parse integer";
         }
@@ -65,11 +148,19 @@ public class FlightService {
       if (tokens.length == 2) {
         int itinerary_id = Integer.parseInt(tokens[1]);
         response = q.transaction_book(itinerary_id);
+      } else if (tokens.length == 3 && tokens[2].equals("wait")) {
+        int itinerary_id = Integer.parseInt(tokens[1]);
+        response = q.transaction_book(itinerary_id, true);
       } else {
         response = "Error: Please provide an itinerary_id";
       }
     }
 
+    // waitlist
+    else if (tokens[0].equals("waitlist")) {
+      response = q.transaction_waitlist();
+    }
+
     // reservations
     else if (tokens[0].equals("reservations")) {
       response = q.transaction_reservations();
@@ -77,9 +168,12 @@ public class FlightService {
 
     // pay
     else if (tokens[0].equals("pay")) {
-      if (tokens.length == 2) {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        response = q.transaction_pay(reservation_id);
+      if (tokens.length >= 2) {
+        List<Integer> reservation_ids = new ArrayList<>();
+        for (int i = 1; i < tokens.length; i++) {
+          reservation_ids.add(Integer.parseInt(tokens[i]));
+        }
+        response = q.transaction_pay(reservation_ids);
       } else {
         response = "Error: Please provide a reservation_id";
       }
@@ -95,11 +189,6 @@ public class FlightService {
       }
     }
 
-    // quit
-    else if (tokens[0].equals("quit")) {
-      response = "Goodbye\n";
-    }
-
     // unknown command
     else {
       response = "Error: unrecognized command '" + tokens[0] + "'";
@@ -110,16 +199,242 @@ public class FlightService {
 
   /**
    * Establishes an application-to-database connection and runs the Flights
-   * application REPL
+   * application REPL. With {@code --demo [flights.csv]} the session runs on an
+   * ephemeral in-memory backend instead, seeded from the CSV file or, if none is
+   * given, from the Flights table. With {@code --waitlist}, full bookings can be
+   * queued with {@code book <itinerary id> wait}. With {@code --cluster
+   * host:port,...}, seats are taken from the seat nodes of that cluster instead of
+   * the backend. With {@code --outbox events.log}, booking events are relayed
+   * from the outbox to that file. With {@code --batch [--threads N] [file...]},
+   * the commands are read from the files (or stdin) without prompts; see
+   * {@link #batch}. With {@code --serve <port>}, sessions are served over TCP
+   * instead; see {@link #serve}.
    * 
    * @param args
    * @throws IOException
    */
   public static void main(String[] args) throws IOException, SQLException {
+    List<String> options = new ArrayList<>(Arrays.asList(args));
+    boolean waitlisted = options.remove("--waitlist");
+    boolean demo = options.remove("--demo");
+    SeatCluster cluster = null;
+    int clusterOption = options.indexOf("--cluster");
+    if (clusterOption >= 0) {
+      options.remove(clusterOption);
+      cluster = new SeatCluster(Arrays.asList(options.remove(clusterOption).split(",")));
+    }
+    List<Path> batchFiles = null;
+    int threads = 1;
+    int batchOption = options.indexOf("--batch");
+    if (batchOption >= 0) {
+      batchFiles = new ArrayList<>();
+      List<String> batchArgs = options.subList(batchOption, options.size());
+      for (int i = 1; i < batchArgs.size(); i++) {
+        if (batchArgs.get(i).equals("--threads")) {
+          threads = Integer.parseInt(batchArgs.get(++i));
+        } else {
+          batchFiles.add(Paths.get(batchArgs.get(i)));
+        }
+      }
+      batchArgs.clear();
+    }
+    int servePort = -1;
+    int serveOption = options.indexOf("--serve");
+    if (serveOption >= 0) {
+      options.remove(serveOption);
+      servePort = Integer.parseInt(options.remove(serveOption));
+    }
+    String outboxFile = null;
+    int outboxOption = options.indexOf("--outbox");
+    if (outboxOption >= 0) {
+      options.remove(outboxOption);
+      outboxFile = options.remove(outboxOption);
+    }
+
     /* prepare the database connection stuff */
-    Query q = new Query();
-    menu(q);
+    FlightStorage storage = demo ? openDemoStorage(options)
+        : new JdbcFlightStorage(Query.openConnectionFromDbConn());
+    if (cluster != null) {
+      storage = new ClusterFlightStorage(storage, cluster);
+    }
+    Waitlist waitlist = null;
+    if (waitlisted) {
+      // the allocator books on its own connection
+      FlightStorage allocatorStorage = storage;
+      if (!demo) {
+        allocatorStorage = new JdbcFlightStorage(Query.openConnectionFromDbConn());
+        if (cluster != null) {
+          allocatorStorage = new ClusterFlightStorage(allocatorStorage, cluster);
+        }
+      }
+      waitlist = new Waitlist(allocatorStorage);
+    }
+    OutboxRelay relay = null;
+    if (outboxFile != null) {
+      // the relay polls on its own connection
+      relay = new OutboxRelay(demo ? storage : new JdbcFlightStorage(Query.openConnectionFromDbConn()),
+          100, 200);
+      relay.subscribe("file:" + outboxFile, OutboxRelay.fileSink(Paths.get(outboxFile)));
+      relay.start();
+    }
+    Query q = new Query(storage, waitlist);
+    FlightStorage shared = storage;
+    SeatCluster sessionCluster = cluster;
+    Waitlist sessionWaitlist = waitlist;
+    SessionFactory sessions = () -> {
+      if (demo) {
+        return new Query(shared, sessionWaitlist); // in-memory sessions share the backend
+      }
+      FlightStorage own = new JdbcFlightStorage(Query.openConnectionFromDbConn());
+      return new Query(sessionCluster == null ? own : new ClusterFlightStorage(own, sessionCluster),
+          sessionWaitlist);
+    };
+    if (batchFiles != null) {
+      batch(q, batchFiles, threads, sessions);
+    } else if (servePort >= 0) {
+      serve(servePort, sessions);
+    } else {
+      menu(q);
+    }
     q.closeConnection();
+    if (waitlist != null) {
+      waitlist.close();
+    }
+    if (relay != null) {
+      relay.close();
+    }
+    if (cluster != null) {
+      cluster.close();
+    }
+  }
+
+  /**
+   * Serves sessions over TCP until the process is stopped; see {@link FlightServer}. Connections
+   * are limited by flightapp.server.maxConnections (default 10000) and closed after
+   * flightapp.server.idleTimeoutMillis (default 300000, 0 for none) without a command.
+   */
+  static void serve(int port, SessionFactory sessions) throws IOException {
+    FlightServer server = new FlightServer(port, sessions,
+        Integer.getInteger("flightapp.server.maxConnections", 10_000),
+        Long.getLong("flightapp.server.idleTimeoutMillis", 300_000));
+    Runtime.getRuntime().addShutdownHook(new Thread(server::close, "flight-server-shutdown"));
+    System.out.println("flight server listening on port " + server.port()
+        + (FlightServer.virtualThreads() ? " (virtual threads)" : ""));
+    try {
+      server.awaitTermination();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Creates the session of one command file in batch mode, or of one connection to the server
+   */
+  interface SessionFactory {
+    Query open() throws IOException, SQLException;
+  }
+
+  /**
+   * Runs command files without prompts or menu: one command per line, blank lines skipped, each
+   * response written as {@link #menu} would print it. Stdin is read when no file is given. Every file is a session of
+   * its own, ending at its last line or at {@code quit}. The first file runs on {@code q}; with
+   * more than one thread the others run concurrently on sessions from {@code sessions}, and each
+   * file's responses are written in file order once it is done.
+   */
+  static void batch(Query q, List<Path> files, int threads, SessionFactory sessions)
+      throws IOException, SQLException {
+    Writer out = new BufferedWriter(
+        Channels.newWriter(Channels.newChannel(System.out), StandardCharsets.UTF_8), BATCH_BUFFER);
+    try {
+      if (files.isEmpty()) {
+        run(q, new BufferedReader(Channels.newReader(Channels.newChannel(System.in),
+            StandardCharsets.UTF_8), BATCH_BUFFER), out);
+        return;
+      }
+      if (threads <= 1 || files.size() == 1) {
+        for (int i = 0; i < files.size(); i++) {
+          Query session = i == 0 ? q : sessions.open();
+          try (BufferedReader in = open(files.get(i))) {
+            run(session, in, out);
+          } finally {
+            if (session != q) {
+              session.closeConnection();
+            }
+          }
+        }
+        return;
+      }
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try {
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+          Path file = files.get(i);
+          boolean first = i == 0;
+          results.add(pool.submit(() -> {
+            Query session = first ? q : sessions.open();
+            StringWriter responses = new StringWriter();
+            try (BufferedReader in = open(file)) {
+              run(session, in, responses);
+            } finally {
+              if (session != q) {
+                session.closeConnection();
+              }
+            }
+            return responses.toString();
+          }));
+        }
+        for (Future<String> result : results) {
+          out.write(result.get());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        if (e.getCause() instanceof SQLException) {
+          throw (SQLException) e.getCause();
+        }
+        throw new RuntimeException(e.getCause());
+      } finally {
+        pool.shutdownNow();
+      }
+    } finally {
+      out.flush();
+    }
+  }
+
+  private static BufferedReader open(Path file) throws IOException {
+    return new BufferedReader(
+        Channels.newReader(FileChannel.open(file), StandardCharsets.UTF_8), BATCH_BUFFER);
+  }
+
+  // executes every command of one session
+  private static void run(Query q, BufferedReader in, Writer out) throws IOException {
+    String command;
+    while ((command = in.readLine()) != null) {
+      if (command.trim().isEmpty()) {
+        continue;
+      }
+      String response = execute(q, command);
+      out.write(response);
+      if (response.equals("Goodbye\n")) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Loads the flights for demo mode into a fresh in-memory backend, from the CSV
+   * file given as the first remaining argument or else from the Flights table
+   */
+  static InMemoryFlightStorage openDemoStorage(List<String> args) throws IOException, SQLException {
+    if (!args.isEmpty()) {
+      return InMemoryFlightStorage.fromCsv(Paths.get(args.get(0)));
+    }
+    try (Connection conn = Query.openConnectionFromDbConn()) {
+      return InMemoryFlightStorage.fromConnection(conn);
+    }
   }
 
   /**
@@ -130,23 +445,28 @@ public class FlightService {
    * @throws IOException
    */
   private static void menu(Query q) throws IOException {
+    BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
     while (true) {
       // print the command options
       System.out.println();
       System.out.println(" *** Please enter one of the following commands *** ");
       System.out.println("> create <username> <password> <initial amount>");
-      System.out.println("> login <username> <password>");
-      System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
-      System.out.println("> book <itinerary id>");
-      System.out.println("> pay <reservation id>");
+      System.out.println("> login <username> <password> [token]");
+      System.out.println("> resume <session token>");
+      System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries> [max legs | pareto | available]");
+      System.out.println("> book <itinerary id> [wait]");
+      System.out.println("> pay <reservation id> [reservation id...]");
       System.out.println("> reservations");
+      System.out.println("> waitlist");
       System.out.println("> cancel <reservation id>");
       System.out.println("> quit");
 
       // read an input command from the REPL
-      BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
       System.out.print("> ");
       String command = r.readLine();
+      if (command == null) {
+        break; // end of input
+      }
 
       // execute the given input command
       String response = execute(q, command);
@@ -161,8 +481,7 @@ public class FlightService {
    * Tokenize a string into a string array
    */
   private static String[] tokenize(String command) {
-    String regex = "\"([^\"]*)\"|(\\S+)";
-    Matcher m = Pattern.compile(regex).matcher(command);
+    Matcher m = TOKEN.matcher(command);
     List<String> tokens = new ArrayList<>();
     while (m.find()) {
       if (m.group(1) != null)
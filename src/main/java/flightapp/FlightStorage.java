@@ -0,0 +1,217 @@
+package flightapp;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Data access for the flight service: users, flights, itineraries, reservations and capacities.
+ *
+ * Every method is one unit of work. Mutating calls must be atomic with respect to other sessions
+ * sharing the same backend; the business rules and response formatting stay in {@link Query}.
+ */
+public interface FlightStorage {
+
+  /**
+   * Number of escrow buckets each flight's remaining seats are split into
+   */
+  int SEAT_BUCKETS = Integer.getInteger("flightapp.seatBuckets", 8);
+
+  /**
+   * Clear the data in any custom tables. Flights are never cleared.
+   */
+  void clearTables() throws SQLException;
+
+  /**
+   * @return false if the username is already taken
+   */
+  boolean createUser(String username, byte[] passwordHash, byte[] salt, int balance)
+      throws SQLException;
+
+  /**
+   * @return the user's salt, or null if the user does not exist
+   */
+  byte[] getSalt(String username) throws SQLException;
+
+  /**
+   * @return true if the user exists and the password hash matches
+   */
+  boolean checkPassword(String username, byte[] passwordHash) throws SQLException;
+
+  /**
+   * Finds up to {@code count} non-canceled itineraries: the shortest direct flights, topped up with
+   * the shortest one-hop itineraries on the same day when there are fewer than {@code count} direct
+   * flights and {@code directOnly} is false.
+   *
+   * @return the itineraries in final display order: total time, then first and second fid
+   */
+  List<Itinerary> searchItineraries(String originCity, String destCity, boolean directOnly,
+      int dayOfMonth, int count) throws SQLException;
+
+  /**
+   * Searches like {@link #searchItineraries}, but leaves out itineraries with a sold-out flight,
+   * as far as the backend knows without booking.
+   *
+   * @return up to {@code count} itineraries in display order, with {@code seatsLeft} set to each
+   *         flight's remaining seats
+   */
+  List<Itinerary> searchAvailable(String originCity, String destCity, boolean directOnly,
+      int dayOfMonth, int count) throws SQLException;
+
+  /**
+   * Finds the price/duration skyline of the non-canceled direct and (unless {@code directOnly})
+   * one-hop itineraries: those for which no other itinerary is both no slower and cheaper, or
+   * faster and no more expensive. See {@link Skyline}.
+   *
+   * @return up to {@code count} itineraries, fastest first, each cheaper than the one before
+   */
+  List<Itinerary> searchSkyline(String originCity, String destCity, boolean directOnly,
+      int dayOfMonth, int count) throws SQLException;
+
+  /**
+   * Longest itineraries a multi-leg search may return
+   */
+  int MAX_LEGS = Integer.getInteger("flightapp.maxLegs", 4);
+
+  /**
+   * Time a multi-leg search may take before it returns the itineraries found so far
+   */
+  long MULTI_LEG_BUDGET_NANOS = Long.getLong("flightapp.multiLegBudgetMillis", 200) * 1_000_000;
+
+  /**
+   * Finds up to {@code count} non-canceled itineraries of one to {@code maxLegs} legs (at most
+   * {@link #MAX_LEGS}) that visit no city twice, skipping flights known to be full. See
+   * {@link RouteGraph}.
+   *
+   * @return the itineraries in final display order: total time, then fids
+   */
+  List<Itinerary> searchMultiLeg(String originCity, String destCity, int dayOfMonth, int maxLegs,
+      int count) throws SQLException;
+
+  /**
+   * @return true if the user already holds a reservation on the given day
+   */
+  boolean hasReservationOnDay(String username, int dayOfMonth) throws SQLException;
+
+  /**
+   * Takes one seat on every flight of the itinerary and records an unpaid reservation.
+   *
+   * @return the new reservation ID, or -1 if a flight is full
+   */
+  int bookItinerary(String username, Itinerary itinerary) throws SQLException;
+
+  /**
+   * Records an unpaid reservation without taking seats from this backend, for seats that are held
+   * elsewhere (see {@link ClusterFlightStorage}).
+   *
+   * @return the new reservation ID, or -1 if a flight was canceled
+   */
+  int recordReservation(String username, Itinerary itinerary) throws SQLException;
+
+  /**
+   * @return the price of the user's unpaid reservation, or -1 if there is no such reservation
+   */
+  int getUnpaidReservationPrice(String username, int reservationId) throws SQLException;
+
+  /**
+   * @return the user's balance, or -1 if the user does not exist
+   */
+  int getBalance(String username) throws SQLException;
+
+  /**
+   * Debits the reservation's price from the user's balance and marks it paid.
+   *
+   * @return the remaining balance, or -1 if the reservation is not unpaid or the balance is too low
+   */
+  int payReservation(String username, int reservationId) throws SQLException;
+
+  /**
+   * Debits the total price of the reservations from the user's balance once and marks them all
+   * paid, in one transaction, checking ownership and funds along the way rather than in reads of
+   * their own. Repeated IDs count once.
+   *
+   * @return the payment, which names the first reservation that is not the user's unpaid one, or
+   *         the balance and total if the balance is too low, in which case none is paid; null if
+   *         the account kept changing underneath the payment
+   */
+  Payment payReservations(String username, List<Integer> reservationIds) throws SQLException;
+
+  /**
+   * Cancels a reservation, refunding the user if it was paid and returning its seats.
+   *
+   * @return the canceled reservation, with {@code paid} telling whether it was refunded, or null if
+   *         the user has no uncanceled reservation with this ID
+   */
+  default Reservation cancelReservation(String username, int reservationId) throws SQLException {
+    return cancelReservation(username, reservationId, true);
+  }
+
+  /**
+   * Cancels a reservation as {@link #cancelReservation(String, int)} does, but leaves its seats
+   * to the caller unless {@code releaseSeats} is set.
+   */
+  Reservation cancelReservation(String username, int reservationId, boolean releaseSeats)
+      throws SQLException;
+
+  /**
+   * Cancels a batch of reservations in one transaction, as {@link #cancelReservation}.
+   *
+   * @return the reservations that were canceled; ones already canceled are skipped
+   */
+  List<Reservation> cancelReservations(List<Reservation> reservations) throws SQLException;
+
+  /**
+   * Re-accommodates a batch of reservations in one transaction: each is canceled as by
+   * {@link #cancelReservation}, and its user booked on the first of its candidates with a seat on
+   * every flight. Either the whole batch commits or none of it does, so no reservation is canceled
+   * without its candidates having been tried.
+   *
+   * @return the rebookings, with their outcome filled in
+   */
+  List<Rebooking> rebookReservations(List<Rebooking> rebookings) throws SQLException;
+
+  /**
+   * Marks a flight canceled so it no longer shows up in searches or reservations.
+   *
+   * @return false if the flight does not exist or was already canceled
+   */
+  boolean cancelFlight(int fid) throws SQLException;
+
+  /**
+   * Keyset page of the uncanceled reservations that include the flight.
+   *
+   * @return up to {@code limit} reservations with IDs greater than {@code afterId}, in ID order
+   */
+  List<Reservation> getReservationsOnFlight(int fid, int afterId, int limit) throws SQLException;
+
+  /**
+   * @return the user's reservations in increasing reservation ID order
+   */
+  List<Reservation> getReservations(String username) throws SQLException;
+
+  /**
+   * Reads the outbox, where booking, payment and cancellation record a {@link BookingEvent} in the
+   * same transaction as the change. An event becomes visible only after every event with a lower
+   * sequence number that will ever commit has.
+   *
+   * @return up to {@code limit} events with sequence numbers greater than {@code afterSeq}, in
+   *         order
+   */
+  List<BookingEvent> readEvents(long afterSeq, int limit) throws SQLException;
+
+  /**
+   * Deletes the outbox events up to and including {@code throughSeq}
+   */
+  void purgeEvents(long throughSeq) throws SQLException;
+
+  /**
+   * @return the sequence number of the last event the subscriber has processed, or 0 if none
+   */
+  long getSubscriberOffset(String subscriber) throws SQLException;
+
+  void saveSubscriberOffset(String subscriber, long seq) throws SQLException;
+
+  /**
+   * Releases the resources held for one session.
+   */
+  void close() throws SQLException;
+}
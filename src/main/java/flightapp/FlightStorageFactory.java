@@ -0,0 +1,12 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Opens a new storage backend, for jobs that need one per worker thread
+ */
+@FunctionalInterface
+public interface FlightStorageFactory {
+  FlightStorage open() throws IOException, SQLException;
+}
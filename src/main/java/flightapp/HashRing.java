@@ -0,0 +1,74 @@
+package flightapp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Consistent-hash ring assigning fids to seat nodes. Each node is placed at {@link #VNODES} points
+ * on a 64-bit ring and owns the fids hashing between its points and the previous ones, so adding or
+ * removing a node only moves the fids next to its own points.
+ *
+ * Immutable: membership changes build a new ring.
+ */
+public class HashRing {
+  // points per node; more points spread fids more evenly
+  static final int VNODES = 64;
+
+  private final TreeMap<Long, String> points = new TreeMap<>();
+  private final List<String> nodes;
+
+  public HashRing(Collection<String> nodes) {
+    this.nodes = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(nodes)));
+    for (String node : this.nodes) {
+      for (int i = 0; i < VNODES; i++) {
+        points.put(hash(node + "#" + i), node);
+      }
+    }
+  }
+
+  /**
+   * @return the node owning the fid, or null if the ring is empty
+   */
+  public String owner(int fid) {
+    if (points.isEmpty()) {
+      return null;
+    }
+    Map.Entry<Long, String> point = points.ceilingEntry(mix(fid));
+    return (point == null ? points.firstEntry() : point).getValue();
+  }
+
+  /**
+   * @return the nodes in sorted order
+   */
+  public List<String> nodes() {
+    return nodes;
+  }
+
+  public HashRing with(String node) {
+    List<String> members = new ArrayList<>(nodes);
+    members.add(node);
+    return new HashRing(members);
+  }
+
+  public HashRing without(String node) {
+    List<String> members = new ArrayList<>(nodes);
+    members.remove(node);
+    return new HashRing(members);
+  }
+
+  // FNV-1a over the name, finished with the same mixer as fids
+  private static long hash(String name) {
+    long h = 0xcbf29ce484222325L;
+    for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+      h = (h ^ (b & 0xff)) * 0x100000001b3L;
+    }
+    return mix(h);
+  }
+
+  // splitmix64 finalizer: spreads consecutive fids over the whole ring
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -0,0 +1,731 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.IntPredicate;
+
+/**
+ * Concurrent in-memory storage backend, used for load testing and the ephemeral demo mode.
+ *
+ * Flights are loaded once and indexed by (day, origin, dest) so searches never scan. Seats are
+ * lock-free {@link SeatBuckets} per fid; everything else owned by a user is guarded by that user's account
+ * lock, so sessions of different users never contend. One instance is shared by all sessions and
+ * {@link #close()} is a no-op.
+ */
+public class InMemoryFlightStorage implements FlightStorage {
+
+  /**
+   * Per-user state. All fields other than the immutable credentials are guarded by the account.
+   */
+  private static class Account {
+    final byte[] passwordHash;
+    final byte[] salt;
+    int balance;
+    final TreeMap<Integer, Reservation> reservations = new TreeMap<>();
+
+    Account(byte[] passwordHash, byte[] salt, int balance) {
+      this.passwordHash = passwordHash;
+      this.salt = salt;
+      this.balance = balance;
+    }
+  }
+
+  private static final Comparator<Flight> BY_TIME =
+      Comparator.comparingInt((Flight f) -> f.time).thenComparingInt(f -> f.fid);
+
+  // immutable once built, shared by forks
+  private final Map<Integer, Flight> flightsById;
+  // "day|origin|dest" -> flights sorted by actual time, then fid
+  private final Map<String, List<Flight>> flightsByRoute;
+  // "day|origin|dest" -> for each position in the route, the lowest price from there on
+  private final Map<String, int[]> cheapestByRoute;
+  // "day|origin" -> flights leaving that city on that day
+  private final Map<String, List<Flight>> flightsByOrigin;
+  // day -> graph for multi-leg search
+  private final Map<Integer, RouteGraph> graphsByDay;
+
+  // flights canceled through this backend; the shared flights keep the canceled flag they were
+  // loaded with, so a fork's cancellations stay its own
+  private final Set<Integer> canceledFids = ConcurrentHashMap.newKeySet();
+
+  private final ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Integer, SeatBuckets> seats = new ConcurrentHashMap<>();
+  private final AtomicInteger nextReservationId = new AtomicInteger(1);
+  // every reservation by ID; mutable fields are still guarded by the owner's account
+  private final ConcurrentSkipListMap<Integer, Reservation> reservationsById =
+      new ConcurrentSkipListMap<>();
+  // outbox by sequence number; appends hold outboxLock so sequence order is visibility order
+  private final ConcurrentSkipListMap<Long, BookingEvent> outbox = new ConcurrentSkipListMap<>();
+  private final Object outboxLock = new Object();
+  private long lastSeq = 0; // guarded by outboxLock
+  private final ConcurrentHashMap<String, Long> subscriberOffsets = new ConcurrentHashMap<>();
+
+  public InMemoryFlightStorage(Collection<Flight> flights) {
+    flightsById = new HashMap<>();
+    flightsByRoute = new HashMap<>();
+    cheapestByRoute = new HashMap<>();
+    flightsByOrigin = new HashMap<>();
+    for (Flight f : flights) {
+      flightsById.put(f.fid, f);
+      flightsByRoute.computeIfAbsent(routeKey(f.dayOfMonth, f.originCity, f.destCity),
+          k -> new ArrayList<>()).add(f);
+      flightsByOrigin.computeIfAbsent(originKey(f.dayOfMonth, f.originCity),
+          k -> new ArrayList<>()).add(f);
+    }
+    for (Map.Entry<String, List<Flight>> route : flightsByRoute.entrySet()) {
+      route.getValue().sort(BY_TIME);
+      int[] cheapest = new int[route.getValue().size()];
+      for (int i = cheapest.length - 1; i >= 0; i--) {
+        cheapest[i] = Math.min(route.getValue().get(i).price,
+            i + 1 < cheapest.length ? cheapest[i + 1] : Integer.MAX_VALUE);
+      }
+      cheapestByRoute.put(route.getKey(), cheapest);
+    }
+    Map<Integer, List<Flight>> flightsByDay = new HashMap<>();
+    for (Flight f : flights) {
+      flightsByDay.computeIfAbsent(f.dayOfMonth, d -> new ArrayList<>()).add(f);
+    }
+    graphsByDay = new HashMap<>();
+    for (Map.Entry<Integer, List<Flight>> day : flightsByDay.entrySet()) {
+      graphsByDay.put(day.getKey(), new RouteGraph(day.getValue()));
+    }
+  }
+
+  private InMemoryFlightStorage(InMemoryFlightStorage template) {
+    flightsById = template.flightsById;
+    flightsByRoute = template.flightsByRoute;
+    cheapestByRoute = template.cheapestByRoute;
+    flightsByOrigin = template.flightsByOrigin;
+    graphsByDay = template.graphsByDay;
+  }
+
+  /**
+   * Returns an empty, independent backend over the same flights, without re-indexing them
+   */
+  public InMemoryFlightStorage fork() {
+    return new InMemoryFlightStorage(this);
+  }
+
+  /**
+   * Loads every flight from the Flights table of the given connection
+   */
+  public static InMemoryFlightStorage fromConnection(Connection conn) throws SQLException {
+    List<Flight> flights = new ArrayList<>();
+    try (Statement statement = conn.createStatement();
+        ResultSet resultSet = statement.executeQuery(QueryStorage.LOAD_FLIGHTS)) {
+      FlightRowMapper mapper = FlightRowMapper.forColumns(resultSet.getMetaData(), null);
+      while (resultSet.next()) {
+        flights.add(mapper.map(resultSet));
+      }
+    }
+    return new InMemoryFlightStorage(flights);
+  }
+
+  /**
+   * Loads flights from a CSV file with the column order of the Flights table
+   */
+  public static InMemoryFlightStorage fromCsv(Path path) throws IOException {
+    List<Flight> flights = new ArrayList<>();
+    try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] cols = line.split(",", -1);
+        if (cols.length < 18 || !Character.isDigit(cols[0].charAt(0))) {
+          continue; // header or malformed row
+        }
+        Flight flight = new Flight(parseInt(cols[0]), parseInt(cols[2]), cols[4], cols[5],
+            cols[6], cols[8], parseInt(cols[14]), parseInt(cols[16]), parseInt(cols[17]));
+        flight.canceled = parseInt(cols[13]) != 0;
+        flights.add(flight);
+      }
+    }
+    return new InMemoryFlightStorage(flights);
+  }
+
+  private static int parseInt(String s) {
+    return s.isEmpty() ? 0 : Integer.parseInt(s.trim());
+  }
+
+  private static String routeKey(int day, String origin, String dest) {
+    return day + "|" + origin + "|" + dest;
+  }
+
+  private static String originKey(int day, String origin) {
+    return day + "|" + origin;
+  }
+
+  // usernames are case-insensitive, as under the default SQL Server collation
+  private static String userKey(String username) {
+    return username.toLowerCase(Locale.ROOT);
+  }
+
+  @Override
+  public void clearTables() {
+    accounts.clear();
+    seats.clear();
+    reservationsById.clear();
+    nextReservationId.set(1);
+    synchronized (outboxLock) {
+      outbox.clear();
+      lastSeq = 0;
+    }
+    subscriberOffsets.clear();
+  }
+
+  @Override
+  public boolean createUser(String username, byte[] passwordHash, byte[] salt, int balance) {
+    return accounts.putIfAbsent(userKey(username), new Account(passwordHash, salt, balance)) == null;
+  }
+
+  @Override
+  public byte[] getSalt(String username) {
+    Account account = accounts.get(userKey(username));
+    return account == null ? null : account.salt;
+  }
+
+  @Override
+  public boolean checkPassword(String username, byte[] passwordHash) {
+    Account account = accounts.get(userKey(username));
+    return account != null && Arrays.equals(account.passwordHash, passwordHash);
+  }
+
+  @Override
+  public List<Itinerary> searchItineraries(String originCity, String destCity, boolean directOnly,
+      int dayOfMonth, int count) {
+    return search(originCity, destCity, directOnly, dayOfMonth, count, fid -> true);
+  }
+
+  /**
+   * Skips sold-out flights while searching, so the count is filled from the next shortest
+   * itineraries rather than by searching again
+   */
+  @Override
+  public List<Itinerary> searchAvailable(String originCity, String destCity, boolean directOnly,
+      int dayOfMonth, int count) {
+    List<Itinerary> itineraries =
+        search(originCity, destCity, directOnly, dayOfMonth, count, fid -> remainingSeats(fid) > 0);
+    for (Itinerary itinerary : itineraries) {
+      itinerary.seatsLeft = new int[itinerary.legs.length];
+      for (int i = 0; i < itinerary.legs.length; i++) {
+        itinerary.seatsLeft[i] = remainingSeats(itinerary.legs[i].fid);
+      }
+    }
+    return itineraries;
+  }
+
+  private List<Itinerary> search(String originCity, String destCity, boolean directOnly,
+      int dayOfMonth, int count, IntPredicate hasSeat) {
+    List<Itinerary> direct = searchDirectFlights(originCity, destCity, dayOfMonth, count, hasSeat);
+    if (directOnly || direct.size() >= count) {
+      return direct;
+    }
+    List<Itinerary> indirect =
+        searchIndirectFlights(originCity, destCity, dayOfMonth, count - direct.size(), hasSeat);
+    // both lists are already sorted, so a linear merge gives the display order
+    List<Itinerary> merged = new ArrayList<>(direct.size() + indirect.size());
+    int i = 0;
+    int j = 0;
+    while (i < direct.size() || j < indirect.size()) {
+      if (j == indirect.size()
+          || (i < direct.size() && direct.get(i).compareTo(indirect.get(j)) <= 0)) {
+        merged.add(direct.get(i++));
+      } else {
+        merged.add(indirect.get(j++));
+      }
+    }
+    return merged;
+  }
+
+  private List<Itinerary> searchDirectFlights(String originCity, String destCity, int dayOfMonth,
+      int count, IntPredicate hasSeat) {
+    List<Itinerary> itineraries = new ArrayList<>();
+    List<Flight> route = flightsByRoute.get(routeKey(dayOfMonth, originCity, destCity));
+    if (route == null) {
+      return itineraries;
+    }
+    for (int i = 0; i < route.size() && itineraries.size() < count; i++) {
+      if (!isCanceled(route.get(i)) && hasSeat.test(route.get(i).fid)) {
+        itineraries.add(new Itinerary(route.get(i)));
+      }
+    }
+    return itineraries;
+  }
+
+  private List<Itinerary> searchIndirectFlights(String originCity, String destCity, int dayOfMonth,
+      int count, IntPredicate hasSeat) {
+    List<Flight> firstLegs = flightsByOrigin.get(originKey(dayOfMonth, originCity));
+    if (firstLegs == null || count <= 0) {
+      return new ArrayList<>();
+    }
+    // bounded max-heap keeping the count shortest itineraries seen so far
+    PriorityQueue<Itinerary> best = new PriorityQueue<>(count + 1, Collections.reverseOrder());
+    for (Flight f1 : firstLegs) {
+      if (isCanceled(f1) || !hasSeat.test(f1.fid)) {
+        continue;
+      }
+      List<Flight> secondLegs = flightsByRoute.get(routeKey(dayOfMonth, f1.destCity, destCity));
+      if (secondLegs == null) {
+        continue;
+      }
+      for (Flight f2 : secondLegs) {
+        if (best.size() == count && f1.time + f2.time > best.peek().totalTime) {
+          break; // second legs are sorted by time, nothing shorter follows
+        }
+        if (!isCanceled(f2) && hasSeat.test(f2.fid)) {
+          best.add(new Itinerary(f1, f2));
+          if (best.size() > count) {
+            best.poll();
+          }
+        }
+      }
+    }
+    List<Itinerary> itineraries = new ArrayList<>(best);
+    Collections.sort(itineraries);
+    return itineraries;
+  }
+
+  /**
+   * Itineraries of one first leg (or the direct flights), in order of total time
+   */
+  private final class RouteCursor {
+    final Flight first; // null for direct flights
+    final List<Flight> route;
+    final int[] cheapest;
+    int next = -1;
+    Itinerary head;
+
+    RouteCursor(Flight first, List<Flight> route, int[] cheapest) {
+      this.first = first;
+      this.route = route;
+      this.cheapest = cheapest;
+    }
+
+    int lowestPrice() {
+      return (first == null ? 0 : first.price) + cheapest[0];
+    }
+
+    /**
+     * Moves to the next itinerary that is not canceled
+     *
+     * @return false if no itinerary left is below {@code priceBelow}
+     */
+    boolean advance(int priceBelow) {
+      int base = first == null ? 0 : first.price;
+      for (next++; next < route.size(); next++) {
+        if (base + cheapest[next] >= priceBelow) {
+          return false;
+        }
+        Flight f = route.get(next);
+        if (!isCanceled(f)) {
+          head = first == null ? new Itinerary(f) : new Itinerary(first, f);
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  // the order of QueryStorage.SEARCH_SKYLINE: total time, price, then fids
+  private static final Comparator<RouteCursor> BY_HEAD =
+      Comparator.comparingInt((RouteCursor c) -> c.head.totalTime)
+          .thenComparingInt(c -> c.head.price)
+          .thenComparing(c -> c.head);
+
+  /**
+   * Merges the time-ordered itineraries of every first leg into a {@link Skyline}. A route is
+   * dropped as soon as none of its remaining flights is cheap enough to join the skyline, and the
+   * search stops once the skyline reaches the lowest price of any itinerary, so on busy routes
+   * only a fraction of the candidates are looked at.
+   */
+  @Override
+  public List<Itinerary> searchSkyline(String originCity, String destCity, boolean directOnly,
+      int dayOfMonth, int count) {
+    Skyline skyline = new Skyline(count);
+    PriorityQueue<RouteCursor> cursors = new PriorityQueue<>(BY_HEAD);
+    int lowestPrice = Integer.MAX_VALUE;
+    String directKey = routeKey(dayOfMonth, originCity, destCity);
+    List<RouteCursor> routes = new ArrayList<>();
+    if (flightsByRoute.containsKey(directKey)) {
+      routes.add(new RouteCursor(null, flightsByRoute.get(directKey),
+          cheapestByRoute.get(directKey)));
+    }
+    List<Flight> firstLegs = flightsByOrigin.get(originKey(dayOfMonth, originCity));
+    if (!directOnly && firstLegs != null) {
+      for (Flight f1 : firstLegs) {
+        String key = routeKey(dayOfMonth, f1.destCity, destCity);
+        if (!isCanceled(f1) && flightsByRoute.containsKey(key)) {
+          routes.add(new RouteCursor(f1, flightsByRoute.get(key), cheapestByRoute.get(key)));
+        }
+      }
+    }
+    for (RouteCursor cursor : routes) {
+      if (cursor.advance(Integer.MAX_VALUE)) {
+        lowestPrice = Math.min(lowestPrice, cursor.lowestPrice());
+        cursors.add(cursor);
+      }
+    }
+    while (!cursors.isEmpty() && !skyline.isComplete(cursors.peek().head.totalTime)) {
+      RouteCursor cursor = cursors.poll();
+      skyline.offer(cursor.head);
+      if (skyline.cheapest() <= lowestPrice) {
+        break; // nothing left can be cheaper
+      }
+      if (cursor.advance(skyline.cheapest())) {
+        cursors.add(cursor);
+      }
+    }
+    return skyline.points();
+  }
+
+  @Override
+  public List<Itinerary> searchMultiLeg(String originCity, String destCity, int dayOfMonth,
+      int maxLegs, int count) {
+    RouteGraph graph = graphsByDay.get(dayOfMonth);
+    if (graph == null) {
+      return new ArrayList<>();
+    }
+    return graph.search(originCity, destCity, Math.min(maxLegs, MAX_LEGS), count,
+        fid -> !canceledFids.contains(fid) && remainingSeats(fid) > 0, MULTI_LEG_BUDGET_NANOS);
+  }
+
+  // the seat buckets are the live index; a flight never booked has its full capacity
+  private int remainingSeats(int fid) {
+    SeatBuckets buckets = seats.get(fid);
+    return buckets == null ? flightsById.get(fid).capacity : buckets.remaining();
+  }
+
+  @Override
+  public boolean hasReservationOnDay(String username, int dayOfMonth) {
+    Account account = accounts.get(userKey(username));
+    if (account == null) {
+      return true;
+    }
+    synchronized (account) {
+      for (Reservation reservation : account.reservations.values()) {
+        if (reservation.dayOfMonth == dayOfMonth) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public int bookItinerary(String username, Itinerary itinerary) {
+    Account account = accounts.get(userKey(username));
+    if (account == null || hasCanceledLeg(itinerary)) {
+      return -1;
+    }
+    for (int i = 0; i < itinerary.legs.length; i++) {
+      if (!takeSeat(itinerary.legs[i].fid)) {
+        for (int j = 0; j < i; j++) {
+          releaseSeat(itinerary.legs[j].fid);
+        }
+        return -1;
+      }
+    }
+    int id = addReservation(account, username, itinerary);
+    if (id == -1) {
+      for (Flight leg : itinerary.legs) {
+        releaseSeat(leg.fid);
+      }
+    }
+    return id;
+  }
+
+  @Override
+  public int recordReservation(String username, Itinerary itinerary) {
+    Account account = accounts.get(userKey(username));
+    return account == null ? -1 : addReservation(account, username, itinerary);
+  }
+
+  /**
+   * @return the new reservation ID, or -1 if a leg was canceled. The reservation is published
+   *         before the legs are checked, so a flight canceled after the check finds it in
+   *         {@link #getReservationsOnFlight}.
+   */
+  private int addReservation(Account account, String username, Itinerary itinerary) {
+    synchronized (account) {
+      int id = nextReservationId.getAndIncrement();
+      Reservation reservation =
+          new Reservation(id, username, itinerary.f1.dayOfMonth, false, false, itinerary);
+      account.reservations.put(id, reservation);
+      reservationsById.put(id, reservation);
+      if (hasCanceledLeg(itinerary)) {
+        account.reservations.remove(id);
+        reservationsById.remove(id);
+        return -1;
+      }
+      appendEvent(BookingEvent.Kind.BOOKED, username, id, itinerary, itinerary.price);
+      return id;
+    }
+  }
+
+  private boolean hasCanceledLeg(Itinerary itinerary) {
+    for (Flight leg : itinerary.legs) {
+      if (isCanceled(flightsById.get(leg.fid))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private SeatBuckets seatsOf(int fid) {
+    return seats.computeIfAbsent(fid,
+        f -> new SeatBuckets(flightsById.get(f).capacity, SEAT_BUCKETS));
+  }
+
+  private boolean takeSeat(int fid) {
+    return seatsOf(fid).take();
+  }
+
+  private void releaseSeat(int fid) {
+    seatsOf(fid).release();
+  }
+
+  @Override
+  public int getUnpaidReservationPrice(String username, int reservationId) {
+    Account account = accounts.get(userKey(username));
+    if (account == null) {
+      return -1;
+    }
+    synchronized (account) {
+      Reservation reservation = account.reservations.get(reservationId);
+      return reservation == null || reservation.paid ? -1 : reservation.itinerary.price;
+    }
+  }
+
+  @Override
+  public int getBalance(String username) {
+    Account account = accounts.get(userKey(username));
+    if (account == null) {
+      return -1;
+    }
+    synchronized (account) {
+      return account.balance;
+    }
+  }
+
+  @Override
+  public int payReservation(String username, int reservationId) {
+    Account account = accounts.get(userKey(username));
+    if (account == null) {
+      return -1;
+    }
+    synchronized (account) {
+      Reservation reservation = account.reservations.get(reservationId);
+      if (reservation == null || reservation.paid
+          || reservation.itinerary.price > account.balance) {
+        return -1;
+      }
+      account.balance -= reservation.itinerary.price;
+      reservation.paid = true;
+      appendEvent(BookingEvent.Kind.PAID, username, reservationId, reservation.itinerary,
+          reservation.itinerary.price);
+      return account.balance;
+    }
+  }
+
+  @Override
+  public Payment payReservations(String username, List<Integer> reservationIds) {
+    Account account = accounts.get(userKey(username));
+    if (account == null) {
+      return new Payment(false, -1, 0, reservationIds.get(0));
+    }
+    synchronized (account) {
+      List<Reservation> reservations = new ArrayList<>(reservationIds.size());
+      int total = 0;
+      for (int id : new LinkedHashSet<>(reservationIds)) {
+        Reservation reservation = account.reservations.get(id);
+        if (reservation == null || reservation.paid) {
+          return new Payment(false, account.balance, 0, id);
+        }
+        reservations.add(reservation);
+        total += reservation.itinerary.price;
+      }
+      if (total > account.balance) {
+        return new Payment(false, account.balance, total, -1);
+      }
+      account.balance -= total;
+      for (Reservation reservation : reservations) {
+        reservation.paid = true;
+        appendEvent(BookingEvent.Kind.PAID, username, reservation.id, reservation.itinerary,
+            reservation.itinerary.price);
+      }
+      return new Payment(true, account.balance, total, -1);
+    }
+  }
+
+  @Override
+  public Reservation cancelReservation(String username, int reservationId,
+      boolean releaseSeats) {
+    Account account = accounts.get(userKey(username));
+    if (account == null) {
+      return null;
+    }
+    Reservation canceled;
+    synchronized (account) {
+      Reservation reservation = account.reservations.get(reservationId);
+      if (reservation == null || reservation.cancelled) {
+        return null;
+      }
+      canceled = new Reservation(reservation);
+      canceled.cancelled = true;
+      int refund = reservation.paid ? reservation.itinerary.price : 0;
+      account.balance += refund;
+      reservation.paid = false;
+      reservation.cancelled = true;
+      appendEvent(BookingEvent.Kind.CANCELED, username, reservationId, reservation.itinerary,
+          refund);
+    }
+    if (releaseSeats) {
+      for (Flight leg : canceled.itinerary.legs) {
+        releaseSeat(leg.fid);
+      }
+    }
+    return canceled;
+  }
+
+  @Override
+  public List<Reservation> cancelReservations(List<Reservation> reservations) {
+    List<Reservation> canceled = new ArrayList<>();
+    for (Reservation reservation : reservations) {
+      Reservation result = cancelReservation(reservation.username, reservation.id, true);
+      if (result != null) {
+        canceled.add(result);
+      }
+    }
+    return canceled;
+  }
+
+  /**
+   * Cancels and rebooks one reservation at a time; nothing here can fail halfway through
+   */
+  @Override
+  public List<Rebooking> rebookReservations(List<Rebooking> rebookings) {
+    for (Rebooking rebooking : rebookings) {
+      Reservation reservation = rebooking.reservation;
+      rebooking.canceled = cancelReservation(reservation.username, reservation.id, true);
+      rebooking.replacement = null;
+      rebooking.reservationId = -1;
+      if (rebooking.canceled == null) {
+        continue;
+      }
+      for (Itinerary candidate : rebooking.candidates) {
+        int id = bookItinerary(reservation.username, candidate);
+        if (id != -1) {
+          rebooking.replacement = candidate;
+          rebooking.reservationId = id;
+          break;
+        }
+      }
+    }
+    return rebookings;
+  }
+
+  @Override
+  public boolean cancelFlight(int fid) {
+    Flight flight = flightsById.get(fid);
+    if (flight == null || flight.canceled) {
+      return false;
+    }
+    return canceledFids.add(fid);
+  }
+
+  private boolean isCanceled(Flight flight) {
+    return flight.canceled || canceledFids.contains(flight.fid);
+  }
+
+  @Override
+  public List<Reservation> getReservationsOnFlight(int fid, int afterId, int limit) {
+    List<Reservation> page = new ArrayList<>();
+    for (Reservation reservation : reservationsById.tailMap(afterId, false).values()) {
+      if (page.size() == limit) {
+        break;
+      }
+      if (!includes(reservation.itinerary, fid)) {
+        continue;
+      }
+      Account account = accounts.get(userKey(reservation.username));
+      if (account == null) {
+        continue;
+      }
+      synchronized (account) {
+        if (!reservation.cancelled) {
+          page.add(new Reservation(reservation));
+        }
+      }
+    }
+    return page;
+  }
+
+  private static boolean includes(Itinerary itinerary, int fid) {
+    for (Flight leg : itinerary.legs) {
+      if (leg.fid == fid) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public List<Reservation> getReservations(String username) {
+    List<Reservation> reservations = new ArrayList<>();
+    Account account = accounts.get(userKey(username));
+    if (account == null) {
+      return reservations;
+    }
+    synchronized (account) {
+      for (Reservation reservation : account.reservations.values()) {
+        reservations.add(new Reservation(reservation));
+      }
+    }
+    return reservations;
+  }
+
+  // called under the account lock of the change, so the event is atomic with it
+  private void appendEvent(BookingEvent.Kind kind, String username, int reservationId,
+      Itinerary itinerary, int amount) {
+    synchronized (outboxLock) {
+      lastSeq++;
+      outbox.put(lastSeq,
+          new BookingEvent(lastSeq, kind, username, reservationId, itinerary.key(), amount));
+    }
+  }
+
+  @Override
+  public List<BookingEvent> readEvents(long afterSeq, int limit) {
+    List<BookingEvent> events = new ArrayList<>();
+    for (BookingEvent event : outbox.tailMap(afterSeq, false).values()) {
+      if (events.size() == limit) {
+        break;
+      }
+      events.add(event);
+    }
+    return events;
+  }
+
+  @Override
+  public void purgeEvents(long throughSeq) {
+    outbox.headMap(throughSeq, true).clear();
+  }
+
+  @Override
+  public long getSubscriberOffset(String subscriber) {
+    return subscriberOffsets.getOrDefault(subscriber, 0L);
+  }
+
+  @Override
+  public void saveSubscriberOffset(String subscriber, long seq) {
+    subscriberOffsets.put(subscriber, seq);
+  }
+
+  @Override
+  public void close() {
+  }
+}
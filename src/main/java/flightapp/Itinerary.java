@@ -1,26 +1,44 @@
 package flightapp;
 
+import java.util.List;
+
 public class Itinerary implements Comparable<Itinerary> {
     int id;
     Flight f1;
     Flight f2;
+    // every flight in order; f1 and f2 are the first two
+    Flight[] legs;
     int price;
     boolean layover;
     int totalTime;
+    // remaining seats of each leg when found by an available-only search, otherwise null
+    int[] seatsLeft;
+    // it_id the itinerary was registered or loaded under when that differs from hashKey(), else 0
+    long probedKey;
     public Itinerary(Flight f) {
-        this.f1 = f;
-        this.layover = false;
-        this.totalTime = f.time;
-        this.price = f.price;
-        this.id = 0;
+        this(new Flight[] {f});
     }
 
     public Itinerary(Flight f1, Flight f2) {
-        this.f1 = f1;
-        this.f2 = f2;
-        this.layover = true;
-        this.totalTime = f1.time + f2.time;
-        this.price = f1.price + f2.price;
+        this(new Flight[] {f1, f2});
+    }
+
+    /**
+     * An itinerary of any number of legs, as found by a multi-leg search
+     */
+    public Itinerary(List<Flight> legs) {
+        this(legs.toArray(new Flight[0]));
+    }
+
+    private Itinerary(Flight[] legs) {
+        this.legs = legs;
+        this.f1 = legs[0];
+        this.f2 = legs.length > 1 ? legs[1] : null;
+        this.layover = legs.length > 1;
+        for (Flight leg : legs) {
+            this.totalTime += leg.time;
+            this.price += leg.price;
+        }
         this.id = 0;
     }
 
@@ -28,21 +46,103 @@ public class Itinerary implements Comparable<Itinerary> {
         this.id = id;
     }
 
+    /**
+     * @return the flight arriving at the final destination
+     */
+    public Flight lastLeg() {
+        return legs[legs.length - 1];
+    }
+
+    /**
+     * 64-bit identity of the itinerary, used as {@code Itineraries.it_id}. For up to two legs: the
+     * first fid in the high word, the second (or -1 for a direct flight) in the low word. Longer
+     * itineraries get a 63-bit hash of their fids with the sign bit set, which no packed key has
+     * since fids are non-negative. A hash already taken by other legs is probed past when the
+     * itinerary is registered (see {@link #nextProbe}), and the key it ends up under is kept.
+     */
+    public long key() {
+        return probedKey != 0 ? probedKey : hashKey();
+    }
+
+    /**
+     * Records the key the itinerary was registered or loaded under
+     */
+    void setKey(long key) {
+        probedKey = key == hashKey() ? 0 : key;
+    }
+
+    /**
+     * @return the key to try after a multi-leg key whose stored legs differ
+     */
+    public static long nextProbe(long key) {
+        return (key + 1) | Long.MIN_VALUE;
+    }
+
+    // the key before probing, also the hash code, so it stays put once the itinerary is registered
+    private long hashKey() {
+        if (legs.length <= 2) {
+            return key(f1.fid, secondFid());
+        }
+        long h = 0xcbf29ce484222325L;
+        for (Flight leg : legs) {
+            h = (h ^ leg.fid) * 0x100000001b3L;
+            h ^= h >>> 29;
+        }
+        return h | Long.MIN_VALUE;
+    }
+
+    public static long key(int firstFid, int secondFid) {
+        return ((long) firstFid << 32) | (secondFid & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return true if the key belongs to an itinerary of more than two legs
+     */
+    public static boolean isMultiLegKey(long key) {
+        return key < 0;
+    }
+
+    @Override
     public int hashCode() {
-        String res = "" + f1.fid;
-        if (layover) {
-            res += "#" + f2.fid;
+        return Long.hashCode(hashKey());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Itinerary)) {
+            return false;
         }
-        return res.hashCode();
+        Flight[] otherLegs = ((Itinerary) other).legs;
+        if (otherLegs.length != legs.length) {
+            return false;
+        }
+        for (int i = 0; i < legs.length; i++) {
+            if (otherLegs[i].fid != legs[i].fid) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // a direct flight sorts as if its second fid were -1, matching QueryStorage.SEARCH_ITINERARIES
+    private int secondFid() {
+        return layover ? f2.fid : -1;
+    }
+
+    // fid of leg i, or -1 past the last leg, so shorter itineraries sort first on a tie
+    private int fid(int i) {
+        return i < legs.length ? legs[i].fid : -1;
     }
 
     public int compareTo(Itinerary other) {
-        if (this.totalTime == other.totalTime) {
-            if (this.f1.fid == other.f1.fid) {
-                return this.f2.fid - other.f2.fid;
+        if (this.totalTime != other.totalTime) {
+            return Integer.compare(this.totalTime, other.totalTime);
+        }
+        for (int i = 0; i < Math.max(legs.length, other.legs.length); i++) {
+            if (fid(i) != other.fid(i)) {
+                return Integer.compare(fid(i), other.fid(i));
             }
-            return this.f1.fid - other.f1.fid;
         }
-        return this.totalTime - other.totalTime;
+        return 0;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,1519 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Storage backend running the {@link QueryStorage} statements against SQL Server
+ */
+public class JdbcFlightStorage implements FlightStorage {
+  // DB Connection
+  private Connection conn;
+
+  private static final int PAID = 0;
+  private static final int UNPAID = 1;
+  private static final int CANCELED = 0;
+  private static final int NOT_CANCELED = 1;
+
+  // shared with every other storage on the same physical connection
+  private final StatementCache statements;
+
+  // Flights seen by this connection, shared by its row mappers
+  private static final int FLIGHT_POOL_SIZE = 4096;
+  private final FlightRowMapper.Pool flightPool = new FlightRowMapper.Pool(FLIGHT_POOL_SIZE);
+  private final FlightRowMapper firstLegMapper = FlightRowMapper.at(1, flightPool);
+  private final FlightRowMapper secondLegMapper = FlightRowMapper.at(10, flightPool);
+  // flights of QueryStorage.RESERVATION_LEGS rows
+  private final FlightRowMapper reservationLegMapper =
+      FlightRowMapper.withCanceledAt(8, flightPool);
+  // resolved from the first result, RETRIEVE_FLIGHT_DETAILS selects *
+  private FlightRowMapper flightDetailsMapper;
+
+  /**
+   * One-hop itineraries kept per route in Connections. Searches asking for more fall back to the
+   * self-join.
+   */
+  static final int CONNECTIONS_PER_ROUTE = Integer.getInteger("flightapp.connectionsPerRoute", 100);
+
+  /**
+   * A day's multi-leg search graph of one database. Cancellations through any connection of this
+   * process to that database drop it, so it is loaded again; ones made elsewhere are picked up
+   * when it expires.
+   */
+  private static class LoadedGraph {
+    final RouteGraph graph;
+    final long loadedAt = System.nanoTime();
+
+    LoadedGraph(RouteGraph graph) {
+      this.graph = graph;
+    }
+  }
+
+  // by database, then day, shared by every connection of the process to the database
+  private static final Map<String, Map<Integer, LoadedGraph>> graphsByDatabase =
+      new ConcurrentHashMap<>();
+  private static final long GRAPH_TTL_NANOS =
+      Long.getLong("flightapp.routeGraphTtlSeconds", 300) * 1_000_000_000;
+
+  /**
+   * Remaining seats for available-only searches by database, since each has Capacities of its
+   * own, shared by every connection of the process to that database. An index is updated by the
+   * bookings and cancellations committed here; ones made elsewhere are picked up when a count
+   * expires.
+   */
+  private static final Map<String, SeatIndex> seatIndexes = new ConcurrentHashMap<>();
+  private static final long SEAT_INDEX_TTL_NANOS =
+      Long.getLong("flightapp.seatIndexTtlSeconds", 30) * 1_000_000_000;
+  // most itineraries an available-only search fetches while skipping sold-out ones
+  private static final int MAX_AVAILABLE_FETCH = 4096;
+
+  // SQLServerConnection.TRANSACTION_SNAPSHOT, for reads that neither block nor are blocked
+  private static final int TRANSACTION_SNAPSHOT = 4096;
+  // rows per round trip when streaming whole tables
+  private static final int ANALYTICS_FETCH_SIZE = 10_000;
+
+  // SQL Server error for a primary key violation
+  private static final int DUPLICATE_KEY = 2627;
+
+  // Attempts for a transaction chosen as deadlock victim
+  private static final int MAX_DEADLOCK_RETRIES = 3;
+
+  // itineraries known to be in the Itineraries table, and their keys there
+  private final Map<Itinerary, Long> registeredItineraries = new HashMap<>();
+
+  /**
+   * Write-through copy of a user's balance and reservations (with their itinerary prices), loaded
+   * at login. It is used only while {@code version} matches Users.version; every committed write
+   * through any connection bumps that version, so another session's changes force a reload.
+   */
+  private static class Account {
+    int version;
+    int balance;
+    final TreeMap<Integer, Reservation> reservations = new TreeMap<>();
+
+    Account(int version, int balance) {
+      this.version = version;
+      this.balance = balance;
+    }
+  }
+
+  /**
+   * An account write made in the current transaction, applied to the cache once it commits
+   */
+  private static class AccountWrite {
+    final String username;
+    final int version;
+    final int balance;
+    // new state of the reservations written, if any
+    final List<Reservation> reservations = new ArrayList<>();
+
+    AccountWrite(String username, int version, int balance) {
+      this.username = username;
+      this.version = version;
+      this.balance = balance;
+    }
+  }
+
+  // cached accounts by lowercased username
+  private final Map<String, Account> accounts = new HashMap<>();
+  private final List<AccountWrite> pendingWrites = new ArrayList<>();
+  // payment outcome when the cached account turned out to be stale
+  private static final int STALE = -2;
+  // tries of a multi-reservation payment while other sessions keep changing the account
+  private static final int MAX_PAY_ATTEMPTS = 3;
+
+  // fids whose first-choice seat bucket was empty during the current booking
+  private final List<Integer> skewedFlights = new ArrayList<>();
+
+  // the connection's database, as of when it was opened
+  private final String database;
+  private final SeatIndex seatIndex;
+  // multi-leg search graphs of the database by day
+  private final Map<Integer, LoadedGraph> graphs;
+
+  public JdbcFlightStorage(Connection conn) throws SQLException {
+    this.conn = Trace.wrapConnection(conn);
+    statements = StatementCache.forConnection(conn);
+    database = Objects.toString(conn.getCatalog(), "");
+    seatIndex = seatIndexes.computeIfAbsent(database, d -> new SeatIndex(SEAT_INDEX_TTL_NANOS));
+    graphs = graphsByDatabase.computeIfAbsent(database, d -> new ConcurrentHashMap<>());
+  }
+
+  /**
+   * Get underlying connection
+   */
+  public Connection getConnection() {
+    return conn;
+  }
+
+  @Override
+  public void close() throws SQLException {
+    statements.release();
+    conn.close();
+  }
+
+  /**
+   * Clear the data in any custom tables created.
+   *
+   * WARNING! Do not drop any tables and do not clear the flights table.
+   */
+  @Override
+  public void clearTables() throws SQLException {
+    // Itineraries is only derived from Flights and stays registered
+    for (String sql : new String[] {QueryStorage.CLEAR_RESERVATIONS, QueryStorage.CLEAR_USERS,
+        QueryStorage.CLEAR_CAPACITIES, QueryStorage.CLEAR_OUTBOX,
+        QueryStorage.CLEAR_OUTBOX_OFFSETS}) {
+      PreparedStatement clearStatement = statements.get(sql);
+      clearStatement.clearParameters();
+      clearStatement.executeUpdate();
+    }
+    accounts.clear();
+    seatIndex.clear();
+  }
+
+  @Override
+  public boolean createUser(String username, byte[] passwordHash, byte[] salt, int balance) {
+    try {
+      PreparedStatement createUserStatement = statements.get(QueryStorage.CREATE_USER);
+      createUserStatement.clearParameters();
+      createUserStatement.setString(1, username);
+      createUserStatement.setBytes(2, passwordHash);
+      createUserStatement.setInt(3, balance);
+      createUserStatement.setBytes(4, salt);
+      createUserStatement.executeUpdate();
+      Deadline.committed(); // autocommit
+      return true;
+    } catch (SQLException e) {
+      return false;
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  @Override
+  public byte[] getSalt(String username) throws SQLException {
+    PreparedStatement getSaltStatement = statements.get(QueryStorage.GET_SALT);
+    getSaltStatement.clearParameters();
+    getSaltStatement.setString(1, username);
+    try (ResultSet result = getSaltStatement.executeQuery()) {
+      if (result.next()) {
+        return result.getBytes("salt");
+      }
+      return null;
+    }
+  }
+
+  @Override
+  public boolean checkPassword(String username, byte[] passwordHash) throws SQLException {
+    try {
+      PreparedStatement loginUserStatement = statements.get(QueryStorage.LOGIN_USER);
+      loginUserStatement.clearParameters();
+      loginUserStatement.setString(1, username);
+      loginUserStatement.setBytes(2, passwordHash);
+      try (ResultSet result = loginUserStatement.executeQuery()) {
+        if (!result.next()) {
+          return false;
+        }
+      }
+      account(username);
+      return true;
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  @Override
+  public List<Itinerary> searchItineraries(String originCity, String destCity, boolean directOnly,
+      int dayOfMonth, int count) throws SQLException {
+    List<Itinerary> itineraries = new ArrayList<>();
+    try {
+      PreparedStatement search = statements.get(!directOnly && count <= CONNECTIONS_PER_ROUTE
+          && materializeRoute(dayOfMonth, originCity, destCity)
+          ? QueryStorage.SEARCH_ITINERARIES_MATERIALIZED : QueryStorage.SEARCH_ITINERARIES);
+      search.clearParameters();
+      search.setInt(1, count);
+      search.setString(2, originCity);
+      search.setString(3, destCity);
+      search.setInt(4, dayOfMonth);
+      search.setInt(5, count);
+      search.setInt(6, directOnly ? 1 : 0);
+      search.setString(7, originCity);
+      search.setString(8, destCity);
+      search.setInt(9, dayOfMonth);
+      // the whole top-k fits in one fetch
+      search.setFetchSize(Math.max(count, 1));
+      try (ResultSet results = search.executeQuery()) {
+        while (results.next()) {
+          Flight f1 = firstLegMapper.map(results);
+          results.getInt(10);
+          if (results.wasNull()) {
+            itineraries.add(new Itinerary(f1));
+          } else {
+            itineraries.add(new Itinerary(f1, secondLegMapper.map(results)));
+          }
+        }
+      }
+    } finally {
+      checkDanglingTransaction();
+    }
+    return itineraries;
+  }
+
+  /**
+   * The skyline is filtered on the server (see {@link QueryStorage#SEARCH_SKYLINE}). It reads the
+   * Flights self-join rather than Connections, which only keeps the fastest itineraries of a route.
+   */
+  @Override
+  public List<Itinerary> searchSkyline(String originCity, String destCity, boolean directOnly,
+      int dayOfMonth, int count) throws SQLException {
+    List<Itinerary> itineraries = new ArrayList<>();
+    try {
+      PreparedStatement searchSkylineStatement = statements.get(QueryStorage.SEARCH_SKYLINE);
+      searchSkylineStatement.clearParameters();
+      searchSkylineStatement.setString(1, originCity);
+      searchSkylineStatement.setString(2, destCity);
+      searchSkylineStatement.setInt(3, dayOfMonth);
+      searchSkylineStatement.setInt(4, directOnly ? 1 : 0);
+      searchSkylineStatement.setString(5, originCity);
+      searchSkylineStatement.setString(6, destCity);
+      searchSkylineStatement.setInt(7, dayOfMonth);
+      searchSkylineStatement.setInt(8, count);
+      searchSkylineStatement.setFetchSize(Math.max(count, 1));
+      try (ResultSet results = searchSkylineStatement.executeQuery()) {
+        while (results.next()) {
+          Flight f1 = firstLegMapper.map(results);
+          results.getInt(10);
+          if (results.wasNull()) {
+            itineraries.add(new Itinerary(f1));
+          } else {
+            itineraries.add(new Itinerary(f1, secondLegMapper.map(results)));
+          }
+        }
+      }
+    } finally {
+      checkDanglingTransaction();
+    }
+    return itineraries;
+  }
+
+  /**
+   * Runs the regular search and drops the itineraries the seat index knows to be sold out,
+   * fetching twice as many while too few are left and more might exist
+   */
+  @Override
+  public List<Itinerary> searchAvailable(String originCity, String destCity, boolean directOnly,
+      int dayOfMonth, int count) throws SQLException {
+    List<Itinerary> available = new ArrayList<>();
+    for (int fetch = Math.max(count, 1); ; fetch = Math.min(fetch * 2, MAX_AVAILABLE_FETCH)) {
+      List<Itinerary> found =
+          searchItineraries(originCity, destCity, directOnly, dayOfMonth, fetch);
+      available.clear();
+      try {
+        for (int i = 0; i < found.size() && available.size() < count; i++) {
+          if (seatIndex.available(found.get(i), this::remainingSeats)) {
+            available.add(found.get(i));
+          }
+        }
+      } finally {
+        checkDanglingTransaction();
+      }
+      if (available.size() >= count || found.size() < fetch || fetch >= MAX_AVAILABLE_FETCH) {
+        return available;
+      }
+    }
+  }
+
+  private int remainingSeats(Flight flight) throws SQLException {
+    PreparedStatement remainingSeatsStatement = statements.get(QueryStorage.REMAINING_SEATS);
+    remainingSeatsStatement.clearParameters();
+    remainingSeatsStatement.setInt(1, flight.fid);
+    try (ResultSet resultSet = remainingSeatsStatement.executeQuery()) {
+      if (resultSet.next()) {
+        int seats = resultSet.getInt(1);
+        if (!resultSet.wasNull()) {
+          return seats;
+        }
+      }
+      return flight.capacity;
+    }
+  }
+
+  @Override
+  public List<Itinerary> searchMultiLeg(String originCity, String destCity, int dayOfMonth,
+      int maxLegs, int count) throws SQLException {
+    try {
+      // only flights the seat index has seen sell out are skipped; the booking checks the rest
+      return graph(dayOfMonth).search(originCity, destCity, Math.min(maxLegs, MAX_LEGS), count,
+          seatIndex::hasSeat, MULTI_LEG_BUDGET_NANOS);
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  private RouteGraph graph(int dayOfMonth) throws SQLException {
+    LoadedGraph loaded = graphs.get(dayOfMonth);
+    if (loaded != null && System.nanoTime() - loaded.loadedAt < GRAPH_TTL_NANOS) {
+      return loaded.graph;
+    }
+    List<Flight> flights = new ArrayList<>();
+    PreparedStatement loadFlightsOfDayStatement = statements.get(QueryStorage.LOAD_FLIGHTS_OF_DAY);
+    loadFlightsOfDayStatement.clearParameters();
+    loadFlightsOfDayStatement.setInt(1, dayOfMonth);
+    loadFlightsOfDayStatement.setFetchSize(4096);
+    try (ResultSet resultSet = loadFlightsOfDayStatement.executeQuery()) {
+      // not pooled: the graph outlives this connection
+      FlightRowMapper mapper = FlightRowMapper.forColumns(resultSet.getMetaData(), null);
+      while (resultSet.next()) {
+        Flight flight = mapper.map(resultSet);
+        if (flight.capacity > 0) {
+          flights.add(flight);
+        }
+      }
+    }
+    RouteGraph graph = new RouteGraph(flights);
+    graphs.put(dayOfMonth, new LoadedGraph(graph));
+    return graph;
+  }
+
+  /**
+   * Makes sure the route's shortest one-hop itineraries are in Connections, computing them from
+   * the self-join if this is the first search of the route since it was last invalidated
+   *
+   * @return false if they are not, because another session was materializing the same route
+   */
+  private boolean materializeRoute(int dayOfMonth, String originCity, String destCity)
+      throws SQLException {
+    PreparedStatement routeMaterializedStatement = statements.get(QueryStorage.ROUTE_MATERIALIZED);
+    routeMaterializedStatement.clearParameters();
+    routeMaterializedStatement.setInt(1, dayOfMonth);
+    routeMaterializedStatement.setString(2, originCity);
+    routeMaterializedStatement.setString(3, destCity);
+    try (ResultSet resultSet = routeMaterializedStatement.executeQuery()) {
+      if (resultSet.next()) {
+        return true;
+      }
+    }
+    try {
+      beginTransaction();
+      PreparedStatement materializeRouteStatement = statements.get(QueryStorage.MATERIALIZE_ROUTE);
+      materializeRouteStatement.clearParameters();
+      materializeRouteStatement.setInt(1, dayOfMonth);
+      materializeRouteStatement.setString(2, originCity);
+      materializeRouteStatement.setString(3, destCity);
+      materializeRouteStatement.setInt(4, CONNECTIONS_PER_ROUTE);
+      materializeRouteStatement.setInt(5, dayOfMonth);
+      materializeRouteStatement.setString(6, originCity);
+      materializeRouteStatement.setString(7, destCity);
+      materializeRouteStatement.setInt(8, dayOfMonth);
+      materializeRouteStatement.setString(9, originCity);
+      materializeRouteStatement.setString(10, destCity);
+      materializeRouteStatement.executeUpdate();
+      commitTransaction();
+      return true;
+    } catch (SQLException ex) {
+      rollBackTransaction();
+      if (isDeadLock(ex) || ex.getErrorCode() == DUPLICATE_KEY) {
+        return false; // this search uses the self-join instead
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Recomputes the Connections rows of every route on the given day in one pass, so searches
+   * never materialize a route themselves. Used by {@link ConnectionsJob}.
+   */
+  public void materializeDay(int dayOfMonth) throws SQLException {
+    try {
+      beginTransaction();
+      PreparedStatement materializeDayStatement = statements.get(QueryStorage.MATERIALIZE_DAY);
+      materializeDayStatement.clearParameters();
+      materializeDayStatement.setInt(1, dayOfMonth);
+      materializeDayStatement.setInt(2, dayOfMonth);
+      materializeDayStatement.setInt(3, dayOfMonth);
+      materializeDayStatement.setInt(4, CONNECTIONS_PER_ROUTE);
+      materializeDayStatement.setInt(5, dayOfMonth);
+      materializeDayStatement.executeUpdate();
+      commitTransaction();
+    } catch (SQLException ex) {
+      rollBackTransaction();
+      throw ex;
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  /**
+   * Drops the materialized routes a flight can be part of, after it was added to or changed in the
+   * Flights table outside this application; they are recomputed on their next search
+   *
+   * @return false if there is no such flight
+   */
+  public boolean refreshFlight(int fid) throws SQLException {
+    try {
+      beginTransaction();
+      boolean found = invalidateRoutes(fid);
+      commitTransaction();
+      return found;
+    } catch (SQLException ex) {
+      rollBackTransaction();
+      throw ex;
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  private boolean invalidateRoutes(int fid) throws SQLException {
+    PreparedStatement flightRouteStatement = statements.get(QueryStorage.FLIGHT_ROUTE);
+    flightRouteStatement.clearParameters();
+    flightRouteStatement.setInt(1, fid);
+    int day;
+    String origin;
+    String dest;
+    try (ResultSet resultSet = flightRouteStatement.executeQuery()) {
+      if (!resultSet.next()) {
+        return false;
+      }
+      day = resultSet.getInt(1);
+      origin = resultSet.getString(2);
+      dest = resultSet.getString(3);
+    }
+    PreparedStatement invalidateRoutesStatement = statements.get(QueryStorage.INVALIDATE_ROUTES);
+    invalidateRoutesStatement.clearParameters();
+    invalidateRoutesStatement.setInt(1, day);
+    invalidateRoutesStatement.setString(2, origin);
+    invalidateRoutesStatement.setString(3, dest);
+    invalidateRoutesStatement.setInt(4, day);
+    invalidateRoutesStatement.setString(5, origin);
+    invalidateRoutesStatement.setString(6, dest);
+    invalidateRoutesStatement.executeUpdate();
+    return true;
+  }
+
+  @Override
+  public boolean hasReservationOnDay(String username, int dayOfMonth) throws SQLException {
+    PreparedStatement checkReservationStatusStatement =
+        statements.get(QueryStorage.CHECK_RESERVATION_STATUS);
+    checkReservationStatusStatement.clearParameters();
+    checkReservationStatusStatement.setString(1, username);
+    checkReservationStatusStatement.setInt(2, dayOfMonth);
+    try (ResultSet result = checkReservationStatusStatement.executeQuery()) {
+      return !result.next() || result.getInt("count") > 0;
+    }
+  }
+
+  @Override
+  public int bookItinerary(String username, Itinerary itinerary) throws SQLException {
+    return book(username, itinerary, true);
+  }
+
+  @Override
+  public int recordReservation(String username, Itinerary itinerary) throws SQLException {
+    return book(username, itinerary, false);
+  }
+
+  private int book(String username, Itinerary itinerary, boolean takeSeats) throws SQLException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return tryBookItinerary(username, itinerary, takeSeats);
+      } catch (SQLException ex) {
+        if (!isDeadLock(ex) || attempt == MAX_DEADLOCK_RETRIES) {
+          throw ex;
+        }
+      }
+    }
+  }
+
+  private int tryBookItinerary(String username, Itinerary itinerary, boolean takeSeats)
+      throws SQLException {
+    registerItinerary(itinerary);
+    skewedFlights.clear();
+    int id;
+    try {
+      beginTransaction();
+      if (takeSeats ? !takeSeats(itinerary) : hasCanceledLeg(itinerary)) {
+        rollBackTransaction();
+        return -1;
+      }
+      id = insertReservation(username, itinerary);
+      commitTransaction();
+    } catch (SQLException ex) {
+      rollBackTransaction();
+      throw ex;
+    } finally {
+      checkDanglingTransaction();
+    }
+    if (takeSeats) {
+      seatIndex.booked(itinerary);
+    }
+    for (int fid : skewedFlights) {
+      rebalanceSeatBuckets(fid);
+    }
+    return id;
+  }
+
+  /**
+   * Inserts an unpaid reservation for a registered itinerary whose seats are already taken, within
+   * the caller's transaction
+   *
+   * @return the reservation ID
+   */
+  private int insertReservation(String username, Itinerary itinerary) throws SQLException {
+    long itId = itinerary.key();
+    int id = -1;
+    PreparedStatement bookFlightStatement = statements.getReturningKeys(QueryStorage.BOOK_FLIGHT);
+    bookFlightStatement.clearParameters();
+    bookFlightStatement.setLong(1, itId);
+    bookFlightStatement.setInt(2, itinerary.f1.dayOfMonth);
+    bookFlightStatement.setString(3, username);
+    bookFlightStatement.setInt(4, UNPAID);
+    bookFlightStatement.setInt(5, NOT_CANCELED);
+    bookFlightStatement.executeUpdate();
+    ResultSet result = bookFlightStatement.getGeneratedKeys();
+    if (result.next()) {
+      id = result.getInt(1);
+    }
+    AccountWrite write = adjustAccount(username, 0);
+    if (write != null) {
+      write.reservations.add(
+          new Reservation(id, username, itinerary.f1.dayOfMonth, false, false, itinerary));
+    }
+    appendEvent(BookingEvent.Kind.BOOKED, username, id, itId, itinerary.price);
+    return id;
+  }
+
+  /**
+   * Takes a seat on every leg, or on none of them: seats taken before a full or canceled leg are
+   * released again, so a caller may go on to try another itinerary in the same transaction
+   */
+  private boolean takeSeats(Itinerary itinerary) throws SQLException {
+    for (Flight leg : itinerary.legs) {
+      initSeatBuckets(leg.fid);
+    }
+    for (int i = 0; i < itinerary.legs.length; i++) {
+      if (!takeSeat(itinerary.legs[i].fid)) {
+        // every bucket was empty, whatever becomes of this transaction
+        seatIndex.soldOut(itinerary.legs[i].fid);
+        for (int j = 0; j < i; j++) {
+          releaseSeat(itinerary.legs[j].fid);
+        }
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * For a booking whose seats were taken elsewhere: true if a leg was canceled. Read locks the
+   * legs, so none can be canceled before the booking commits.
+   */
+  private boolean hasCanceledLeg(Itinerary itinerary) throws SQLException {
+    StringBuilder fids = new StringBuilder();
+    for (Flight leg : itinerary.legs) {
+      if (fids.length() > 0) {
+        fids.append(',');
+      }
+      fids.append(leg.fid);
+    }
+    PreparedStatement canceledLegsStatement = statements.get(QueryStorage.CANCELED_LEGS);
+    canceledLegsStatement.clearParameters();
+    canceledLegsStatement.setString(1, fids.toString());
+    try (ResultSet result = canceledLegsStatement.executeQuery()) {
+      return result.next() && result.getInt(1) > 0;
+    }
+  }
+
+  private void initSeatBuckets(int fid) throws SQLException {
+    PreparedStatement initSeatBucketsStatement = statements.get(QueryStorage.INIT_SEAT_BUCKETS);
+    initSeatBucketsStatement.clearParameters();
+    initSeatBucketsStatement.setInt(1, fid);
+    initSeatBucketsStatement.setInt(2, SEAT_BUCKETS);
+    initSeatBucketsStatement.setInt(3, SEAT_BUCKETS);
+    initSeatBucketsStatement.setInt(4, SEAT_BUCKETS);
+    initSeatBucketsStatement.setInt(5, fid);
+    initSeatBucketsStatement.executeUpdate();
+  }
+
+  /**
+   * Takes a seat from the first non-empty bucket, starting at a random one so concurrent bookers
+   * of the same flight lock different rows
+   *
+   * @return false if every bucket is empty
+   */
+  private boolean takeSeat(int fid) throws SQLException {
+    int start = ThreadLocalRandom.current().nextInt(SEAT_BUCKETS);
+    PreparedStatement takeSeatStatement = statements.get(QueryStorage.TAKE_SEAT);
+    for (int k = 0; k < SEAT_BUCKETS; k++) {
+      takeSeatStatement.clearParameters();
+      takeSeatStatement.setInt(1, fid);
+      takeSeatStatement.setInt(2, (start + k) % SEAT_BUCKETS);
+      if (takeSeatStatement.executeUpdate() == 1) {
+        if (k > 0) {
+          skewedFlights.add(fid);
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Spreads a flight's remaining seats evenly over its buckets again. Runs in its own autocommit
+   * statement after the booking, so it never extends the booking's locks.
+   */
+  private void rebalanceSeatBuckets(int fid) {
+    try {
+      PreparedStatement rebalanceSeatBucketsStatement =
+          statements.get(QueryStorage.REBALANCE_SEAT_BUCKETS);
+      rebalanceSeatBucketsStatement.clearParameters();
+      rebalanceSeatBucketsStatement.setInt(1, fid);
+      rebalanceSeatBucketsStatement.executeUpdate();
+    } catch (SQLException e) {
+      // best effort: an unbalanced flight is slower to book, never oversold
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Adds the itinerary to the shared Itineraries table unless this connection has seen it there
+   * already, and sets its key. Runs in autocommit before the booking transaction, so a rolled back
+   * booking never leaves a cached key without its row. A multi-leg key whose stored legs turn out
+   * to be another itinerary's is probed past, so a hash collision never books the wrong legs.
+   */
+  private void registerItinerary(Itinerary itinerary) throws SQLException {
+    Long registered = registeredItineraries.get(itinerary);
+    if (registered != null) {
+      itinerary.setKey(registered);
+      return;
+    }
+    long itId = itinerary.key();
+    if (itinerary.legs.length > 2) {
+      while (!registerItineraryLegs(itinerary, itId)) {
+        itId = Itinerary.nextProbe(itId);
+      }
+    }
+    PreparedStatement registerItineraryStatement = statements.get(QueryStorage.REGISTER_ITINERARY);
+    registerItineraryStatement.clearParameters();
+    registerItineraryStatement.setLong(1, itId);
+    registerItineraryStatement.setInt(2, itinerary.price);
+    registerItineraryStatement.setInt(3, itinerary.f1.fid);
+    registerItineraryStatement.setInt(4, itinerary.layover ? itinerary.f2.fid : -1);
+    registerItineraryStatement.setLong(5, itId);
+    try {
+      registerItineraryStatement.executeUpdate();
+    } catch (SQLException ex) {
+      if (ex.getErrorCode() != DUPLICATE_KEY) {
+        throw ex;
+      }
+      // another connection registered it between our check and insert
+    }
+    itinerary.setKey(itId);
+    registeredItineraries.put(itinerary, itId);
+  }
+
+  /**
+   * Registers the legs under the key unless it has legs already; the legs go first, so an
+   * Itineraries row is never visible without them.
+   *
+   * @return false if the key's legs, as stored, are not the itinerary's
+   */
+  private boolean registerItineraryLegs(Itinerary itinerary, long itId) throws SQLException {
+    PreparedStatement registerItineraryLegStatement =
+        statements.get(QueryStorage.REGISTER_ITINERARY_LEG);
+    for (int leg = 0; leg < itinerary.legs.length; leg++) {
+      registerItineraryLegStatement.clearParameters();
+      registerItineraryLegStatement.setLong(1, itId);
+      registerItineraryLegStatement.setInt(2, leg);
+      registerItineraryLegStatement.setInt(3, itinerary.legs[leg].fid);
+      registerItineraryLegStatement.setLong(4, itId);
+      registerItineraryLegStatement.setInt(5, leg);
+      try {
+        registerItineraryLegStatement.executeUpdate();
+      } catch (SQLException ex) {
+        if (ex.getErrorCode() != DUPLICATE_KEY) {
+          throw ex;
+        }
+      }
+    }
+    return Arrays.equals(retrieveItineraryLegs(itId), fids(itinerary));
+  }
+
+  private static int[] fids(Itinerary itinerary) {
+    int[] fids = new int[itinerary.legs.length];
+    for (int leg = 0; leg < fids.length; leg++) {
+      fids[leg] = itinerary.legs[leg].fid;
+    }
+    return fids;
+  }
+
+  @Override
+  public int getUnpaidReservationPrice(String username, int reservationId) throws SQLException {
+    try {
+      Account account = account(username);
+      Reservation reservation = account == null ? null : account.reservations.get(reservationId);
+      if (reservation == null || reservation.paid || reservation.itinerary == null) {
+        return -1;
+      }
+      return reservation.itinerary.price;
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  @Override
+  public int getBalance(String username) throws SQLException {
+    Account account = account(username);
+    return account == null ? -1 : account.balance;
+  }
+
+  @Override
+  public int payReservation(String username, int reservationId) throws SQLException {
+    // the cache was usually just validated by the price check, so try it before reloading
+    Account cached = accounts.get(key(username));
+    int remaining = cached == null ? STALE : tryPayReservation(username, reservationId, cached);
+    if (remaining == STALE) {
+      remaining = tryPayReservation(username, reservationId, account(username));
+    }
+    return remaining == STALE ? -1 : remaining;
+  }
+
+  /**
+   * @return the remaining balance, -1 if the reservation cannot be paid, or STALE if the cached
+   *         account disagreed with the database
+   */
+  private int tryPayReservation(String username, int reservationId, Account account)
+      throws SQLException {
+    Reservation reservation = account == null ? null : account.reservations.get(reservationId);
+    if (reservation == null || reservation.paid || reservation.itinerary == null) {
+      return STALE;
+    }
+    try {
+      beginTransaction();
+      PreparedStatement payReservationStatement = statements.get(QueryStorage.PAY_RESERVATION);
+      payReservationStatement.clearParameters();
+      payReservationStatement.setInt(1, PAID);
+      payReservationStatement.setInt(2, reservationId);
+      payReservationStatement.setString(3, username);
+      payReservationStatement.setInt(4, UNPAID);
+      if (payReservationStatement.executeUpdate() != 1) {
+        rollBackTransaction();
+        accounts.remove(key(username));
+        return STALE;
+      }
+      AccountWrite write = adjustAccount(username, -reservation.itinerary.price);
+      if (write == null) {
+        rollBackTransaction();
+        return -1; // insufficient balance
+      }
+      Reservation paid = new Reservation(reservation);
+      paid.paid = true;
+      write.reservations.add(paid);
+      appendEvent(BookingEvent.Kind.PAID, username, reservationId, reservation.itinerary.key(),
+          reservation.itinerary.price);
+      commitTransaction();
+      return write.balance;
+    } catch (SQLException ex) {
+      rollBackTransaction();
+      throw ex;
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  /**
+   * Pays from the cached account without validating it first: the update itself checks that every
+   * reservation is the user's and unpaid. Only when it disagrees is the account reloaded, to name
+   * the reservation that cannot be paid or to try again.
+   */
+  @Override
+  public Payment payReservations(String username, List<Integer> reservationIds)
+      throws SQLException {
+    Account account = accounts.get(key(username));
+    boolean current = false;
+    for (int attempt = 0; attempt < MAX_PAY_ATTEMPTS; attempt++) {
+      if (account == null) {
+        account = account(username);
+        current = true;
+        if (account == null) {
+          return new Payment(false, -1, 0, reservationIds.get(0));
+        }
+      }
+      Payment payment = tryPayReservations(username, reservationIds, account, current);
+      if (payment != null) {
+        return payment;
+      }
+      account = null;
+    }
+    return null;
+  }
+
+  /**
+   * Marks every reservation paid with one set-based update, which also checks that each is the
+   * user's and unpaid, then debits their total once
+   *
+   * @param current whether the account was just validated, so a reservation it does not list as
+   *                unpaid really is not
+   * @return the payment, or null if the account disagreed with the database
+   */
+  private Payment tryPayReservations(String username, List<Integer> reservationIds,
+      Account account, boolean current) throws SQLException {
+    Set<Integer> ids = new LinkedHashSet<>(reservationIds);
+    List<Reservation> reservations = new ArrayList<>(ids.size());
+    StringBuilder idList = new StringBuilder();
+    int total = 0;
+    for (int id : ids) {
+      Reservation reservation = account.reservations.get(id);
+      if (reservation == null || reservation.paid || reservation.itinerary == null) {
+        return current ? new Payment(false, account.balance, 0, id) : null;
+      }
+      reservations.add(reservation);
+      idList.append(idList.length() == 0 ? "" : ",").append(id);
+      total += reservation.itinerary.price;
+    }
+    try {
+      beginTransaction();
+      PreparedStatement payReservationsStatement = statements.get(QueryStorage.PAY_RESERVATIONS);
+      payReservationsStatement.clearParameters();
+      payReservationsStatement.setInt(1, PAID);
+      payReservationsStatement.setString(2, username);
+      payReservationsStatement.setInt(3, UNPAID);
+      payReservationsStatement.setString(4, idList.toString());
+      if (payReservationsStatement.executeUpdate() != ids.size()) {
+        rollBackTransaction();
+        accounts.remove(key(username));
+        return null;
+      }
+      AccountWrite write = adjustAccount(username, -total);
+      if (write == null) {
+        rollBackTransaction();
+        // insufficient balance; the one read on this path reports how much there is
+        Account reloaded = account(username);
+        return new Payment(false, reloaded == null ? -1 : reloaded.balance, total, -1);
+      }
+      PreparedStatement appendEventStatement = statements.get(QueryStorage.APPEND_EVENT);
+      for (Reservation reservation : reservations) {
+        Reservation paid = new Reservation(reservation);
+        paid.paid = true;
+        write.reservations.add(paid);
+        appendEventStatement.clearParameters();
+        appendEventStatement.setString(1, BookingEvent.Kind.PAID.name());
+        appendEventStatement.setString(2, username);
+        appendEventStatement.setInt(3, reservation.id);
+        appendEventStatement.setLong(4, reservation.itinerary.key());
+        appendEventStatement.setInt(5, reservation.itinerary.price);
+        appendEventStatement.addBatch();
+      }
+      appendEventStatement.executeBatch();
+      commitTransaction();
+      return new Payment(true, write.balance, total, -1);
+    } catch (SQLException ex) {
+      rollBackTransaction();
+      throw ex;
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  @Override
+  public Reservation cancelReservation(String username, int reservationId, boolean releaseSeats)
+      throws SQLException {
+    try {
+      beginTransaction();
+      Reservation canceled = cancelInTransaction(username, reservationId, releaseSeats);
+      commitTransaction();
+      if (releaseSeats && canceled != null && canceled.itinerary != null) {
+        seatIndex.released(canceled.itinerary);
+      }
+      return canceled;
+    } catch (SQLException ex) {
+      rollBackTransaction();
+      throw ex;
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  @Override
+  public List<Reservation> cancelReservations(List<Reservation> reservations) throws SQLException {
+    List<Reservation> canceled = new ArrayList<>();
+    try {
+      beginTransaction();
+      for (Reservation reservation : reservations) {
+        Reservation result = cancelInTransaction(reservation.username, reservation.id, true);
+        if (result != null) {
+          canceled.add(result);
+        }
+      }
+      commitTransaction();
+      for (Reservation reservation : canceled) {
+        if (reservation.itinerary != null) {
+          seatIndex.released(reservation.itinerary);
+        }
+      }
+    } catch (SQLException ex) {
+      rollBackTransaction();
+      throw ex;
+    } finally {
+      checkDanglingTransaction();
+    }
+    return canceled;
+  }
+
+  @Override
+  public List<Rebooking> rebookReservations(List<Rebooking> rebookings) throws SQLException {
+    for (Rebooking rebooking : rebookings) {
+      for (Itinerary candidate : rebooking.candidates) {
+        registerItinerary(candidate);
+      }
+    }
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return tryRebookReservations(rebookings);
+      } catch (SQLException ex) {
+        if (!isDeadLock(ex) || attempt == MAX_DEADLOCK_RETRIES) {
+          throw ex;
+        }
+      }
+    }
+  }
+
+  private List<Rebooking> tryRebookReservations(List<Rebooking> rebookings) throws SQLException {
+    skewedFlights.clear();
+    try {
+      beginTransaction();
+      for (Rebooking rebooking : rebookings) {
+        Reservation reservation = rebooking.reservation;
+        rebooking.canceled = cancelInTransaction(reservation.username, reservation.id, true);
+        rebooking.replacement = null;
+        rebooking.reservationId = -1;
+        if (rebooking.canceled == null) {
+          continue;
+        }
+        for (Itinerary candidate : rebooking.candidates) {
+          if (takeSeats(candidate)) {
+            rebooking.replacement = candidate;
+            rebooking.reservationId = insertReservation(reservation.username, candidate);
+            break;
+          }
+        }
+      }
+      commitTransaction();
+    } catch (SQLException ex) {
+      rollBackTransaction();
+      throw ex;
+    } finally {
+      checkDanglingTransaction();
+    }
+    for (Rebooking rebooking : rebookings) {
+      if (rebooking.canceled != null && rebooking.canceled.itinerary != null) {
+        seatIndex.released(rebooking.canceled.itinerary);
+      }
+      if (rebooking.replacement != null) {
+        seatIndex.booked(rebooking.replacement);
+      }
+    }
+    for (int fid : skewedFlights) {
+      rebalanceSeatBuckets(fid);
+    }
+    return rebookings;
+  }
+
+  private Reservation cancelInTransaction(String username, int reservationId, boolean releaseSeats)
+      throws SQLException {
+    PreparedStatement cancelReservationStatement = statements.get(QueryStorage.CANCEL_RESERVATION);
+    cancelReservationStatement.clearParameters();
+    cancelReservationStatement.setInt(1, CANCELED);
+    cancelReservationStatement.setInt(2, UNPAID);
+    cancelReservationStatement.setInt(3, reservationId);
+    cancelReservationStatement.setString(4, username);
+    cancelReservationStatement.setInt(5, NOT_CANCELED);
+    boolean paid;
+    long itId;
+    int day;
+    try (ResultSet resultSet = cancelReservationStatement.executeQuery()) {
+      if (!resultSet.next()) {
+        return null;
+      }
+      paid = resultSet.getInt(1) == PAID;
+      itId = resultSet.getLong(2);
+      day = resultSet.getInt(3);
+    }
+    Account account = accounts.get(key(username));
+    Reservation cached = account == null ? null : account.reservations.get(reservationId);
+    Itinerary itinerary = cached != null && cached.itinerary != null ? cached.itinerary
+        : getItinerary(itId);
+    int refund = paid && itinerary != null ? itinerary.price : 0;
+    AccountWrite write = adjustAccount(username, refund);
+    if (write != null) {
+      write.reservations.add(new Reservation(reservationId, username, day, false, true, itinerary));
+    }
+    appendEvent(BookingEvent.Kind.CANCELED, username, reservationId, itId, refund);
+    if (releaseSeats && itinerary != null) {
+      for (Flight leg : itinerary.legs) {
+        releaseSeat(leg.fid);
+      }
+    }
+    return new Reservation(reservationId, username, day, paid, true, itinerary);
+  }
+
+  private void releaseSeat(int fid) throws SQLException {
+    PreparedStatement releaseSeatStatement = statements.get(QueryStorage.RELEASE_SEAT);
+    releaseSeatStatement.clearParameters();
+    releaseSeatStatement.setInt(1, fid);
+    releaseSeatStatement.setInt(2, ThreadLocalRandom.current().nextInt(SEAT_BUCKETS));
+    releaseSeatStatement.executeUpdate();
+  }
+
+  @Override
+  public boolean cancelFlight(int fid) throws SQLException {
+    try {
+      beginTransaction();
+      PreparedStatement cancelFlightStatement = statements.get(QueryStorage.CANCEL_FLIGHT);
+      cancelFlightStatement.clearParameters();
+      cancelFlightStatement.setInt(1, fid);
+      boolean canceled = cancelFlightStatement.executeUpdate() == 1;
+      if (canceled) {
+        invalidateRoutes(fid);
+      }
+      commitTransaction();
+      // graph flights are shared by every connection to the database, so the graph is rebuilt
+      // rather than changed underneath searches
+      graphs.values().removeIf(loaded -> loaded.graph.flight(fid) != null);
+      return canceled;
+    } catch (SQLException ex) {
+      rollBackTransaction();
+      throw ex;
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  @Override
+  public List<Reservation> getReservationsOnFlight(int fid, int afterId, int limit)
+      throws SQLException {
+    try {
+      PreparedStatement reservationsOnFlightStatement =
+          statements.get(QueryStorage.RESERVATIONS_ON_FLIGHT);
+      reservationsOnFlightStatement.clearParameters();
+      reservationsOnFlightStatement.setInt(1, limit);
+      reservationsOnFlightStatement.setInt(2, afterId);
+      reservationsOnFlightStatement.setInt(3, NOT_CANCELED);
+      reservationsOnFlightStatement.setInt(4, fid);
+      reservationsOnFlightStatement.setInt(5, fid);
+      reservationsOnFlightStatement.setInt(6, fid);
+      reservationsOnFlightStatement.setFetchSize(limit * 2);
+      try (ResultSet resultSet = reservationsOnFlightStatement.executeQuery()) {
+        return mapReservationLegs(resultSet);
+      }
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  /**
+   * Maps the rows of a {@link QueryStorage} reservation legs query, one per leg, to reservations
+   * with their itineraries
+   */
+  private List<Reservation> mapReservationLegs(ResultSet resultSet) throws SQLException {
+    List<Reservation> reservations = new ArrayList<>();
+    List<Flight> legs = new ArrayList<>();
+    Reservation reservation = null;
+    long itId = 0;
+    while (resultSet.next()) {
+      int id = resultSet.getInt(1);
+      if (reservation == null || reservation.id != id) {
+        setItinerary(reservation, itId, legs);
+        reservation = new Reservation(id, resultSet.getString(2), resultSet.getInt(3),
+            resultSet.getInt(4) == PAID, resultSet.getInt(5) == CANCELED, null);
+        itId = resultSet.getLong(6);
+        reservations.add(reservation);
+      }
+      resultSet.getInt(8);
+      if (!resultSet.wasNull()) {
+        legs.add(reservationLegMapper.map(resultSet));
+      }
+    }
+    setItinerary(reservation, itId, legs);
+    return reservations;
+  }
+
+  private static void setItinerary(Reservation reservation, long itId, List<Flight> legs) {
+    if (reservation != null && !legs.isEmpty()) {
+      reservation.itinerary = new Itinerary(legs);
+      reservation.itinerary.setKey(itId);
+    }
+    legs.clear();
+  }
+
+  @Override
+  public List<Reservation> getReservations(String username) throws SQLException {
+    List<Reservation> reservations = new ArrayList<>();
+    try {
+      Account account = account(username);
+      if (account != null) {
+        for (Reservation reservation : account.reservations.values()) {
+          reservations.add(new Reservation(reservation));
+        }
+      }
+    } finally {
+      checkDanglingTransaction();
+    }
+    return reservations;
+  }
+
+  /**
+   * Records an event in the outbox as part of the current transaction
+   */
+  private void appendEvent(BookingEvent.Kind kind, String username, int reservationId,
+      long itId, int amount) throws SQLException {
+    PreparedStatement appendEventStatement = statements.get(QueryStorage.APPEND_EVENT);
+    appendEventStatement.clearParameters();
+    appendEventStatement.setString(1, kind.name());
+    appendEventStatement.setString(2, username);
+    appendEventStatement.setInt(3, reservationId);
+    appendEventStatement.setLong(4, itId);
+    appendEventStatement.setInt(5, amount);
+    appendEventStatement.executeUpdate();
+  }
+
+  @Override
+  public List<BookingEvent> readEvents(long afterSeq, int limit) throws SQLException {
+    List<BookingEvent> events = new ArrayList<>();
+    try {
+      PreparedStatement readEventsStatement = statements.get(QueryStorage.READ_EVENTS);
+      readEventsStatement.clearParameters();
+      readEventsStatement.setInt(1, limit);
+      readEventsStatement.setLong(2, afterSeq);
+      readEventsStatement.setFetchSize(limit);
+      try (ResultSet resultSet = readEventsStatement.executeQuery()) {
+        while (resultSet.next()) {
+          events.add(new BookingEvent(resultSet.getLong(1),
+              BookingEvent.Kind.valueOf(resultSet.getString(2)), resultSet.getString(3),
+              resultSet.getInt(4), resultSet.getLong(5), resultSet.getInt(6)));
+        }
+      }
+    } finally {
+      checkDanglingTransaction();
+    }
+    return events;
+  }
+
+  @Override
+  public void purgeEvents(long throughSeq) throws SQLException {
+    try {
+      PreparedStatement purgeEventsStatement = statements.get(QueryStorage.PURGE_EVENTS);
+      purgeEventsStatement.clearParameters();
+      purgeEventsStatement.setLong(1, throughSeq);
+      purgeEventsStatement.executeUpdate();
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  @Override
+  public long getSubscriberOffset(String subscriber) throws SQLException {
+    PreparedStatement getSubscriberOffsetStatement =
+        statements.get(QueryStorage.GET_SUBSCRIBER_OFFSET);
+    getSubscriberOffsetStatement.clearParameters();
+    getSubscriberOffsetStatement.setString(1, subscriber);
+    try (ResultSet resultSet = getSubscriberOffsetStatement.executeQuery()) {
+      return resultSet.next() ? resultSet.getLong(1) : 0;
+    }
+  }
+
+  @Override
+  public void saveSubscriberOffset(String subscriber, long seq) throws SQLException {
+    try {
+      PreparedStatement saveSubscriberOffsetStatement =
+          statements.get(QueryStorage.SAVE_SUBSCRIBER_OFFSET);
+      saveSubscriberOffsetStatement.clearParameters();
+      saveSubscriberOffsetStatement.setString(1, subscriber);
+      saveSubscriberOffsetStatement.setLong(2, seq);
+      saveSubscriberOffsetStatement.executeUpdate();
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  /**
+   * @return every flight, canceled ones included
+   */
+  public List<Flight> loadFlights() throws SQLException {
+    List<Flight> flights = new ArrayList<>();
+    try {
+      PreparedStatement loadFlightsStatement = statements.get(QueryStorage.LOAD_FLIGHTS);
+      loadFlightsStatement.setFetchSize(ANALYTICS_FETCH_SIZE);
+      try (ResultSet resultSet = loadFlightsStatement.executeQuery()) {
+        FlightRowMapper mapper = FlightRowMapper.forColumns(resultSet.getMetaData(), null);
+        while (resultSet.next()) {
+          flights.add(mapper.map(resultSet));
+        }
+      }
+    } finally {
+      checkDanglingTransaction();
+    }
+    return flights;
+  }
+
+  /**
+   * Feeds every live reservation, and the seats left on every flight with Capacities rows, into
+   * {@code analytics}. All of it is read in one SNAPSHOT transaction, so the reports see one
+   * point in time and the reads take no locks that bookings would wait on. The database needs
+   * ALLOW_SNAPSHOT_ISOLATION ON. Each table is read once, front to back.
+   */
+  public void readAnalyticsSnapshot(Analytics analytics)
+      throws SQLException, InterruptedException {
+    int isolation = conn.getTransactionIsolation();
+    conn.setTransactionIsolation(TRANSACTION_SNAPSHOT);
+    try {
+      beginTransaction();
+      // legs of the itineraries over two legs, whose Itineraries row only has the first two
+      Map<Long, int[]> multiLegs = new HashMap<>();
+      PreparedStatement legsStatement = statements.get(QueryStorage.ANALYTICS_ITINERARY_LEGS);
+      legsStatement.setFetchSize(ANALYTICS_FETCH_SIZE);
+      try (ResultSet resultSet = legsStatement.executeQuery()) {
+        while (resultSet.next()) {
+          long itId = resultSet.getLong(1);
+          int leg = resultSet.getInt(2);
+          int[] legs = multiLegs.get(itId);
+          if (legs == null || legs.length <= leg) {
+            legs = legs == null ? new int[leg + 1] : Arrays.copyOf(legs, leg + 1);
+            multiLegs.put(itId, legs);
+          }
+          legs[leg] = resultSet.getInt(3);
+        }
+      }
+      PreparedStatement capacitiesStatement = statements.get(QueryStorage.ANALYTICS_CAPACITIES);
+      capacitiesStatement.setFetchSize(ANALYTICS_FETCH_SIZE);
+      try (ResultSet resultSet = capacitiesStatement.executeQuery()) {
+        while (resultSet.next()) {
+          analytics.setRemainingSeats(resultSet.getInt(1), resultSet.getInt(2));
+        }
+      }
+      PreparedStatement reservationsStatement =
+          statements.get(QueryStorage.ANALYTICS_RESERVATIONS);
+      reservationsStatement.clearParameters();
+      reservationsStatement.setInt(1, NOT_CANCELED);
+      reservationsStatement.setFetchSize(ANALYTICS_FETCH_SIZE);
+      try (ResultSet resultSet = reservationsStatement.executeQuery()) {
+        while (resultSet.next()) {
+          boolean paid = resultSet.getInt(1) == PAID;
+          long itId = resultSet.getLong(2);
+          int price = resultSet.getInt(3);
+          if (Itinerary.isMultiLegKey(itId) && multiLegs.containsKey(itId)) {
+            analytics.addReservation(paid, price, multiLegs.get(itId));
+          } else {
+            analytics.addReservation(paid, price, resultSet.getInt(4), resultSet.getInt(5));
+          }
+        }
+      }
+      commitTransaction();
+    } catch (SQLException | InterruptedException e) {
+      rollBackTransaction();
+      throw e;
+    } finally {
+      conn.setTransactionIsolation(isolation);
+      checkDanglingTransaction();
+    }
+  }
+
+  /**
+   * The user's cached account, reloaded first if another write changed it since it was cached
+   *
+   * @return null if the user does not exist
+   */
+  private Account account(String username) throws SQLException {
+    PreparedStatement accountVersionStatement = statements.get(QueryStorage.ACCOUNT_VERSION);
+    accountVersionStatement.clearParameters();
+    accountVersionStatement.setString(1, username);
+    int version;
+    int balance;
+    try (ResultSet resultSet = accountVersionStatement.executeQuery()) {
+      if (!resultSet.next()) {
+        accounts.remove(key(username));
+        return null;
+      }
+      version = resultSet.getInt(1);
+      balance = resultSet.getInt(2);
+    }
+    Account account = accounts.get(key(username));
+    if (account != null && account.version == version) {
+      return account;
+    }
+    // a write racing with the load makes the cache look older than its rows, which only
+    // causes one more reload
+    account = new Account(version, balance);
+    for (Reservation reservation : loadReservations(username)) {
+      account.reservations.put(reservation.id, reservation);
+    }
+    accounts.put(key(username), account);
+    return account;
+  }
+
+  /**
+   * Adds {@code delta} to the user's balance and bumps the account version, unless the balance
+   * would go negative. The cache is updated when the transaction commits.
+   *
+   * @return the write, or null if the balance is too low or the user does not exist
+   */
+  private AccountWrite adjustAccount(String username, int delta) throws SQLException {
+    PreparedStatement adjustAccountStatement = statements.get(QueryStorage.ADJUST_ACCOUNT);
+    adjustAccountStatement.clearParameters();
+    adjustAccountStatement.setInt(1, delta);
+    adjustAccountStatement.setString(2, username);
+    adjustAccountStatement.setInt(3, delta);
+    try (ResultSet resultSet = adjustAccountStatement.executeQuery()) {
+      if (!resultSet.next()) {
+        return null;
+      }
+      AccountWrite write = new AccountWrite(username, resultSet.getInt(1), resultSet.getInt(2));
+      pendingWrites.add(write);
+      return write;
+    }
+  }
+
+  /**
+   * Applies the committed writes to the cache. An account that another connection wrote in
+   * between is dropped instead and reloaded on next use.
+   */
+  private void applyPendingWrites() {
+    for (AccountWrite write : pendingWrites) {
+      Account account = accounts.get(key(write.username));
+      if (account == null) {
+        continue;
+      }
+      if (account.version != write.version - 1) {
+        accounts.remove(key(write.username));
+        continue;
+      }
+      account.version = write.version;
+      account.balance = write.balance;
+      for (Reservation reservation : write.reservations) {
+        account.reservations.put(reservation.id, reservation);
+      }
+    }
+    pendingWrites.clear();
+  }
+
+  private static String key(String username) {
+    return username.toLowerCase(Locale.ROOT);
+  }
+
+  private List<Reservation> loadReservations(String username) throws SQLException {
+    PreparedStatement retrieveReservationsStatement =
+        statements.get(QueryStorage.RETRIEVE_USER_RESERVATIONS);
+    retrieveReservationsStatement.clearParameters();
+    retrieveReservationsStatement.setString(1, username);
+    try (ResultSet resultSet = retrieveReservationsStatement.executeQuery()) {
+      return mapReservationLegs(resultSet);
+    }
+  }
+
+  private Itinerary getItinerary(long itId) throws SQLException {
+    PreparedStatement retrieveFlightStatement = statements.get(QueryStorage.RETRIEVE_FLIGHTS);
+    retrieveFlightStatement.clearParameters();
+    retrieveFlightStatement.setLong(1, itId);
+    int fid1;
+    int fid2;
+    try (ResultSet resultSet = retrieveFlightStatement.executeQuery()) {
+      if (!resultSet.next()) {
+        return null;
+      }
+      fid1 = resultSet.getInt("first_flight_id");
+      fid2 = resultSet.getInt("second_flight_id");
+    }
+    if (Itinerary.isMultiLegKey(itId)) {
+      return getMultiLegItinerary(itId);
+    }
+    Flight f1 = getFlightDetails(fid1);
+    return fid2 == -1 ? new Itinerary(f1) : new Itinerary(f1, getFlightDetails(fid2));
+  }
+
+  private Itinerary getMultiLegItinerary(long itId) throws SQLException {
+    List<Flight> legs = new ArrayList<>();
+    for (int fid : retrieveItineraryLegs(itId)) {
+      legs.add(getFlightDetails(fid));
+    }
+    Itinerary itinerary = new Itinerary(legs);
+    itinerary.setKey(itId);
+    return itinerary;
+  }
+
+  private int[] retrieveItineraryLegs(long itId) throws SQLException {
+    List<Integer> fids = new ArrayList<>();
+    PreparedStatement retrieveItineraryLegsStatement =
+        statements.get(QueryStorage.RETRIEVE_ITINERARY_LEGS);
+    retrieveItineraryLegsStatement.clearParameters();
+    retrieveItineraryLegsStatement.setLong(1, itId);
+    try (ResultSet resultSet = retrieveItineraryLegsStatement.executeQuery()) {
+      while (resultSet.next()) {
+        fids.add(resultSet.getInt(1));
+      }
+    }
+    return fids.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  private Flight getFlightDetails(int fid) throws SQLException {
+    PreparedStatement retrieveFlightDetailsStatement =
+        statements.get(QueryStorage.RETRIEVE_FLIGHT_DETAILS);
+    retrieveFlightDetailsStatement.clearParameters();
+    retrieveFlightDetailsStatement.setInt(1, fid);
+    try (ResultSet resultSet = retrieveFlightDetailsStatement.executeQuery()) {
+      if (!resultSet.next()) {
+        return null;
+      }
+      if (flightDetailsMapper == null) {
+        flightDetailsMapper = FlightRowMapper.forColumns(resultSet.getMetaData(), flightPool);
+      }
+      return flightDetailsMapper.map(resultSet);
+    }
+  }
+
+  /**
+   * Throw IllegalStateException if transaction not completely complete, rollback.
+   *
+   */
+  private void checkDanglingTransaction() {
+    try {
+      PreparedStatement tranCountStatement = statements.getUnbounded(QueryStorage.TRANCOUNT_SQL);
+      try (ResultSet rs = tranCountStatement.executeQuery()) {
+        rs.next();
+        int count = rs.getInt("tran_count");
+        if (count > 0) {
+          throw new IllegalStateException(
+              "Transaction not fully commit/rollback. Number of transaction in process: " + count);
+        }
+      } finally {
+        conn.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      throw new IllegalStateException("Database error", e);
+    }
+  }
+
+  private static boolean isDeadLock(SQLException ex) {
+    return ex.getErrorCode() == 1205;
+  }
+
+  private void beginTransaction() throws SQLException {
+    pendingWrites.clear();
+    conn.setAutoCommit(false);
+  }
+
+  private void commitTransaction() throws SQLException {
+    // past the deadline the caller rolls back instead
+    Deadline.check();
+    conn.commit();
+    Deadline.committed();
+    conn.setAutoCommit(true);
+    applyPendingWrites();
+  }
+
+  private void rollBackTransaction() throws SQLException {
+    pendingWrites.clear();
+    conn.rollback();
+    conn.setAutoCommit(true);
+  }
+}
@@ -0,0 +1,189 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Tails the outbox of a backend and hands its {@link BookingEvent}s to subscribers in batches.
+ *
+ * Each subscriber has a named offset stored in the backend, so it resumes where it left off after
+ * a restart. An offset moves only after the subscriber has accepted the batch, which makes
+ * delivery at-least-once: a subscriber that fails, or a relay that dies before saving the offset,
+ * sees the same events again and must tolerate duplicates (e.g. by remembering the last seq).
+ */
+public class OutboxRelay implements AutoCloseable {
+
+  /**
+   * Receives the events of one batch in sequence order
+   */
+  public interface Subscriber {
+    void deliver(List<BookingEvent> events) throws Exception;
+  }
+
+  private static class Subscription {
+    final String name;
+    final Subscriber subscriber;
+    long offset;
+
+    Subscription(String name, Subscriber subscriber, long offset) {
+      this.name = name;
+      this.subscriber = subscriber;
+      this.offset = offset;
+    }
+  }
+
+  // storage the relay reads from, used only under the relay's lock
+  private final FlightStorage storage;
+  private final int batchSize;
+  private final long pollMillis;
+
+  // guarded by this
+  private Thread poller;
+  private final List<Subscription> subscriptions = new ArrayList<>();
+  private boolean closed = false;
+
+  /**
+   * @param storage a backend owned by the relay, e.g. its own JDBC connection
+   * @param pollMillis how long to wait after a poll that found nothing new
+   */
+  public OutboxRelay(FlightStorage storage, int batchSize, long pollMillis) {
+    this.storage = storage;
+    this.batchSize = batchSize;
+    this.pollMillis = pollMillis;
+  }
+
+  /**
+   * Starts polling in the background, unless already started
+   */
+  public synchronized void start() {
+    if (poller == null && !closed) {
+      poller = new Thread(this::run, "outbox-relay");
+      poller.setDaemon(true);
+      poller.start();
+    }
+  }
+
+  /**
+   * Adds a subscriber, resuming from its saved offset
+   */
+  public synchronized void subscribe(String name, Subscriber subscriber) throws SQLException {
+    subscriptions.add(new Subscription(name, subscriber, storage.getSubscriberOffset(name)));
+  }
+
+  /**
+   * Reads one batch, starting at the offset of the subscriber that is furthest behind, and gives
+   * every subscriber the events past its own offset
+   *
+   * @return the number of events read
+   */
+  public synchronized int poll() throws SQLException {
+    if (subscriptions.isEmpty()) {
+      return 0;
+    }
+    long from = Long.MAX_VALUE;
+    for (Subscription subscription : subscriptions) {
+      from = Math.min(from, subscription.offset);
+    }
+    List<BookingEvent> events = storage.readEvents(from, batchSize);
+    for (Subscription subscription : subscriptions) {
+      int start = 0;
+      while (start < events.size() && events.get(start).seq <= subscription.offset) {
+        start++;
+      }
+      if (start == events.size()) {
+        continue;
+      }
+      try {
+        subscription.subscriber.deliver(
+            Collections.unmodifiableList(events.subList(start, events.size())));
+      } catch (Exception e) {
+        // retried from the same offset on the next poll
+        System.err.println("Outbox subscriber " + subscription.name + " failed: " + e);
+        continue;
+      }
+      long last = events.get(events.size() - 1).seq;
+      storage.saveSubscriberOffset(subscription.name, last);
+      subscription.offset = last;
+    }
+    return events.size();
+  }
+
+  /**
+   * Deletes the events every subscriber of this relay has processed. Only safe when this relay
+   * carries all subscribers of the outbox.
+   */
+  public synchronized void purge() throws SQLException {
+    long through = Long.MAX_VALUE;
+    for (Subscription subscription : subscriptions) {
+      through = Math.min(through, subscription.offset);
+    }
+    if (through != Long.MAX_VALUE && through > 0) {
+      storage.purgeEvents(through);
+    }
+  }
+
+  private void run() {
+    while (true) {
+      int read;
+      try {
+        read = poll();
+      } catch (SQLException e) {
+        e.printStackTrace();
+        read = 0;
+      }
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        if (read < batchSize) {
+          try {
+            wait(pollMillis);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (closed) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Subscriber appending each event as a line to a file, flushed per batch
+   */
+  public static Subscriber fileSink(Path path) {
+    return events -> {
+      try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+          StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+        for (BookingEvent event : events) {
+          out.write(event + "\n");
+        }
+      }
+    };
+  }
+
+  /**
+   * Stops polling and closes the storage
+   */
+  @Override
+  public void close() throws SQLException {
+    Thread poller;
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+      poller = this.poller;
+    }
+    if (poller != null) {
+      try {
+        poller.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    storage.close();
+  }
+}
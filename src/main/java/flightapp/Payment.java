@@ -0,0 +1,21 @@
+package flightapp;
+
+/**
+ * Outcome of paying for several reservations at once, see {@link FlightStorage#payReservations}
+ */
+public class Payment {
+  public boolean paid;
+  // the remaining balance if paid, otherwise the balance the user has; -1 if there is no such user
+  public int balance;
+  // total price of the reservations, 0 if one of them is not payable
+  public int total;
+  // the first reservation that is not the user's unpaid one, or -1 if all of them are
+  public int notPayable;
+
+  public Payment(boolean paid, int balance, int total, int notPayable) {
+    this.paid = paid;
+    this.balance = balance;
+    this.total = total;
+    this.notPayable = notPayable;
+  }
+}
@@ -3,6 +3,7 @@ package flightapp;
 import java.io.*;
 import java.sql.*;
 import java.util.*;
+import java.util.stream.Collectors;
 import java.security.*;
 import java.security.spec.*;
 import javax.crypto.*;
@@ -12,52 +13,23 @@ import javax.crypto.spec.*;
  * Runs queries against a back-end database
  */
 public class Query {
-  // DB Connection
-  private Connection conn;
+  // Storage backend
+  private FlightStorage storage;
+  // Shared waitlist for full flights, null if waitlisting is not enabled
+  private Waitlist waitlist;
 
   // Password hashing parameter constants
   private static final int HASH_STRENGTH = 65536;
   private static final int KEY_LENGTH = 128;
 
-  private static final int PAID = 0;
-  private static final int UNPAID = 1;
-  private static final int CANCELED = 0;
-  private static final int NOT_CANCELED = 1;
-
-  private PreparedStatement checkFlightCapacityStatement;
-  private PreparedStatement clearUsersStatement;
-  private PreparedStatement clearItinerariesStatement;
-  private PreparedStatement clearReservationsStatement;
-  private PreparedStatement clearCapacitiesStatement;
-
-  private PreparedStatement createUserStatement;
-  private PreparedStatement getSaltStatement;
-  private PreparedStatement loginUserStatement;
-
-  private PreparedStatement searchDirectFlightStatement;
-  private PreparedStatement searchIndirectFlightStatement;
-
-  private PreparedStatement checkReservationStatusStatement;
-  private PreparedStatement reserveItinerary;
-  private PreparedStatement bookFlightStatement;
-  private PreparedStatement checkOwnershipStatement;
-  private PreparedStatement checkPriceStatement;
-  private PreparedStatement checkBalanceStatement;
-  private PreparedStatement updateBalanceStatement;
-  private PreparedStatement updatePaymentStatement;
-  private PreparedStatement retrieveReservationsStatement;
-  private PreparedStatement retrieveFlightStatement;
-  private PreparedStatement retrieveFlightDetailsStatement;
-  private PreparedStatement retrieveReservationStatement;
-  private PreparedStatement cancelReservationStatement;
-  private PreparedStatement insertIfFlightNotExistsStatement;
-  private PreparedStatement selectCapacityStatement;
-  private PreparedStatement updateCapacityStatement;
-  // For check dangling
-  private PreparedStatement tranCountStatement;
+  // Resumable session tokens, shared by every session in this process
+  private static final SessionTokens sessionTokens = SessionTokens.fromSystemProperties();
+
   // keeps track of login status
   private boolean loggedIn = false;
   private String user = null;
+  // remote address of the client, null for local sessions
+  private String client = null;
   private Map<Integer, Itinerary> itinerariesMap;
   public Query() throws SQLException, IOException {
     this(null, null, null, null);
@@ -65,10 +37,25 @@ public class Query {
 
   protected Query(String serverURL, String dbName, String adminName, String password)
       throws SQLException, IOException {
-    conn = serverURL == null ? openConnectionFromDbConn()
-        : openConnectionFromCredential(serverURL, dbName, adminName, password);
+    this(new JdbcFlightStorage(serverURL == null ? openConnectionFromDbConn()
+        : openConnectionFromCredential(serverURL, dbName, adminName, password)));
+  }
+
+  /**
+   * Creates a session on the given storage backend
+   */
+  public Query(FlightStorage storage) {
+    this(storage, null);
+  }
+
+  /**
+   * Creates a session on the given storage backend that can queue full bookings on a waitlist
+   * shared with the other sessions
+   */
+  public Query(FlightStorage storage, Waitlist waitlist) {
+    this.storage = Trace.wrap(FlightStorage.class, storage);
+    this.waitlist = waitlist;
     itinerariesMap = new HashMap<>();
-    prepareStatements();
   }
 
   /**
@@ -115,17 +102,35 @@ public class Query {
   }
 
   /**
-   * Get underlying connection
+   * Get the storage backend of this session
    */
-  public Connection getConnection() {
-    return conn;
+  public FlightStorage getStorage() {
+    return storage;
+  }
+
+  /**
+   * Get the logged-in user of this session, or null if no one is logged in
+   */
+  public String getUser() {
+    return user;
+  }
+
+  /**
+   * Get the remote address of the client of this session, or null for a local session
+   */
+  public String getClient() {
+    return client;
+  }
+
+  public void setClient(String client) {
+    this.client = client;
   }
 
   /**
    * Closes the application-to-database connection
    */
   public void closeConnection() throws SQLException {
-    conn.close();
+    storage.close();
   }
 
   /**
@@ -135,52 +140,12 @@ public class Query {
    */
   public void clearTables() {
     try {
-      clearReservationsStatement.clearParameters();
-      clearReservationsStatement.executeUpdate();
-      clearUsersStatement.clearParameters();
-      clearUsersStatement.executeUpdate();
-      clearItinerariesStatement.clearParameters();
-      clearItinerariesStatement.executeUpdate();
-      clearCapacitiesStatement.clearParameters();
-      clearCapacitiesStatement.executeUpdate();
+      storage.clearTables();
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
-  /*
-   * prepare all the SQL statements in this method.
-   */
-  private void prepareStatements() throws SQLException {
-    checkFlightCapacityStatement = conn.prepareStatement(QueryStorage.CHECK_FLIGHT_CAPACITY);
-    tranCountStatement = conn.prepareStatement(QueryStorage.TRANCOUNT_SQL);
-    clearUsersStatement = conn.prepareStatement(QueryStorage.CLEAR_USERS);
-    clearItinerariesStatement = conn.prepareStatement(QueryStorage.CLEAR_ITINERARIES);
-    clearReservationsStatement = conn.prepareStatement(QueryStorage.CLEAR_RESERVATIONS);
-    createUserStatement = conn.prepareStatement(QueryStorage.CREATE_USER);
-    getSaltStatement = conn.prepareStatement(QueryStorage.GET_SALT);
-    loginUserStatement = conn.prepareStatement(QueryStorage.LOGIN_USER);
-    searchDirectFlightStatement = conn.prepareStatement(QueryStorage.SEARCH_DIRECT_FLIGHTS);
-    searchIndirectFlightStatement = conn.prepareStatement(QueryStorage.SEARCH_INDIRECT_FLIGHTS);
-    checkReservationStatusStatement = conn.prepareStatement(QueryStorage.CHECK_RESERVATION_STATUS);
-    bookFlightStatement = conn.prepareStatement(QueryStorage.BOOK_FLIGHT, Statement.RETURN_GENERATED_KEYS);
-    reserveItinerary = conn.prepareStatement(QueryStorage.RESERVE_ITINERARY);
-    checkOwnershipStatement = conn.prepareStatement(QueryStorage.CHECK_OWNERSHIP_STATUS);
-    checkPriceStatement = conn.prepareStatement(QueryStorage.CHECK_PRICE);
-    checkBalanceStatement = conn.prepareStatement(QueryStorage.CHECK_BALANCE);
-    updateBalanceStatement = conn.prepareStatement(QueryStorage.UPDATE_BALANCE);
-    updatePaymentStatement = conn.prepareStatement(QueryStorage.UPDATE_PAYMENT_STATUS);
-    retrieveReservationsStatement = conn.prepareStatement(QueryStorage.RETRIEVE_USER_RESERVATIONS);
-    retrieveFlightStatement = conn.prepareStatement(QueryStorage.RETRIEVE_FLIGHTS);
-    retrieveFlightDetailsStatement  = conn.prepareStatement(QueryStorage.RETRIEVE_FLIGHT_DETAILS);
-    retrieveReservationStatement = conn.prepareStatement(QueryStorage.RETRIEVE_RESERVATION);
-    cancelReservationStatement = conn.prepareStatement(QueryStorage.CANCEL_RESERVATION);
-    insertIfFlightNotExistsStatement = conn.prepareStatement(QueryStorage.INSERT_IF_FLIGHT_NOT_EXISTS);
-    selectCapacityStatement = conn.prepareStatement(QueryStorage.SELECT_CAPACITY);
-    updateCapacityStatement = conn.prepareStatement(QueryStorage.UPDATE_CAPACITY);
-    clearCapacitiesStatement = conn.prepareStatement(QueryStorage.CLEAR_CAPACITIES);
-  }
-
   /**
    * Takes a user's username and password and attempts to log the user in.
    *
@@ -191,17 +156,31 @@ public class Query {
    *         errors, return "Login failed\n". Otherwise, return "Logged in as [username]\n".
    */
   public String transaction_login(String username, String password) {
+    return transaction_login(username, password, false);
+  }
+
+  /**
+   * Logs the user in as {@link #transaction_login(String, String)} does, optionally issuing a
+   * session token that {@link #transaction_resume} accepts in place of the password.
+   *
+   * @return on success with {@code issueToken}, "Logged in as [username]\nSession token:
+   *         [token]\n"
+   */
+  public String transaction_login(String username, String password, boolean issueToken) {
     if (loggedIn) return "User already logged in\n";
     try {
-      byte[] salt = findSaltValue(username);
+      byte[] salt = storage.getSalt(username);
+      if (salt == null) {
+        return "Login failed\n";
+      }
       byte[] passwordHash = generateHash(password, salt);
-      loginUserStatement.clearParameters();
-      loginUserStatement.setString(1, username);
-      loginUserStatement.setBytes(2, passwordHash);
-      ResultSet result = loginUserStatement.executeQuery();
-      if (result.next()) {
+      if (storage.checkPassword(username, passwordHash)) {
         this.loggedIn = true;
         this.user = username;
+        if (issueToken) {
+          return "Logged in as " + username + "\nSession token: " + sessionTokens.issue(username)
+              + "\n";
+        }
         return "Logged in as " + username + "\n";
       } else {
         return "Login failed\n";
@@ -209,19 +188,32 @@ public class Query {
     } catch (SQLException ex) {
       return "Login failed\n";
     }
-    finally {
-      checkDanglingTransaction();
+  }
+
+  /**
+   * Logs the user back in with a session token from an earlier login, without hashing the
+   * password again.
+   *
+   * @return If someone has already logged in, then return "User already logged in\n". If the token
+   *         is forged, expired or revoked, return "Resume failed\n". Otherwise, return "Logged in
+   *         as [username]\n".
+   */
+  public String transaction_resume(String token) {
+    if (loggedIn) return "User already logged in\n";
+    String username = sessionTokens.verify(token);
+    if (username == null) {
+      return "Resume failed\n";
     }
+    this.loggedIn = true;
+    this.user = username;
+    return "Logged in as " + username + "\n";
   }
 
-  private byte[] findSaltValue(String username) throws SQLException {
-      getSaltStatement.clearParameters();
-      getSaltStatement.setString(1, username);
-      ResultSet result = getSaltStatement.executeQuery();
-      if (result.next()) {
-        return result.getBytes("salt");
-      }
-      return null;
+  /**
+   * Get the session tokens shared by this process, e.g. to revoke them
+   */
+  public static SessionTokens getSessionTokens() {
+    return sessionTokens;
   }
 
   /**
@@ -239,19 +231,13 @@ public class Query {
     try {
       byte[] salt = generateSalt();
       byte[] hash = generateHash(password, salt);
-      createUserStatement.clearParameters();
-      createUserStatement.setString(1, username);
-      createUserStatement.setBytes(2, hash);
-      createUserStatement.setInt(3, initAmount);
-      createUserStatement.setBytes(4, salt);
-      createUserStatement.executeUpdate();
-      return "Created user " + username + "\n";
+      if (storage.createUser(username, hash, salt, initAmount)) {
+        return "Created user " + username + "\n";
+      }
     } catch(SQLException e) {
-      return "Failed to create user\n";
-    }
-    finally {
-      checkDanglingTransaction();
+      e.printStackTrace();
     }
+    return "Failed to create user\n";
   }
 
   private byte[] generateSalt() {
@@ -265,11 +251,15 @@ public class Query {
     KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
     SecretKeyFactory factory = null;
     byte[] hash = null;
+    Trace.Span span = Trace.span("hashPassword");
     try {
       factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
       hash = factory.generateSecret(spec).getEncoded();
     } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
+      span.fail(ex);
       throw new IllegalStateException();
+    } finally {
+      span.close();
     }
     return hash;
   }
@@ -307,98 +297,78 @@ public class Query {
   public String transaction_search(String originCity, String destinationCity, boolean directFlight,
       int dayOfMonth, int numberOfItineraries) {
     List<Itinerary> itineraries = new ArrayList<>();
-      int count = 0;
-      try {
-        // one hop itineraries
-        searchDirectFlightStatement.clearParameters();
-        searchDirectFlightStatement.setInt(1, numberOfItineraries);
-        searchDirectFlightStatement.setString(2, originCity);
-        searchDirectFlightStatement.setString(3, destinationCity);
-        searchDirectFlightStatement.setInt(4, dayOfMonth);
-        ResultSet oneHopResults = searchDirectFlightStatement.executeQuery();
-        while (oneHopResults.next()) {
-          int fid = oneHopResults.getInt("fid");
-          int result_dayOfMonth = oneHopResults.getInt("day_of_month");
-          String result_carrierId = oneHopResults.getString("carrier_id");
-          String result_flightNum = oneHopResults.getString("flight_num");
-          String result_originCity = oneHopResults.getString("origin_city");
-          String result_destCity = oneHopResults.getString("dest_city");
-          int result_time = oneHopResults.getInt("actual_time");
-          int result_capacity = oneHopResults.getInt("capacity");
-          int result_price = oneHopResults.getInt("price");
-          itineraries.add(new Itinerary(new Flight(fid, result_dayOfMonth, result_carrierId, result_flightNum, result_originCity,
-                    result_destCity, result_time, result_capacity, result_price)));
-          count++;
-        }
-        oneHopResults.close();
-        if (!directFlight && count < numberOfItineraries) {
-          int numLeft = numberOfItineraries - itineraries.size();
-          findIndirectFlights(itineraries, numLeft, originCity, destinationCity, dayOfMonth);
-        }
-      } catch (SQLException e) {
-        e.printStackTrace();
-      } finally {
-      checkDanglingTransaction();
+    try {
+      itineraries = storage.searchItineraries(originCity, destinationCity, directFlight,
+          dayOfMonth, numberOfItineraries);
+    } catch (SQLException e) {
+      e.printStackTrace();
     }
     return listItinerary(itineraries);
   }
 
-  private void findIndirectFlights(List<Itinerary> itineraries, int numLeft, String originCity, String destinationCity,
-                                   int dayOfMonth) {
+  /**
+   * Searches like {@link #transaction_search}, but for itineraries of up to {@code maxLegs}
+   * flights, listed in the same format
+   */
+  public String transaction_search(String originCity, String destinationCity, int dayOfMonth,
+      int numberOfItineraries, int maxLegs) {
+    List<Itinerary> itineraries = new ArrayList<>();
     try {
-      searchIndirectFlightStatement.clearParameters();
-      searchIndirectFlightStatement.setInt(1, numLeft);
-      searchIndirectFlightStatement.setString(2, originCity);
-      searchIndirectFlightStatement.setString(3, destinationCity);
-      searchIndirectFlightStatement.setInt(4, dayOfMonth);
-      ResultSet twoHopResults = searchIndirectFlightStatement.executeQuery();
-      while (twoHopResults.next()) {
-        int fid1 = twoHopResults.getInt("fid1");
-        int result_dayOfMonth1 = twoHopResults.getInt("dom1");
-        String result_carrierId1 = twoHopResults.getString("cid1");
-        String result_flightNum1 = twoHopResults.getString("fn1");
-        String result_originCity1 = twoHopResults.getString("oc1");
-        String result_destCity1 = twoHopResults.getString("dc1");
-        int result_time1 = twoHopResults.getInt("at1");
-        int result_capacity1 = twoHopResults.getInt("c1");
-        int result_price1 = twoHopResults.getInt("p1");
-
-        int fid2 = twoHopResults.getInt("fid2");
-        int result_dayOfMonth2 = twoHopResults.getInt("dom2");
-        String result_carrierId2 = twoHopResults.getString("cid2");
-        String result_flightNum2 = twoHopResults.getString("fn2");
-        String result_originCity2 = twoHopResults.getString("oc2");
-        String result_destCity2 = twoHopResults.getString("dc2");
-        int result_time2 = twoHopResults.getInt("at2");
-        int result_capacity2 = twoHopResults.getInt("c2");
-        int result_price2 = twoHopResults.getInt("p2");
-        Flight f1 = new Flight(fid1, result_dayOfMonth1, result_carrierId1, result_flightNum1, result_originCity1,
-                result_destCity1, result_time1, result_capacity1, result_price1);
-        Flight f2 = new Flight(fid2, result_dayOfMonth2, result_carrierId2, result_flightNum2, result_originCity2,
-                result_destCity2, result_time2, result_capacity2, result_price2);
-        itineraries.add(new Itinerary(f1, f2));
-      }
+      itineraries = storage.searchMultiLeg(originCity, destinationCity, dayOfMonth, maxLegs,
+          numberOfItineraries);
     } catch (SQLException e) {
       e.printStackTrace();
-    } finally {
-      checkDanglingTransaction();
     }
+    return listItinerary(itineraries);
+  }
+
+  /**
+   * Searches like {@link #transaction_search}, but returns only the itineraries on the
+   * price/duration skyline, fastest first and each cheaper than the one before, listed in the same
+   * format
+   */
+  public String transaction_searchSkyline(String originCity, String destinationCity,
+      boolean directFlight, int dayOfMonth, int numberOfItineraries) {
+    List<Itinerary> itineraries = new ArrayList<>();
+    try {
+      itineraries = storage.searchSkyline(originCity, destinationCity, directFlight, dayOfMonth,
+          numberOfItineraries);
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+    return listItinerary(itineraries);
+  }
+
+  /**
+   * Searches like {@link #transaction_search}, but leaves out itineraries with a sold-out flight
+   * and shows each flight's remaining seats as its capacity, listed in the same format
+   */
+  public String transaction_searchAvailable(String originCity, String destinationCity,
+      boolean directFlight, int dayOfMonth, int numberOfItineraries) {
+    List<Itinerary> itineraries = new ArrayList<>();
+    try {
+      itineraries = storage.searchAvailable(originCity, destinationCity, directFlight, dayOfMonth,
+          numberOfItineraries);
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+    return listItinerary(itineraries);
   }
 
   private String listItinerary(List<Itinerary> itineraries) {
-    Collections.sort(itineraries);
     this.itinerariesMap.clear();
     StringBuilder sb = new StringBuilder();
     for (int i = 0; i < itineraries.size(); i++) {
       Itinerary itinerary = itineraries.get(i);
       itinerary.setId(i);
-      if (!itinerary.layover) {
-        sb.append("Itinerary " + i + ": 1 flight(s), " + itinerary.totalTime + " minutes\n");
-        sb.append(itinerary.f1.toString() + "\n");
-      } else {
-        sb.append("Itinerary " + i + ": 2 flight(s), " + itinerary.totalTime + " minutes\n");
-        sb.append(itinerary.f1.toString() + "\n");
-        sb.append(itinerary.f2.toString() + "\n");
+      sb.append("Itinerary " + i + ": " + itinerary.legs.length + " flight(s), "
+          + itinerary.totalTime + " minutes\n");
+      for (int l = 0; l < itinerary.legs.length; l++) {
+        Flight leg = itinerary.legs[l];
+        if (itinerary.seatsLeft != null) {
+          leg = leg.withCapacity(itinerary.seatsLeft[l]);
+        }
+        sb.append(leg.toString() + "\n");
       }
       this.itinerariesMap.put(i, itinerary);
     }
@@ -423,131 +393,43 @@ public class Query {
    *         increments by 1 each time a successful reservation is made by any user in the system.
    */
   public String transaction_book(int itineraryId) {
+    return transaction_book(itineraryId, false);
+  }
+
+  /**
+   * Implements the book itinerary function, optionally queueing the request on the waitlist when a
+   * flight is full.
+   *
+   * @param itineraryId ID of the itinerary to book
+   * @param wait        if true and a flight is full, queue the request instead of failing
+   *
+   * @return as {@link #transaction_book(int)}. If the request was queued, return "Flight(s) full,
+   *         waitlisted as request [requestId]\n"; if waitlisting is not enabled, return
+   *         "Waitlist is not enabled\n".
+   */
+  public String transaction_book(int itineraryId, boolean wait) {
+    if (wait && waitlist == null) return "Waitlist is not enabled\n";
     if (!loggedIn) return "Cannot book reservations, not logged in\n";
     if (!this.itinerariesMap.containsKey(itineraryId)) { return "No such itinerary " + itineraryId + "\n"; }
-    boolean booked = false;
-    int id = -1;
     try {
       Itinerary itinerary = this.itinerariesMap.get(itineraryId);
-      int day = itinerary.f1.dayOfMonth;
-      int itId = itinerary.hashCode();
-      if (!validateReservation(day)) {
+      if (storage.hasReservationOnDay(user, itinerary.f1.dayOfMonth)) {
         return "You cannot book two flights in the same day\n";
       }
-      beginTransaction();
-      insertIntoCapacity(itinerary.f1.fid);
-      if (itinerary.layover) {
-        insertIntoCapacity(itinerary.f2.fid);
-      }
-      if(!updateCapacity(itinerary.f1.fid)) {
-        rollBackTransaction();
-        return "Booking failed\n";
-      }
-      if (itinerary.layover && !updateCapacity(itinerary.f2.fid) ) {
-        rollBackTransaction();
-        return "Booking failed\n";
-      }
-      if (!reserveTicket(itinerary, itId)) {
-        rollBackTransaction();
-        return "Booking failed\n";
+      int id = storage.bookItinerary(user, itinerary);
+      if (id != -1) {
+        return "Booked flight(s), reservation ID: " + id + "\n";
       }
-      bookFlightStatement.clearParameters();
-      bookFlightStatement.setInt(1, itId);
-      bookFlightStatement.setInt(2, day);
-      bookFlightStatement.setString(3, user);
-      bookFlightStatement.setInt(4, 1);
-      bookFlightStatement.setInt(5, 1);
-      bookFlightStatement.executeUpdate();
-      ResultSet result = bookFlightStatement.getGeneratedKeys();
-      booked = true;
-      if (result.next()) {
-        id = result.getInt(1);
+      if (wait) {
+        Waitlist.Request request = waitlist.enqueue(user, itinerary);
+        return "Flight(s) full, waitlisted as request " + request.id + "\n";
       }
-      commitTransaction();
     } catch (SQLException ex) {
-      try {
-        rollBackTransaction();
-      } catch (SQLException e) {
-        e.printStackTrace();
-      }
       ex.printStackTrace();
     }
-    finally {
-      checkDanglingTransaction();
-    }
-    if (booked) {
-      return "Booked flight(s), reservation ID: " + id + "\n";
-    }
     return "Booking failed\n";
   }
 
-  private void insertIntoCapacity(int fid) {
-    try {
-      int capacity = checkFlightCapacity(fid);
-      insertIfFlightNotExistsStatement.clearParameters();
-      insertIfFlightNotExistsStatement.setInt(1, fid);
-      insertIfFlightNotExistsStatement.setInt(2, fid);
-      insertIfFlightNotExistsStatement.setInt(3, capacity);
-    } catch(SQLException ex) {
-      ex.printStackTrace();
-    }
-  }
-
-  private boolean updateCapacity(int fid) {
-    try {
-      selectCapacityStatement.clearParameters();
-      selectCapacityStatement.setInt(1, fid);
-      ResultSet resultSet = selectCapacityStatement.executeQuery();
-      if (resultSet.next()) {
-        int capacity = resultSet.getInt("capacity");
-        if (capacity > 0) {
-          updateCapacityStatement.setInt(1, capacity - 1);
-          updateCapacityStatement.setInt(2, fid);
-          updateCapacityStatement.executeUpdate();
-          return true;
-        } else {
-          return false;
-        }
-      }
-    } catch (SQLException ex) {
-      ex.printStackTrace();
-    }
-    return true;
-  }
-
-  private boolean reserveTicket(Itinerary itinerary, int itId) {
-    try {
-      reserveItinerary.clearParameters();
-      reserveItinerary.setInt(1, itId);
-      reserveItinerary.setInt(2, itinerary.price);
-      reserveItinerary.setInt(3, itinerary.f1.fid);
-      if (itinerary.layover) {
-        reserveItinerary.setInt(4, itinerary.f2.fid);
-      } else {
-        reserveItinerary.setInt(4, -1);
-      }
-      reserveItinerary.executeUpdate();
-      return true;
-    } catch(SQLException ex) {
-      return false;
-    }
-  }
-
-  private boolean validateReservation(int day) {
-    try {
-      checkReservationStatusStatement.clearParameters();
-      checkReservationStatusStatement.setString(1, user);
-      checkReservationStatusStatement.setInt(2, day);
-      ResultSet result = checkReservationStatusStatement.executeQuery();
-      if (result.next()) {
-        return result.getInt("count") == 0;
-      }
-    } catch(SQLException e) {
-      return false;
-    }
-    return false;
-  }
-
   /**
    * Implements the pay function.
    *
@@ -566,66 +448,52 @@ public class Query {
   public String transaction_pay(int reservationId) {
     if (!loggedIn) return "Cannot pay, not logged in\n";
     try {
-      checkOwnershipStatement.clearParameters();
-      checkOwnershipStatement.setInt(1, reservationId);
-      checkOwnershipStatement.setString(2, user);
-      checkOwnershipStatement.setInt(3, UNPAID);
-      ResultSet resultSet = checkOwnershipStatement.executeQuery();
-      if (resultSet.next()) {
-        int itId = resultSet.getInt("itinerary");
-        int price = getItineraryPrice(itId);
-        int balance = getUserBalance();
-        if (price > balance) return "User has only " + balance + " in account but itinerary costs " + price + "\n";
-        else {
-          int remaining = balance - price;
-          updateBalanceStatement.clearParameters();
-          updateBalanceStatement.setInt(1, remaining);
-          updateBalanceStatement.setString(2, user);
-          updateBalanceStatement.executeUpdate();
-          updatePaymentStatement.clearParameters();
-          updatePaymentStatement.setInt(1, PAID);
-          updatePaymentStatement.setInt(2, itId);
-          updatePaymentStatement.executeUpdate();
-          return "Paid reservation: " + reservationId + " remaining balance: " + remaining + "\n";
+      // as for several reservations, the payment checks ownership and funds without extra reads
+      Payment payment = storage.payReservations(user, Collections.singletonList(reservationId));
+      if (payment != null) {
+        if (payment.paid) {
+          return "Paid reservation: " + reservationId + " remaining balance: " + payment.balance + "\n";
         }
-      } else {
-        return "Cannot find unpaid reservation " + reservationId + " under user: " + user + "\n";
+        if (payment.notPayable != -1) {
+          return "Cannot find unpaid reservation " + reservationId + " under user: " + user + "\n";
+        }
+        return "User has only " + payment.balance + " in account but itinerary costs " + payment.total + "\n";
       }
     } catch (SQLException e) {
       e.printStackTrace();
     }
-    finally {
-      checkDanglingTransaction();
-    }
     return "Failed to pay for reservation " + reservationId + "\n";
   }
 
-  private int getItineraryPrice(int itId) {
-    try {
-      checkPriceStatement.clearParameters();
-      checkPriceStatement.setInt(1, itId);
-      ResultSet resultSet = checkPriceStatement.executeQuery();
-      if (resultSet.next()) {
-        return resultSet.getInt("price");
-      }
-    } catch(SQLException e) {
-      e.printStackTrace();
-    }
-    return -1;
-  }
-
-  private int getUserBalance() {
+  /**
+   * Pays for several reservations at once: either all of them are paid, with their total debited
+   * in one transaction, or none is. A single reservation is paid as {@link #transaction_pay(int)}.
+   *
+   * @return as {@link #transaction_pay(int)}, naming the first reservation that cannot be found.
+   *         If successful, return "Paid reservations: [id] [id] ... remaining balance:
+   *         [balance]\n".
+   */
+  public String transaction_pay(List<Integer> reservationIds) {
+    List<Integer> unique = new ArrayList<>(new LinkedHashSet<>(reservationIds));
+    if (unique.size() == 1) return transaction_pay(unique.get(0));
+    if (!loggedIn) return "Cannot pay, not logged in\n";
+    String ids = unique.stream().map(String::valueOf).collect(Collectors.joining(" "));
     try {
-      checkBalanceStatement.clearParameters();
-      checkBalanceStatement.setString(1, user);
-      ResultSet resultSet = checkBalanceStatement.executeQuery();
-      if (resultSet.next()) {
-        return resultSet.getInt("balance");
+      // ownership and funds are checked by the payment itself, not by a read per reservation
+      Payment payment = storage.payReservations(user, unique);
+      if (payment != null) {
+        if (payment.paid) {
+          return "Paid reservations: " + ids + " remaining balance: " + payment.balance + "\n";
+        }
+        if (payment.notPayable != -1) {
+          return "Cannot find unpaid reservation " + payment.notPayable + " under user: " + user + "\n";
+        }
+        return "User has only " + payment.balance + " in account but itineraries cost " + payment.total + "\n";
       }
-    } catch(SQLException e) {
+    } catch (SQLException e) {
       e.printStackTrace();
     }
-    return -1;
+    return "Failed to pay for reservations " + ids + "\n";
   }
 
   /**
@@ -649,79 +517,33 @@ public class Query {
   public String transaction_reservations() {
     if (!loggedIn) return "Cannot view reservations, not logged in \n";
     try {
-      retrieveReservationsStatement.clearParameters();
-      retrieveReservationsStatement.setString(1, user);
-      ResultSet resultSet = retrieveReservationsStatement.executeQuery();
       StringBuilder sb = new StringBuilder();
-      while (resultSet.next()) {
-          int id = resultSet.getInt("ID");
-          String paid = resultSet.getInt("paid") == 0 ? "true" : "false";
-          int itinerary = resultSet.getInt("itinerary");
-          String flightInfo = getFlightInfo(itinerary);
-          sb.append("Reservation " + id + " paid: " + paid + ":" + "\n");
-          sb.append(flightInfo);
+      for (Reservation reservation : storage.getReservations(user)) {
+        sb.append("Reservation " + reservation.id + " paid: " + reservation.paid + ":" + "\n");
+        sb.append(getFlightInfo(reservation.itinerary));
       }
       return sb.toString();
     } catch (SQLException e) {
       e.printStackTrace();
     }
-    finally {
-      checkDanglingTransaction();
-    }
     return "Failed to retrieve reservations\n";
   }
 
-  private String getFlightInfo(int itinerary) {
+  private String getFlightInfo(Itinerary itinerary) {
     StringBuilder sb = new StringBuilder();
-    try {
-      retrieveFlightStatement.clearParameters();
-      retrieveFlightStatement.setInt(1, itinerary);
-      ResultSet resultSet = retrieveFlightStatement.executeQuery();
-      if (resultSet.next()) {
-        int fid1 = resultSet.getInt("first_flight_id");
-        int fid2 = resultSet.getInt("second_flight_id");
-        sb.append(getFlightDetails(fid1));
-        if (fid2 != -1) {
-          sb.append(getFlightDetails(fid2));
-        }
+    if (itinerary != null) {
+      for (Flight leg : itinerary.legs) {
+        sb.append(getFlightDetails(leg));
       }
-    } catch (SQLException e) {
-      e.printStackTrace();
-    } finally {
-      checkDanglingTransaction();
     }
     return sb.toString();
   }
 
-  private String getFlightDetails(int fid) {
-    StringBuilder sb = new StringBuilder();
-    try {
-      retrieveFlightDetailsStatement.clearParameters();
-      retrieveFlightDetailsStatement.setInt(1, fid);
-      ResultSet resultSet = retrieveFlightDetailsStatement.executeQuery();
-      if (resultSet.next()) {
-        int id = resultSet.getInt("fid");
-        int result_dayOfMonth = resultSet.getInt("day_of_month");
-        String result_carrierId = resultSet.getString("carrier_id");
-        String result_flightNum = resultSet.getString("flight_num");
-        String result_originCity = resultSet.getString("origin_city");
-        String result_destCity = resultSet.getString("dest_city");
-        int result_time = resultSet.getInt("actual_time");
-        int result_capacity = resultSet.getInt("capacity");
-        int result_price = resultSet.getInt("price");
-        int cancelled = resultSet.getInt("canceled");
-        if (cancelled == 0) {
-          Flight flight = new Flight(id, result_dayOfMonth, result_carrierId, result_flightNum, result_originCity,
-                  result_destCity, result_time, result_capacity, result_price);
-          sb.append(flight.toString() + "\n");
-        }
-      }
-    } catch (SQLException e) {
-      e.printStackTrace();
-    } finally {
-      checkDanglingTransaction();
+  private String getFlightDetails(Flight flight) {
+    if (flight == null || flight.canceled) {
+      return "";
     }
-    return sb.toString();
+    return flight.toString() + "\n";
   }
 
   /**
@@ -738,101 +560,47 @@ public class Query {
    */
   public String transaction_cancel(int reservationId) {
     if (!loggedIn) return "Cannot cancel reservations, not logged in\n";
-    boolean canceled = false;
     try {
-      beginTransaction();
-      retrieveReservationStatement.clearParameters();
-      retrieveReservationStatement.setInt(1, reservationId);
-      retrieveReservationStatement.setString(2, user);
-      retrieveReservationStatement.setInt(3, NOT_CANCELED);
-      ResultSet resultSet = retrieveReservationStatement.executeQuery();
-      if (resultSet.next()) {
-        int paid = resultSet.getInt("paid");
-        int itId = resultSet.getInt("itinerary");
-        int price = getItineraryPrice(itId);
-        int balance = getUserBalance();
-        if (paid == 0) {
-          updateBalanceStatement.clearParameters();
-          updateBalanceStatement.setInt(1, balance + price);
-          updateBalanceStatement.setString(2, user);
-          updateBalanceStatement.executeUpdate();
-          updatePaymentStatement.clearParameters();
-          updatePaymentStatement.setInt(1, UNPAID);
-          updatePaymentStatement.setInt(2, itId);
-          updatePaymentStatement.executeUpdate();
+      Reservation canceled = storage.cancelReservation(user, reservationId);
+      if (canceled != null) {
+        if (waitlist != null && canceled.itinerary != null) {
+          waitlist.seatsReleased(canceled.itinerary);
         }
-        cancelReservationStatement.clearParameters();
-        cancelReservationStatement.setInt(1, CANCELED);
-        cancelReservationStatement.setInt(2, reservationId);
-        cancelReservationStatement.executeUpdate();
-        canceled = true;
+        return "Canceled reservation " + reservationId + "\n";
       }
-      commitTransaction();
     } catch(SQLException ex) {
-      try {
-        rollBackTransaction();
-      } catch (SQLException e) {
-        e.printStackTrace();
-      }
       ex.printStackTrace();
-    } finally {
-      checkDanglingTransaction();
-    }
-    if (canceled) {
-      return "Canceled reservation " + reservationId + "\n";
     }
     return "Failed to cancel reservation " + reservationId + "\n";
   }
 
   /**
-   * Example utility function that uses prepared statements
-   */
-  private int checkFlightCapacity(int fid) throws SQLException {
-    checkFlightCapacityStatement.clearParameters();
-    checkFlightCapacityStatement.setInt(1, fid);
-    ResultSet results = checkFlightCapacityStatement.executeQuery();
-    results.next();
-    int capacity = results.getInt("capacity");
-    results.close();
-    return capacity;
-  }
-
-  /**
-   * Throw IllegalStateException if transaction not completely complete, rollback.
+   * Lists the logged-in user's waitlist requests.
+   *
+   * @return If no user has logged in, then return "Cannot view waitlist, not logged in\n". If
+   *         waitlisting is not enabled, return "Waitlist is not enabled\n".
    *
+   *         Otherwise one line per request: "Waitlist request [requestId]: waiting\n", "Waitlist
+   *         request [requestId]: booked, reservation ID: [reservationId]\n" or "Waitlist request
+   *         [requestId]: failed\n"
    */
-  private void checkDanglingTransaction() {
-    try {
-      try (ResultSet rs = tranCountStatement.executeQuery()) {
-        rs.next();
-        int count = rs.getInt("tran_count");
-        if (count > 0) {
-          throw new IllegalStateException(
-              "Transaction not fully commit/rollback. Number of transaction in process: " + count);
-        }
-      } finally {
-        conn.setAutoCommit(true);
+  public String transaction_waitlist() {
+    if (!loggedIn) return "Cannot view waitlist, not logged in\n";
+    if (waitlist == null) return "Waitlist is not enabled\n";
+    StringBuilder sb = new StringBuilder();
+    for (Waitlist.Request request : waitlist.getRequests(user)) {
+      sb.append("Waitlist request " + request.id + ": ");
+      switch (request.status()) {
+        case WAITING:
+          sb.append("waiting\n");
+          break;
+        case BOOKED:
+          sb.append("booked, reservation ID: " + request.outcome.join() + "\n");
+          break;
+        default:
+          sb.append("failed\n");
       }
-    } catch (SQLException e) {
-      throw new IllegalStateException("Database error", e);
     }
+    return sb.toString();
   }
-
-  private static boolean isDeadLock(SQLException ex) {
-    return ex.getErrorCode() == 1205;
-  }
-
-  private void beginTransaction() throws SQLException {
-    conn.setAutoCommit(false);
-  }
-
-  private void commitTransaction() throws SQLException {
-    conn.commit();
-    conn.setAutoCommit(true);
-  }
-
-  private void rollBackTransaction() throws SQLException {
-    conn.rollback();
-    conn.setAutoCommit(true);
-  }
-}
\ No newline at end of file
+}
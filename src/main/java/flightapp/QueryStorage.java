@@ -2,16 +2,15 @@ package flightapp;
 
 public class QueryStorage {
 
-    // Canned queries
-    public static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
     // queries
     // transact sql query
     public static final String TRANCOUNT_SQL = "SELECT @@TRANCOUNT AS tran_count";
     // clear table queries
     public static final String CLEAR_USERS = "DELETE FROM Users";
-    public static final String CLEAR_ITINERARIES = "DELETE FROM Itineraries";
     public static final String CLEAR_RESERVATIONS = "TRUNCATE TABLE Reservations";
     public static final String CLEAR_CAPACITIES = "DELETE FROM Capacities";
+    public static final String CLEAR_OUTBOX = "TRUNCATE TABLE Outbox";
+    public static final String CLEAR_OUTBOX_OFFSETS = "DELETE FROM OutboxOffsets";
 
     // user creation query
     public static final String CREATE_USER = "INSERT INTO Users(username, password, balance, salt) VALUES (?, ?, ?, ?)";
@@ -19,45 +18,226 @@ public class QueryStorage {
     // check username and password query
     public static final String LOGIN_USER = "SELECT * FROM Users WHERE username = ? AND password = ?";
 
-    // search direct flights
-    public static final String SEARCH_DIRECT_FLIGHTS = "SELECT TOP (?) fid, day_of_month, carrier_id, flight_num, origin_city, "
-            + "dest_city, actual_time, capacity, price, canceled FROM Flights WHERE origin_city = ? AND dest_city = ? AND "
-            + "day_of_month = ? AND canceled = 0 ORDER BY actual_time ASC, fid";
-
-    // search indirect flights
-    public static final String SEARCH_INDIRECT_FLIGHTS =
-            "SELECT TOP (?) f1.fid as fid1, f1.day_of_month as dom1, f1.carrier_id as cid1, f1.flight_num as fn1, "
-                    + "f1.origin_city as oc1, f1.dest_city as dc1, f1.actual_time as at1, f1.capacity as c1, f1.price as p1, "
-                    + "f2.fid as fid2, f2.day_of_month as dom2, f2.carrier_id as cid2, f2.flight_num as fn2, f2.origin_city as oc2, "
-                    + "f2.dest_city as dc2, f2.actual_time at2, f2.capacity as c2, f2.price as p2 "
-                    + "FROM Flights f1 LEFT JOIN Flights f2 on "
-                    + "f1.dest_city = f2.origin_city AND f1.day_of_month = f2.day_of_month WHERE f1.origin_city = ? AND f2.dest_city = ? "
-                    + "AND f1.day_of_month = ? AND f1.canceled = 0 AND f2.canceled = 0 ORDER BY (f1.actual_time + f2.actual_time)";
+    // search: up to n direct flights, topped up with the shortest one-hop itineraries when fewer than n
+    // exist (unless direct only), merged on the server in final order. Columns are read by ordinal:
+    // 1-9 first leg, 10-18 second leg (NULL for direct flights).
+    public static final String SEARCH_ITINERARIES =
+            "WITH direct AS (SELECT TOP (?) fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, "
+                    + "actual_time, capacity, price FROM Flights WHERE origin_city = ? AND dest_city = ? AND "
+                    + "day_of_month = ? AND canceled = 0 ORDER BY actual_time, fid), "
+                    + "indirect AS (SELECT TOP (? - (SELECT COUNT(*) FROM direct)) "
+                    + "f1.fid AS fid1, f1.day_of_month AS dom1, f1.carrier_id AS cid1, f1.flight_num AS fn1, "
+                    + "f1.origin_city AS oc1, f1.dest_city AS dc1, f1.actual_time AS at1, f1.capacity AS c1, f1.price AS p1, "
+                    + "f2.fid AS fid2, f2.day_of_month AS dom2, f2.carrier_id AS cid2, f2.flight_num AS fn2, "
+                    + "f2.origin_city AS oc2, f2.dest_city AS dc2, f2.actual_time AS at2, f2.capacity AS c2, f2.price AS p2 "
+                    + "FROM Flights f1 JOIN Flights f2 ON f1.dest_city = f2.origin_city AND f1.day_of_month = f2.day_of_month "
+                    + "WHERE ? = 0 AND f1.origin_city = ? AND f2.dest_city = ? AND f1.day_of_month = ? "
+                    + "AND f1.canceled = 0 AND f2.canceled = 0 "
+                    + "ORDER BY f1.actual_time + f2.actual_time, f1.fid, f2.fid) "
+                    + "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price, "
+                    + "NULL, NULL, NULL, NULL, NULL, NULL, NULL, NULL, NULL, actual_time AS total_time, fid AS first_fid, "
+                    + "-1 AS second_fid FROM direct "
+                    + "UNION ALL SELECT fid1, dom1, cid1, fn1, oc1, dc1, at1, c1, p1, fid2, dom2, cid2, fn2, oc2, dc2, at2, c2, p2, "
+                    + "at1 + at2, fid1, fid2 FROM indirect "
+                    + "ORDER BY total_time, first_fid, second_fid";
+
+    // price/duration skyline of the same candidates: in order of total time then price, a row is
+    // kept if it is cheaper than every row before it, a running minimum the server computes in one
+    // pass over the sorted candidates, so only the skyline is sent back
+    public static final String SEARCH_SKYLINE =
+            "WITH candidates AS (SELECT fid AS fid1, -1 AS fid2, actual_time AS total_time, price "
+                    + "FROM Flights WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND canceled = 0 "
+                    + "UNION ALL SELECT f1.fid, f2.fid, f1.actual_time + f2.actual_time, f1.price + f2.price "
+                    + "FROM Flights f1 JOIN Flights f2 ON f1.dest_city = f2.origin_city AND f1.day_of_month = f2.day_of_month "
+                    + "WHERE ? = 0 AND f1.origin_city = ? AND f2.dest_city = ? AND f1.day_of_month = ? "
+                    + "AND f1.canceled = 0 AND f2.canceled = 0), "
+                    + "ranked AS (SELECT fid1, fid2, total_time, price, MIN(price) OVER (ORDER BY total_time, price, fid1, fid2 "
+                    + "ROWS BETWEEN UNBOUNDED PRECEDING AND 1 PRECEDING) AS cheapest_before FROM candidates) "
+                    + "SELECT TOP (?) f1.fid, f1.day_of_month, f1.carrier_id, f1.flight_num, f1.origin_city, f1.dest_city, "
+                    + "f1.actual_time, f1.capacity, f1.price, f2.fid, f2.day_of_month, f2.carrier_id, f2.flight_num, "
+                    + "f2.origin_city, f2.dest_city, f2.actual_time, f2.capacity, f2.price "
+                    + "FROM ranked r JOIN Flights f1 ON f1.fid = r.fid1 LEFT JOIN Flights f2 ON f2.fid = r.fid2 "
+                    + "WHERE r.cheapest_before IS NULL OR r.price < r.cheapest_before "
+                    + "ORDER BY r.total_time, r.price, r.fid1, r.fid2";
+
+    // same search, with the one-hop part read from the route's materialized Connections rows
+    public static final String SEARCH_ITINERARIES_MATERIALIZED =
+            "WITH direct AS (SELECT TOP (?) fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, "
+                    + "actual_time, capacity, price FROM Flights WHERE origin_city = ? AND dest_city = ? AND "
+                    + "day_of_month = ? AND canceled = 0 ORDER BY actual_time, fid), "
+                    + "indirect AS (SELECT TOP (? - (SELECT COUNT(*) FROM direct)) "
+                    + "f1.fid AS fid1, f1.day_of_month AS dom1, f1.carrier_id AS cid1, f1.flight_num AS fn1, "
+                    + "f1.origin_city AS oc1, f1.dest_city AS dc1, f1.actual_time AS at1, f1.capacity AS c1, f1.price AS p1, "
+                    + "f2.fid AS fid2, f2.day_of_month AS dom2, f2.carrier_id AS cid2, f2.flight_num AS fn2, "
+                    + "f2.origin_city AS oc2, f2.dest_city AS dc2, f2.actual_time AS at2, f2.capacity AS c2, f2.price AS p2 "
+                    + "FROM Connections c JOIN Flights f1 ON f1.fid = c.fid1 JOIN Flights f2 ON f2.fid = c.fid2 "
+                    + "WHERE ? = 0 AND c.origin_city = ? AND c.dest_city = ? AND c.day_of_month = ? "
+                    + "AND f1.canceled = 0 AND f2.canceled = 0 "
+                    + "ORDER BY c.total_time, c.fid1, c.fid2) "
+                    + "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price, "
+                    + "NULL, NULL, NULL, NULL, NULL, NULL, NULL, NULL, NULL, actual_time AS total_time, fid AS first_fid, "
+                    + "-1 AS second_fid FROM direct "
+                    + "UNION ALL SELECT fid1, dom1, cid1, fn1, oc1, dc1, at1, c1, p1, fid2, dom2, cid2, fn2, oc2, dc2, at2, c2, p2, "
+                    + "at1 + at2, fid1, fid2 FROM indirect "
+                    + "ORDER BY total_time, first_fid, second_fid";
+
+    // materialized routes: the shortest n one-hop itineraries of a route are stored in Connections the first
+    // time it is searched (or by ConnectionsJob), and dropped again when a flight touching the route changes
+    public static final String ROUTE_MATERIALIZED =
+            "SELECT 1 FROM ConnectionRoutes WHERE day_of_month = ? AND origin_city = ? AND dest_city = ?";
+    public static final String MATERIALIZE_ROUTE = "IF NOT EXISTS (SELECT 1 FROM ConnectionRoutes WITH (UPDLOCK, HOLDLOCK) "
+            + "WHERE day_of_month = ? AND origin_city = ? AND dest_city = ?) BEGIN "
+            + "INSERT INTO Connections SELECT TOP (?) f1.day_of_month, f1.origin_city, f2.dest_city, "
+            + "f1.actual_time + f2.actual_time, f1.fid, f2.fid "
+            + "FROM Flights f1 JOIN Flights f2 ON f1.dest_city = f2.origin_city AND f1.day_of_month = f2.day_of_month "
+            + "WHERE f1.day_of_month = ? AND f1.origin_city = ? AND f2.dest_city = ? AND f1.canceled = 0 AND f2.canceled = 0 "
+            + "ORDER BY f1.actual_time + f2.actual_time, f1.fid, f2.fid; "
+            + "INSERT INTO ConnectionRoutes VALUES (?, ?, ?); END";
+    // every route of the day, ranked in one pass over the join
+    public static final String MATERIALIZE_DAY = "DELETE FROM Connections WHERE day_of_month = ?; "
+            + "DELETE FROM ConnectionRoutes WHERE day_of_month = ?; "
+            + "INSERT INTO Connections SELECT day_of_month, origin_city, dest_city, total_time, fid1, fid2 FROM "
+            + "(SELECT f1.day_of_month, f1.origin_city, f2.dest_city, f1.actual_time + f2.actual_time AS total_time, "
+            + "f1.fid AS fid1, f2.fid AS fid2, ROW_NUMBER() OVER (PARTITION BY f1.origin_city, f2.dest_city "
+            + "ORDER BY f1.actual_time + f2.actual_time, f1.fid, f2.fid) AS route_rank "
+            + "FROM Flights f1 JOIN Flights f2 ON f1.dest_city = f2.origin_city AND f1.day_of_month = f2.day_of_month "
+            + "WHERE f1.day_of_month = ? AND f1.canceled = 0 AND f2.canceled = 0) ranked WHERE route_rank <= ?; "
+            + "INSERT INTO ConnectionRoutes SELECT DISTINCT day_of_month, origin_city, dest_city FROM Connections "
+            + "WHERE day_of_month = ?";
+    // a flight added or canceled can only change routes starting at its origin or ending at its destination
+    public static final String INVALIDATE_ROUTES = "DELETE FROM ConnectionRoutes WHERE day_of_month = ? "
+            + "AND (origin_city = ? OR dest_city = ?); "
+            + "DELETE FROM Connections WHERE day_of_month = ? AND (origin_city = ? OR dest_city = ?)";
+    public static final String FLIGHT_ROUTE = "SELECT day_of_month, origin_city, dest_city FROM Flights WHERE fid = ?";
 
     public static final String CHECK_RESERVATION_STATUS =
             "SELECT COUNT(*) as count FROM Reservations r, Users u WHERE u.username = r.username AND u.username = ? AND r.date = ?";
 
-    public static final String RESERVE_ITINERARY = "INSERT INTO Itineraries VALUES (?, ?, ?, ?)";
+    // itineraries are registered once under their 64-bit key (Itinerary.key) and shared by every reservation
+    public static final String REGISTER_ITINERARY = "INSERT INTO Itineraries SELECT ?, ?, ?, ? "
+            + "WHERE NOT EXISTS (SELECT 1 FROM Itineraries WHERE it_id = ?)";
+    // legs of itineraries over two legs, registered before their Itineraries row
+    public static final String REGISTER_ITINERARY_LEG = "INSERT INTO ItineraryLegs SELECT ?, ?, ? "
+            + "WHERE NOT EXISTS (SELECT 1 FROM ItineraryLegs WHERE it_id = ? AND leg = ?)";
+    public static final String RETRIEVE_ITINERARY_LEGS = "SELECT fid FROM ItineraryLegs WHERE it_id = ? ORDER BY leg";
     public static final String BOOK_FLIGHT = "INSERT INTO Reservations VALUES (?, ?, ?, ?, ?);";
 
-    public static final String CHECK_OWNERSHIP_STATUS = "SELECT * FROM Reservations WHERE ID = ? AND username = ? AND paid = ?";
 
-    public static final String CHECK_PRICE = "SELECT price FROM Itineraries WHERE it_id = ?";
-    public static final String CHECK_BALANCE = "SELECT balance FROM Users WHERE username = ?";
+    // account cache: every write to a user's balance or reservations bumps Users.version in the same
+    // transaction, and a cached account is used only while its version still matches
+    public static final String ACCOUNT_VERSION = "SELECT version, balance FROM Users WHERE username = ?";
+    public static final String ADJUST_ACCOUNT = "UPDATE Users SET balance = balance + ?, version = version + 1 "
+            + "OUTPUT inserted.version, inserted.balance WHERE username = ? AND balance + ? >= 0";
 
-    public static final String UPDATE_BALANCE = "UPDATE Users SET balance = ? WHERE username = ?";
-    public static final String UPDATE_PAYMENT_STATUS = "UPDATE Reservations SET paid = ? WHERE itinerary = ?";
+    public static final String PAY_RESERVATION = "UPDATE Reservations SET paid = ? WHERE ID = ? AND username = ? AND paid = ?";
+    // the IDs as one comma-separated parameter; fewer rows updated than IDs means one was not payable
+    public static final String PAY_RESERVATIONS = "UPDATE Reservations SET paid = ? WHERE username = ? AND paid = ? "
+            + "AND ID IN (SELECT CAST(value AS int) FROM STRING_SPLIT(?, ','))";
 
-    public static final String RETRIEVE_USER_RESERVATIONS = "SELECT * FROM Reservations WHERE username = ?";
+    // the reservations of a page CTE with their flights, one row per leg in reservation ID and leg order, so
+    // reading reservations takes one query; a reservation whose itinerary is missing has one row of NULL legs
+    private static final String RESERVATION_LEGS = "SELECT r.ID, r.username, r.date, r.paid, r.cancelled, r.itinerary, "
+            + "l.leg, f.fid, f.day_of_month, f.carrier_id, f.flight_num, f.origin_city, f.dest_city, f.actual_time, "
+            + "f.capacity, f.price, f.canceled FROM page r LEFT JOIN Itineraries i ON i.it_id = r.itinerary "
+            + "OUTER APPLY (SELECT 0 AS leg, i.first_flight_id AS fid WHERE i.it_id >= 0 "
+            + "UNION ALL SELECT 1, i.second_flight_id WHERE i.it_id >= 0 AND i.second_flight_id <> -1 "
+            + "UNION ALL SELECT x.leg, x.fid FROM ItineraryLegs x WHERE x.it_id = i.it_id AND i.it_id < 0) l "
+            + "LEFT JOIN Flights f ON f.fid = l.fid ORDER BY r.ID, l.leg";
+    public static final String RETRIEVE_USER_RESERVATIONS = "WITH page AS (SELECT ID, username, date, paid, cancelled, "
+            + "itinerary FROM Reservations WHERE username = ?) " + RESERVATION_LEGS;
     public static final String RETRIEVE_FLIGHTS = "SELECT * FROM Itineraries WHERE it_id = ?";
     public static final String RETRIEVE_FLIGHT_DETAILS = "SELECT * FROM Flights Where fid = ?";
 
-    public static final String RETRIEVE_RESERVATION = "SELECT * FROM Reservations WHERE ID = ? AND username = ? AND cancelled = ?";
-    public static final String CANCEL_RESERVATION = "UPDATE Reservations SET cancelled = ? WHERE ID = ?";
+    public static final String CANCEL_RESERVATION = "UPDATE Reservations SET cancelled = ?, paid = ? "
+            + "OUTPUT deleted.paid, deleted.itinerary, deleted.date WHERE ID = ? AND username = ? AND cancelled = ?";
+
+    // seat escrow: a flight's seats are spread over buckets 0..n-1 on first booking
+    public static final String INIT_SEAT_BUCKETS = "IF NOT EXISTS (SELECT * FROM Capacities WHERE fid = ?) "
+            + "INSERT INTO Capacities (fid, bucket, capacity) SELECT f.fid, b.bucket, "
+            + "f.capacity / ? + CASE WHEN b.bucket < f.capacity % ? THEN 1 ELSE 0 END FROM Flights f CROSS JOIN "
+            + "(SELECT TOP (?) ROW_NUMBER() OVER (ORDER BY object_id) - 1 AS bucket FROM sys.all_objects) b "
+            + "WHERE f.fid = ?";
+    // a canceled flight has no seats to take; the read lock on its Flights row holds off CANCEL_FLIGHT until commit
+    public static final String TAKE_SEAT = "UPDATE Capacities SET capacity = capacity - 1 WHERE fid = ? AND bucket = ? "
+            + "AND capacity > 0 AND NOT EXISTS (SELECT 1 FROM Flights f WITH (REPEATABLEREAD) "
+            + "WHERE f.fid = Capacities.fid AND f.canceled = 1)";
+    public static final String RELEASE_SEAT = "UPDATE Capacities SET capacity = capacity + 1 WHERE fid = ? AND bucket = ?";
+    // NULL for a flight never booked, whose buckets do not exist yet
+    public static final String REMAINING_SEATS = "SELECT SUM(capacity) FROM Capacities WHERE fid = ?";
+    public static final String REBALANCE_SEAT_BUCKETS = "WITH b AS (SELECT bucket, capacity, "
+            + "SUM(capacity) OVER () AS total, COUNT(*) OVER () AS n FROM Capacities WHERE fid = ?) "
+            + "UPDATE b SET capacity = total / n + CASE WHEN bucket < total % n THEN 1 ELSE 0 END";
+
+    // flight cancellation: mark the flight, then page through its live reservations by ID (keyset pagination)
+    public static final String CANCEL_FLIGHT = "UPDATE Flights SET canceled = 1 WHERE fid = ? AND canceled = 0";
+    // the legs as one comma-separated parameter, for a booking whose seats were taken elsewhere
+    public static final String CANCELED_LEGS = "SELECT COUNT(*) FROM Flights WITH (REPEATABLEREAD) WHERE canceled = 1 "
+            + "AND fid IN (SELECT CAST(value AS int) FROM STRING_SPLIT(?, ','))";
+    public static final String RESERVATIONS_ON_FLIGHT = "WITH page AS (SELECT TOP (?) r.ID, r.username, r.date, "
+            + "r.paid, r.cancelled, r.itinerary FROM Reservations r JOIN Itineraries i ON r.itinerary = i.it_id "
+            + "WHERE r.ID > ? AND r.cancelled = ? AND (i.first_flight_id = ? OR i.second_flight_id = ? "
+            + "OR EXISTS (SELECT 1 FROM ItineraryLegs l WHERE l.it_id = i.it_id AND l.fid = ?)) ORDER BY r.ID) "
+            + RESERVATION_LEGS;
+
+    // outbox: book, pay and cancel append an event in their own transaction. The relay reads with
+    // READCOMMITTEDLOCK so that, even under read committed snapshot, it waits for an uncommitted
+    // event instead of skipping past its sequence number.
+    public static final String APPEND_EVENT =
+            "INSERT INTO Outbox (kind, username, reservation, itinerary, amount) VALUES (?, ?, ?, ?, ?)";
+    public static final String READ_EVENTS = "SELECT TOP (?) seq, kind, username, reservation, itinerary, amount "
+            + "FROM Outbox WITH (READCOMMITTEDLOCK) WHERE seq > ? ORDER BY seq";
+    public static final String PURGE_EVENTS = "DELETE FROM Outbox WHERE seq <= ?";
+    public static final String GET_SUBSCRIBER_OFFSET = "SELECT seq FROM OutboxOffsets WHERE subscriber = ?";
+    public static final String SAVE_SUBSCRIBER_OFFSET = "MERGE OutboxOffsets WITH (HOLDLOCK) AS o "
+            + "USING (SELECT ? AS subscriber, ? AS seq) AS s ON o.subscriber = s.subscriber "
+            + "WHEN MATCHED THEN UPDATE SET seq = s.seq "
+            + "WHEN NOT MATCHED THEN INSERT (subscriber, seq) VALUES (s.subscriber, s.seq);";
+
+    // full scan used to seed the in-memory backend
+    public static final String LOAD_FLIGHTS = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, "
+            + "actual_time, capacity, price, canceled FROM Flights";
+    // one day, for the multi-leg search graph
+    public static final String LOAD_FLIGHTS_OF_DAY = LOAD_FLIGHTS + " WHERE day_of_month = ?";
 
-    public static final String INSERT_IF_FLIGHT_NOT_EXISTS = "IF NOT EXISTS (SELECT * FROM Capacities WHERE fid = ?) INSERT INTO Capacities VALUES (?, ?);";
+    // backup: pages in primary key order after the last key exported, and inserts in the same column order
+    public static final String EXPORT_USERS = "SELECT TOP (?) username, password, balance, salt, version FROM Users "
+            + "WHERE username > ? ORDER BY username";
+    public static final String EXPORT_ITINERARIES = "SELECT TOP (?) it_id, price, first_flight_id, second_flight_id "
+            + "FROM Itineraries WHERE it_id > ? ORDER BY it_id";
+    public static final String EXPORT_ITINERARY_LEGS = "SELECT TOP (?) it_id, leg, fid FROM ItineraryLegs "
+            + "WHERE it_id > ? OR (it_id = ? AND leg > ?) ORDER BY it_id, leg";
+    public static final String EXPORT_RESERVATIONS = "SELECT TOP (?) ID, itinerary, date, username, paid, cancelled "
+            + "FROM Reservations WHERE ID > ? ORDER BY ID";
+    public static final String EXPORT_CAPACITIES = "SELECT TOP (?) fid, bucket, capacity FROM Capacities "
+            + "WHERE fid > ? OR (fid = ? AND bucket > ?) ORDER BY fid, bucket";
+    public static final String IMPORT_USERS =
+            "INSERT INTO Users (username, password, balance, salt, version) VALUES (?, ?, ?, ?, ?)";
+    // itineraries survive clearTables, so they may already be there
+    public static final String IMPORT_ITINERARIES = "INSERT INTO Itineraries SELECT ?, ?, ?, ? "
+            + "WHERE NOT EXISTS (SELECT 1 FROM Itineraries WHERE it_id = ?)";
+    public static final String IMPORT_ITINERARY_LEGS = "INSERT INTO ItineraryLegs SELECT ?, ?, ? "
+            + "WHERE NOT EXISTS (SELECT 1 FROM ItineraryLegs WHERE it_id = ? AND leg = ?)";
+    public static final String IMPORT_RESERVATIONS = "INSERT INTO Reservations "
+            + "(ID, itinerary, date, username, paid, cancelled) VALUES (?, ?, ?, ?, ?, ?)";
+    public static final String IMPORT_CAPACITIES = "INSERT INTO Capacities (fid, bucket, capacity) VALUES (?, ?, ?)";
+    // whether a chunk was imported before a restart, by the key of its last row
+    public static final String IMPORTED_USER = "SELECT COUNT(*) FROM Users WHERE username = ?";
+    public static final String IMPORTED_RESERVATION = "SELECT COUNT(*) FROM Reservations WHERE ID = ?";
+    public static final String IMPORTED_CAPACITY = "SELECT COUNT(*) FROM Capacities WHERE fid = ? AND bucket = ?";
+    public static final String RESERVATIONS_IDENTITY_INSERT_ON = "SET IDENTITY_INSERT Reservations ON";
+    public static final String RESERVATIONS_IDENTITY_INSERT_OFF = "SET IDENTITY_INSERT Reservations OFF";
+    // nonclustered indexes only: a disabled clustered index would make the table unreadable
+    public static final String DISABLE_SECONDARY_INDEXES = "DECLARE @sql nvarchar(max) = N''; "
+            + "SELECT @sql += N'ALTER INDEX ' + QUOTENAME(name) + N' ON ' + QUOTENAME(?) + N' DISABLE; ' "
+            + "FROM sys.indexes WHERE object_id = OBJECT_ID(?) AND type = 2 AND is_disabled = 0; "
+            + "EXEC sp_executesql @sql";
+    public static final String REBUILD_INDEXES = "DECLARE @sql nvarchar(max) = "
+            + "N'ALTER INDEX ALL ON ' + QUOTENAME(?) + N' REBUILD'; EXEC sp_executesql @sql";
 
-    public static final String SELECT_CAPACITY = "SELECT capacity FROM Capacities WHERE fid = ?";
-    public static final String UPDATE_CAPACITY = "UPDATE Capacities SET capacity = ? WHERE fid = ?";
+    // analytics snapshot, each table read once
+    public static final String ANALYTICS_ITINERARY_LEGS = "SELECT it_id, leg, fid FROM ItineraryLegs";
+    public static final String ANALYTICS_CAPACITIES = "SELECT fid, SUM(capacity) FROM Capacities GROUP BY fid";
+    public static final String ANALYTICS_RESERVATIONS = "SELECT r.paid, i.it_id, i.price, i.first_flight_id, "
+            + "i.second_flight_id FROM Reservations r JOIN Itineraries i ON i.it_id = r.itinerary WHERE r.cancelled = ?";
 
 }
\ No newline at end of file
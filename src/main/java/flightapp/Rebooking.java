@@ -0,0 +1,22 @@
+package flightapp;
+
+import java.util.List;
+
+/**
+ * A reservation to cancel and the itineraries to rebook its user on, in order of preference, see
+ * {@link FlightStorage#rebookReservations}
+ */
+public class Rebooking {
+  public final Reservation reservation;
+  public final List<Itinerary> candidates;
+  // the canceled reservation, with paid telling whether it was refunded; null if it was no longer live
+  public Reservation canceled;
+  // the candidate booked and its reservation ID; null and -1 if none had a seat
+  public Itinerary replacement;
+  public int reservationId = -1;
+
+  public Rebooking(Reservation reservation, List<Itinerary> candidates) {
+    this.reservation = reservation;
+    this.candidates = candidates;
+  }
+}
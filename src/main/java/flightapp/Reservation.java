@@ -0,0 +1,27 @@
+package flightapp;
+
+public class Reservation {
+  public int id;
+  public String username;
+  public int dayOfMonth;
+  public boolean paid;
+  public boolean cancelled;
+  public Itinerary itinerary;
+
+  public Reservation(int id, String username, int dayOfMonth, boolean paid, boolean cancelled,
+      Itinerary itinerary) {
+    this.id = id;
+    this.username = username;
+    this.dayOfMonth = dayOfMonth;
+    this.paid = paid;
+    this.cancelled = cancelled;
+    this.itinerary = itinerary;
+  }
+
+  /**
+   * Copy constructor, used by backends to hand out snapshots of mutable rows
+   */
+  public Reservation(Reservation other) {
+    this(other.id, other.username, other.dayOfMonth, other.paid, other.cancelled, other.itinerary);
+  }
+}
@@ -0,0 +1,211 @@
+package flightapp;
+
+import java.util.*;
+import java.util.function.IntPredicate;
+
+/**
+ * Flight graph of one day for multi-leg search: cities are vertices and each flight is an edge.
+ * The data has no departure times, so as for one-hop itineraries any two flights of the day that
+ * meet in a city connect, and an itinerary's time is the sum of its flight times.
+ *
+ * {@link #search} is an A* search over partial itineraries. The bound for a partial itinerary is
+ * its elapsed time plus the shortest time from its last city to the destination within the legs
+ * it has left, computed per search by relaxing every flight once per leg. Partial itineraries
+ * that cannot reach the destination within the legs left, revisit a city, or use a canceled or
+ * full flight are never queued. Complete itineraries come off the queue in display order, so the
+ * search stops at the requested count.
+ *
+ * Immutable apart from the flights' canceled flags; safe to share between sessions.
+ */
+public class RouteGraph {
+  private static final int UNREACHABLE = Integer.MAX_VALUE;
+
+  private final Map<String, Integer> cityIds = new HashMap<>();
+  private final Flight[] flights;
+  private final int[] origins;
+  private final int[] dests;
+  // indexes into flights of each city's departures, shortest first
+  private final int[][] outgoing;
+  private final Map<Integer, Flight> flightsById = new HashMap<>();
+
+  /**
+   * A partial itinerary, as a chain of legs back to the origin
+   */
+  private static final class Path {
+    final Path prev;
+    final Flight leg;
+    final int from;
+    final int to;
+    final int legs;
+    final int time;
+    final int bound;
+
+    Path(Path prev, Flight leg, int from, int to, int time, int bound) {
+      this.prev = prev;
+      this.leg = leg;
+      this.from = from;
+      this.to = to;
+      this.legs = prev == null ? 1 : prev.legs + 1;
+      this.time = time;
+      this.bound = bound;
+    }
+
+    boolean visits(int city) {
+      for (Path p = this; p != null; p = p.prev) {
+        if (p.from == city || p.to == city) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    Flight[] legs() {
+      Flight[] legs = new Flight[this.legs];
+      for (Path p = this; p != null; p = p.prev) {
+        legs[p.legs - 1] = p.leg;
+      }
+      return legs;
+    }
+  }
+
+  // ties on the bound are broken by fid sequence, as Itinerary.compareTo does
+  private static final Comparator<Path> BY_BOUND = (a, b) -> {
+    if (a.bound != b.bound) {
+      return Integer.compare(a.bound, b.bound);
+    }
+    Flight[] x = a.legs();
+    Flight[] y = b.legs();
+    for (int i = 0; i < Math.max(x.length, y.length); i++) {
+      int fx = i < x.length ? x[i].fid : -1;
+      int fy = i < y.length ? y[i].fid : -1;
+      if (fx != fy) {
+        return Integer.compare(fx, fy);
+      }
+    }
+    return 0;
+  };
+
+  /**
+   * @param flights the flights of one day
+   */
+  public RouteGraph(Collection<Flight> flights) {
+    this.flights = flights.toArray(new Flight[0]);
+    origins = new int[this.flights.length];
+    dests = new int[this.flights.length];
+    for (int i = 0; i < this.flights.length; i++) {
+      origins[i] = cityId(this.flights[i].originCity);
+      dests[i] = cityId(this.flights[i].destCity);
+      flightsById.put(this.flights[i].fid, this.flights[i]);
+    }
+    Integer[] order = new Integer[this.flights.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, Comparator.comparingInt((Integer i) -> this.flights[i].time)
+        .thenComparingInt(i -> this.flights[i].fid));
+    int[] departures = new int[cityIds.size()];
+    for (int origin : origins) {
+      departures[origin]++;
+    }
+    outgoing = new int[cityIds.size()][];
+    for (int c = 0; c < outgoing.length; c++) {
+      outgoing[c] = new int[departures[c]];
+      departures[c] = 0;
+    }
+    for (int i : order) {
+      outgoing[origins[i]][departures[origins[i]]++] = i;
+    }
+  }
+
+  private int cityId(String city) {
+    Integer id = cityIds.get(city);
+    if (id == null) {
+      id = cityIds.size();
+      cityIds.put(city, id);
+    }
+    return id;
+  }
+
+  /**
+   * @return the flight with this fid, or null if it is not on this day
+   */
+  public Flight flight(int fid) {
+    return flightsById.get(fid);
+  }
+
+  /**
+   * Finds the shortest itineraries of one to {@code maxLegs} legs that visit no city twice.
+   *
+   * @param hasSeat whether a flight (by fid) still has a seat; full flights are skipped
+   * @param budgetNanos time after which the search returns what it has found so far
+   * @return up to {@code count} itineraries in display order: total time, then fids
+   */
+  public List<Itinerary> search(String originCity, String destCity, int maxLegs, int count,
+      IntPredicate hasSeat, long budgetNanos) {
+    List<Itinerary> found = new ArrayList<>();
+    Integer origin = cityIds.get(originCity);
+    Integer dest = cityIds.get(destCity);
+    if (origin == null || dest == null || origin.equals(dest) || maxLegs < 1 || count < 1) {
+      return found;
+    }
+    long deadline = System.nanoTime() + budgetNanos;
+    int[][] toDest = shortestToDest(dest, maxLegs);
+    PriorityQueue<Path> queue = new PriorityQueue<>(BY_BOUND);
+    expand(queue, null, origin, maxLegs, toDest, hasSeat);
+    int popped = 0;
+    while (!queue.isEmpty() && found.size() < count) {
+      if ((++popped & 255) == 0 && System.nanoTime() > deadline) {
+        break;
+      }
+      Path path = queue.poll();
+      if (path.to == dest) {
+        found.add(new Itinerary(Arrays.asList(path.legs())));
+      } else {
+        expand(queue, path, path.to, maxLegs, toDest, hasSeat);
+      }
+    }
+    return found;
+  }
+
+  private void expand(PriorityQueue<Path> queue, Path path, int from, int maxLegs,
+      int[][] toDest, IntPredicate hasSeat) {
+    int legsLeft = maxLegs - (path == null ? 0 : path.legs) - 1;
+    int elapsed = path == null ? 0 : path.time;
+    for (int i : outgoing[from]) {
+      Flight f = flights[i];
+      int to = dests[i];
+      int rest = toDest[legsLeft][to];
+      if (rest == UNREACHABLE || to == from || (path != null && path.visits(to)) || f.canceled
+          || !hasSeat.test(f.fid)) {
+        continue;
+      }
+      int time = elapsed + f.time;
+      queue.add(new Path(path, f, from, to, time, time + rest));
+    }
+  }
+
+  /**
+   * @return for r = 0..maxLegs-1, the shortest time from each city to the destination in at most
+   *         r legs. Revisits and full flights are allowed here, so it never overestimates.
+   */
+  private int[][] shortestToDest(int dest, int maxLegs) {
+    int[][] toDest = new int[maxLegs][cityIds.size()];
+    Arrays.fill(toDest[0], UNREACHABLE);
+    toDest[0][dest] = 0;
+    for (int r = 1; r < maxLegs; r++) {
+      int[] prev = toDest[r - 1];
+      int[] next = toDest[r];
+      System.arraycopy(prev, 0, next, 0, next.length);
+      for (int i = 0; i < flights.length; i++) {
+        if (prev[dests[i]] == UNREACHABLE || flights[i].canceled) {
+          continue;
+        }
+        int time = flights[i].time + prev[dests[i]];
+        if (time < next[origins[i]]) {
+          next[origins[i]] = time;
+        }
+      }
+    }
+    return toDest;
+  }
+}
@@ -0,0 +1,109 @@
+package flightapp;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Remaining seats of one flight, split into escrow buckets so concurrent bookers decrement
+ * different counters. The flight is sold out only when every bucket is empty.
+ *
+ * A rebalance drains all buckets and spreads the seats evenly again. It bumps {@code version} to
+ * an odd value while seats are in transit, so a booker never reports sold out from a scan that
+ * overlapped a rebalance.
+ */
+public class SeatBuckets {
+  private final AtomicIntegerArray seats;
+  private final AtomicLong version = new AtomicLong();
+  private final AtomicBoolean rebalancing = new AtomicBoolean();
+
+  public SeatBuckets(int capacity, int buckets) {
+    seats = new AtomicIntegerArray(buckets);
+    for (int i = 0; i < buckets; i++) {
+      seats.set(i, share(capacity, buckets, i));
+    }
+  }
+
+  // bucket i's share when spreading total seats evenly
+  private static int share(int total, int buckets, int i) {
+    return total / buckets + (i < total % buckets ? 1 : 0);
+  }
+
+  /**
+   * Takes one seat, starting at a random bucket
+   *
+   * @return false if the flight is sold out
+   */
+  public boolean take() {
+    int n = seats.length();
+    int start = ThreadLocalRandom.current().nextInt(n);
+    while (true) {
+      long before = version.get();
+      for (int k = 0; k < n; k++) {
+        if (tryTake((start + k) % n)) {
+          if (k > 0) {
+            // our bucket ran dry while others still hold seats
+            rebalance();
+          }
+          return true;
+        }
+      }
+      if ((before & 1) == 0 && version.get() == before) {
+        return false;
+      }
+      Thread.onSpinWait();
+    }
+  }
+
+  private boolean tryTake(int bucket) {
+    int current;
+    do {
+      current = seats.get(bucket);
+      if (current <= 0) {
+        return false;
+      }
+    } while (!seats.compareAndSet(bucket, current, current - 1));
+    return true;
+  }
+
+  /**
+   * Returns one seat to a random bucket
+   */
+  public void release() {
+    seats.incrementAndGet(ThreadLocalRandom.current().nextInt(seats.length()));
+  }
+
+  /**
+   * Spreads the remaining seats evenly over the buckets. Skipped if another thread is already
+   * rebalancing this flight.
+   */
+  public void rebalance() {
+    if (!rebalancing.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      version.incrementAndGet();
+      int n = seats.length();
+      int total = 0;
+      for (int i = 0; i < n; i++) {
+        total += seats.getAndSet(i, 0);
+      }
+      for (int i = 0; i < n; i++) {
+        seats.addAndGet(i, share(total, n, i));
+      }
+      version.incrementAndGet();
+    } finally {
+      rebalancing.set(false);
+    }
+  }
+
+  /**
+   * @return the remaining seats; only a snapshot while bookings are in flight
+   */
+  public int remaining() {
+    int total = 0;
+    for (int i = 0; i < seats.length(); i++) {
+      total += seats.get(i);
+    }
+    return total;
+  }
+}
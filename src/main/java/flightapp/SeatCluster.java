@@ -0,0 +1,331 @@
+package flightapp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Client for a set of {@link SeatNode}s that partition the seat inventory by fid on a
+ * {@link HashRing}. Each leg of an itinerary goes to the node owning its fid. A direct itinerary
+ * takes its seat in one request. An itinerary with more legs is reserved with two-phase commit:
+ * every owner first holds a seat, then the holds are committed, or aborted if any leg is full.
+ *
+ * Nodes join and leave through {@link #join} and {@link #leave}, which move the inventory of the
+ * affected fids to their new owners. While that runs the nodes answer RETRY for those fids, and
+ * clients reload the ring from a node and try again.
+ *
+ * Thread-safe; requests to the same node are serialized on one connection.
+ */
+public class SeatCluster implements AutoCloseable {
+  // RETRY replies tolerated per request, e.g. while the members are changing
+  private static final int MAX_RETRIES = 100;
+  private static final long RETRY_DELAY_MS = 20;
+
+  /**
+   * Seats held on the owner nodes for one itinerary until {@link #commit} or {@link #abort}
+   */
+  public class Hold {
+    private final String txid;
+    private final Itinerary itinerary;
+    // legs held on each node
+    private final Map<String, List<Flight>> legsByNode = new LinkedHashMap<>();
+
+    private Hold(String txid, Itinerary itinerary) {
+      this.txid = txid;
+      this.itinerary = itinerary;
+    }
+
+    /**
+     * Keeps the seats. Retried until every node acknowledges, since an unacknowledged hold would
+     * expire and hand the seat out a second time.
+     *
+     * @return false if a node had already let its hold expire, in which case that seat may be
+     *         sold again: the seats committed on the other nodes are released and the rest
+     *         aborted, and the caller must undo whatever it recorded for them
+     */
+    public boolean commit() throws IOException {
+      List<String> nodes = new ArrayList<>(legsByNode.keySet());
+      for (int i = 0; i < nodes.size(); i++) {
+        if (!finish(nodes.get(i), "COMMIT")) {
+          for (String node : nodes.subList(0, i)) {
+            for (Flight leg : legsByNode.get(node)) {
+              send(leg, "RELEASE " + leg.fid + " " + leg.capacity);
+            }
+          }
+          for (String node : nodes.subList(i + 1, nodes.size())) {
+            finish(node, "ABORT");
+          }
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Returns the seats
+     */
+    public void abort() throws IOException {
+      if (txid == null) {
+        release(itinerary); // a direct flight took its seat without a hold
+        return;
+      }
+      for (String node : legsByNode.keySet()) {
+        finish(node, "ABORT");
+      }
+    }
+
+    /**
+     * @return false if the node answered with an error, i.e. it no longer has the hold
+     */
+    private boolean finish(String node, String verb) throws IOException {
+      IOException failure = null;
+      for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+        try {
+          return !request(node, verb + " " + txid).startsWith("ERROR");
+        } catch (IOException e) {
+          failure = e;
+          pause();
+        }
+      }
+      throw failure;
+    }
+  }
+
+  private static class Connection {
+    final Socket socket;
+    final BufferedReader in;
+    final Writer out;
+
+    Connection(String node) throws IOException {
+      int colon = node.lastIndexOf(':');
+      socket = new Socket(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+      socket.setTcpNoDelay(true);
+      in = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+    }
+  }
+
+  private volatile HashRing ring;
+  // guarded by itself
+  private final Map<String, Connection> connections = new HashMap<>();
+
+  /**
+   * Connects to the cluster that the first reachable seed node belongs to. Seeds that have not
+   * joined a cluster yet report an empty ring; {@link #join} them to form one.
+   */
+  public SeatCluster(List<String> seeds) throws IOException {
+    IOException failure = new IOException("No seed node given");
+    for (String seed : seeds) {
+      try {
+        ring = fetchRing(seed);
+        return;
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    throw failure;
+  }
+
+  /**
+   * @return the members as last seen by this client
+   */
+  public List<String> nodes() {
+    return ring.nodes();
+  }
+
+  /**
+   * Takes a seat on every leg of the itinerary
+   *
+   * @return the hold to commit once the reservation is recorded, or null if a leg is full
+   */
+  public Hold reserve(Itinerary itinerary) throws IOException {
+    if (!itinerary.layover) {
+      String[] reply = send(itinerary.f1, "TAKE " + itinerary.f1.fid + " " + itinerary.f1.capacity);
+      return reply[1].equals("OK") ? new Hold(null, itinerary) : null;
+    }
+    String txid = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    Hold hold = new Hold(txid, itinerary);
+    try {
+      for (Flight leg : itinerary.legs) {
+        String[] reply = send(leg, "PREPARE " + txid + " " + leg.fid + " " + leg.capacity);
+        if (!reply[1].equals("OK")) {
+          hold.abort();
+          return null;
+        }
+        hold.legsByNode.computeIfAbsent(reply[0], node -> new ArrayList<>()).add(leg);
+      }
+    } catch (IOException e) {
+      // best effort: a hold we cannot abort expires on its node
+      try {
+        hold.abort();
+      } catch (IOException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw e;
+    }
+    return hold;
+  }
+
+  /**
+   * Returns one seat on every leg of the itinerary
+   */
+  public void release(Itinerary itinerary) throws IOException {
+    for (Flight leg : itinerary.legs) {
+      send(leg, "RELEASE " + leg.fid + " " + leg.capacity);
+    }
+  }
+
+  /**
+   * Sends a request for a leg to its owner, following the ring while the owner says RETRY
+   *
+   * @return the node that answered and its reply
+   */
+  private String[] send(Flight leg, String request) throws IOException {
+    for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+      String owner = ring.owner(leg.fid);
+      if (owner == null) {
+        throw new IOException("Seat cluster has no nodes");
+      }
+      String reply = call(owner, request);
+      if (!reply.equals("RETRY")) {
+        return new String[] {owner, reply};
+      }
+      pause();
+      refreshRing();
+    }
+    throw new IOException("Seat nodes kept answering RETRY for fid " + leg.fid);
+  }
+
+  /**
+   * Adds a node, moving the inventory of the fids it now owns over from their old owners
+   */
+  public synchronized void join(String node) throws IOException {
+    refreshRing();
+    HashRing current = ring;
+    if (current.nodes().contains(node)) {
+      return;
+    }
+    migrate(current, current.with(node), current.nodes());
+  }
+
+  /**
+   * Removes a node, moving all of its inventory to the remaining nodes. The node can be shut down
+   * afterwards.
+   */
+  public synchronized void leave(String node) throws IOException {
+    refreshRing();
+    HashRing current = ring;
+    if (!current.nodes().contains(node)) {
+      return;
+    }
+    migrate(current, current.without(node), Collections.singletonList(node));
+  }
+
+  /**
+   * Installs the new ring on every node in migration mode, so no node creates inventory for a fid
+   * that is still on its way; hands over the fids held by {@code sources} that changed owner; then
+   * ends migration mode.
+   */
+  private void migrate(HashRing from, HashRing to, List<String> sources) throws IOException {
+    Set<String> everyone = new TreeSet<>(from.nodes());
+    everyone.addAll(to.nodes());
+    for (String member : everyone) {
+      call(member, "SETRING 1 " + String.join(" ", to.nodes()));
+    }
+    for (String source : sources) {
+      String held = call(source, "HELD");
+      for (String fid : held.isEmpty() ? new String[0] : held.split(" ")) {
+        String owner = to.owner(Integer.parseInt(fid));
+        if (!source.equals(owner)) {
+          String seats = call(source, "EXPORT " + fid);
+          if (!seats.equals("NONE")) {
+            call(owner, "IMPORT " + fid + " " + seats);
+          }
+        }
+      }
+    }
+    for (String member : everyone) {
+      call(member, "SETRING 0 " + String.join(" ", to.nodes()));
+    }
+    ring = to;
+  }
+
+  private void refreshRing() throws IOException {
+    IOException failure = null;
+    for (String node : ring.nodes()) {
+      try {
+        ring = fetchRing(node);
+        return;
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private HashRing fetchRing(String node) throws IOException {
+    String members = call(node, "RING");
+    return new HashRing(members.isEmpty() ? Collections.emptyList()
+        : Arrays.asList(members.split(" ")));
+  }
+
+  private String call(String node, String request) throws IOException {
+    String reply = request(node, request);
+    if (reply.startsWith("ERROR")) {
+      throw new IOException(reply);
+    }
+    return reply;
+  }
+
+  // sends one request and returns the reply line, errors included
+  private String request(String node, String request) throws IOException {
+    Connection connection;
+    synchronized (connections) {
+      connection = connections.get(node);
+      if (connection == null) {
+        connection = new Connection(node);
+        connections.put(node, connection);
+      }
+    }
+    synchronized (connection) {
+      try {
+        connection.out.write(request + "\n");
+        connection.out.flush();
+        String reply = connection.in.readLine();
+        if (reply == null) {
+          throw new EOFException("Seat node " + node + " closed the connection");
+        }
+        return reply;
+      } catch (IOException e) {
+        synchronized (connections) {
+          connections.remove(node, connection);
+        }
+        connection.socket.close();
+        throw e;
+      }
+    }
+  }
+
+  private static void pause() {
+    try {
+      Thread.sleep(RETRY_DELAY_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (connections) {
+      for (Connection connection : connections.values()) {
+        connection.socket.close();
+      }
+      connections.clear();
+    }
+  }
+}
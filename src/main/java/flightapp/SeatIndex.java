@@ -0,0 +1,115 @@
+package flightapp;
+
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remaining seats per flight as this process last saw them, so a search can leave out sold-out
+ * flights without running a booking. A flight's count is loaded on its first lookup, then kept
+ * current by the bookings and cancellations this process commits. After {@code ttlNanos} it is
+ * loaded again, which picks up the ones committed by other processes.
+ *
+ * Counts are advisory: a seat can still go between the search and the booking, and the booking
+ * stays the only authority on whether it gets one.
+ */
+public class SeatIndex {
+  /**
+   * Reads a flight's remaining seats from the backend
+   */
+  public interface Loader {
+    int remainingSeats(Flight flight) throws SQLException;
+  }
+
+  private static final class Entry {
+    final AtomicInteger seats;
+    final long loadedAt = System.nanoTime();
+
+    Entry(int seats) {
+      this.seats = new AtomicInteger(seats);
+    }
+  }
+
+  private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<>();
+  private final long ttlNanos;
+
+  public SeatIndex(long ttlNanos) {
+    this.ttlNanos = ttlNanos;
+  }
+
+  /**
+   * @return the flight's remaining seats, loading them if they are unknown or expired
+   */
+  public int remaining(Flight flight, Loader loader) throws SQLException {
+    Entry entry = entries.get(flight.fid);
+    if (entry == null || System.nanoTime() - entry.loadedAt >= ttlNanos) {
+      // not under the map's lock: a load is a round trip
+      entry = new Entry(loader.remainingSeats(flight));
+      entries.put(flight.fid, entry);
+    }
+    return entry.seats.get();
+  }
+
+  /**
+   * @return false only if the flight is known to be sold out; never loads
+   */
+  public boolean hasSeat(int fid) {
+    Entry entry = entries.get(fid);
+    return entry == null || entry.seats.get() > 0;
+  }
+
+  /**
+   * Sets the itinerary's {@code seatsLeft} to each leg's remaining seats
+   *
+   * @return false if a leg is sold out
+   */
+  public boolean available(Itinerary itinerary, Loader loader) throws SQLException {
+    int[] seatsLeft = new int[itinerary.legs.length];
+    for (int i = 0; i < seatsLeft.length; i++) {
+      seatsLeft[i] = remaining(itinerary.legs[i], loader);
+      if (seatsLeft[i] <= 0) {
+        return false;
+      }
+    }
+    itinerary.seatsLeft = seatsLeft;
+    return true;
+  }
+
+  /**
+   * Records that a booking found the flight sold out
+   */
+  public void soldOut(int fid) {
+    entries.put(fid, new Entry(0));
+  }
+
+  /**
+   * Records a committed booking of one seat on every leg
+   */
+  public void booked(Itinerary itinerary) {
+    for (Flight leg : itinerary.legs) {
+      Entry entry = entries.get(leg.fid);
+      if (entry != null) {
+        entry.seats.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Records a committed cancellation that returned one seat on every leg
+   */
+  public void released(Itinerary itinerary) {
+    for (Flight leg : itinerary.legs) {
+      Entry entry = entries.get(leg.fid);
+      if (entry != null) {
+        entry.seats.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Forgets every count, e.g. after the reservations were cleared
+   */
+  public void clear() {
+    entries.clear();
+  }
+}
@@ -0,0 +1,280 @@
+package flightapp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Seat inventory server for the fids a {@link HashRing} assigns to it. Clients talk to it through
+ * {@link SeatCluster} over a line protocol, one request and one reply line at a time:
+ *
+ * <pre>
+ * TAKE fid capacity          -> OK | FULL | RETRY     take a seat
+ * PREPARE txid fid capacity  -> OK | FULL | RETRY     take a seat and hold it for txid
+ * COMMIT txid                -> OK | ERROR            keep the seats held for txid
+ * ABORT txid                 -> OK                    return the seats held for txid
+ * RELEASE fid capacity       -> OK | RETRY            return a seat
+ * RING                       -> node...               current members
+ * SETRING 0|1 node...        -> OK                    new members, 1 while fids are migrating
+ * HELD                       -> fid...                fids with inventory on this node
+ * EXPORT fid                 -> remaining | NONE      hand a fid's inventory over
+ * IMPORT fid remaining       -> OK                    take a fid's inventory over
+ * </pre>
+ *
+ * A fid's inventory starts at the flight's capacity the first time its owner sees it. RETRY means
+ * the node does not own the fid under its current ring, or the fid is not here yet because the
+ * members are changing; the client reloads the ring and tries again. Holds that are neither
+ * committed nor aborted within {@link #HOLD_TIMEOUT_MS} are aborted, so a crashed coordinator
+ * cannot leak seats; a COMMIT that comes after that gets an ERROR, since the seat may already be
+ * sold again. A repeated COMMIT of a committed txid still gets OK. Malformed requests get an
+ * ERROR too.
+ *
+ * Run with: java flightapp.SeatNode <port> [seed]    start a node, joining the seed's cluster or
+ *                                                 founding one of its own
+ *           java flightapp.SeatNode leave <node>    hand a node's seats over and remove it
+ */
+public class SeatNode implements AutoCloseable {
+  static final long HOLD_TIMEOUT_MS = Long.getLong("flightapp.seatHoldTimeoutMillis", 30_000);
+
+  private static class Hold {
+    final List<Integer> fids = new ArrayList<>();
+    final long deadline = System.currentTimeMillis() + HOLD_TIMEOUT_MS;
+  }
+
+  private final String self;
+  private final ServerSocket server;
+  private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, "seat-node-connection");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "seat-node-reaper");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // guarded by this
+  private HashRing ring = new HashRing(Collections.emptyList());
+  private boolean migrating = true; // no fids are created until a ring is installed
+  private final Map<Integer, Integer> remaining = new HashMap<>();
+  private final Map<Integer, Integer> heldSeats = new HashMap<>();
+  private final Map<String, Hold> holds = new HashMap<>();
+  // commit times of recently committed txids, so a COMMIT retried after a lost reply gets OK
+  private final Map<String, Long> committed = new HashMap<>();
+
+  public SeatNode(int port) throws IOException {
+    server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    self = "127.0.0.1:" + server.getLocalPort();
+    // not a daemon, so a node started from main keeps its JVM alive
+    new Thread(this::accept, "seat-node-acceptor").start();
+    reaper.scheduleWithFixedDelay(this::abortExpiredHolds, 1, 1, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @return the address clients use for this node, host:port
+   */
+  public String address() {
+    return self;
+  }
+
+  private void accept() {
+    while (!server.isClosed()) {
+      try {
+        Socket socket = server.accept();
+        connections.execute(() -> serve(socket));
+      } catch (IOException e) {
+        return; // closed
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (Socket s = socket;
+        BufferedReader in = new BufferedReader(
+            new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+        Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        String reply;
+        try {
+          reply = handle(line.trim().split(" "));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+          reply = "ERROR malformed request " + line;
+        }
+        out.write(reply + "\n");
+        out.flush();
+      }
+    } catch (IOException e) {
+      // client went away
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private String handle(String[] request) throws InterruptedException {
+    switch (request[0]) {
+      case "TAKE":
+        return take(null, Integer.parseInt(request[1]), Integer.parseInt(request[2]));
+      case "PREPARE":
+        return take(request[1], Integer.parseInt(request[2]), Integer.parseInt(request[3]));
+      case "COMMIT":
+        return finish(request[1], false) ? "OK"
+            : "ERROR unknown or expired transaction " + request[1];
+      case "ABORT":
+        finish(request[1], true);
+        return "OK";
+      case "RELEASE":
+        return release(Integer.parseInt(request[1]), Integer.parseInt(request[2]));
+      case "RING":
+        return String.join(" ", ring().nodes());
+      case "SETRING":
+        setRing(request[1].equals("1"), Arrays.asList(request).subList(2, request.length));
+        return "OK";
+      case "HELD":
+        return held();
+      case "EXPORT":
+        return export(Integer.parseInt(request[1]));
+      case "IMPORT":
+        importSeats(Integer.parseInt(request[1]), Integer.parseInt(request[2]));
+        return "OK";
+      default:
+        return "ERROR unknown request " + request[0];
+    }
+  }
+
+  private synchronized HashRing ring() {
+    return ring;
+  }
+
+  // inventory of a fid this node owns, created from the capacity if the fid is new here
+  private Integer inventory(int fid, int capacity) {
+    if (!self.equals(ring.owner(fid))) {
+      return null;
+    }
+    Integer seats = remaining.get(fid);
+    if (seats == null && !migrating) {
+      seats = capacity;
+      remaining.put(fid, seats);
+    }
+    return seats;
+  }
+
+  private synchronized String take(String txid, int fid, int capacity) {
+    Integer seats = inventory(fid, capacity);
+    if (seats == null) {
+      return "RETRY";
+    }
+    if (seats == 0) {
+      return "FULL";
+    }
+    remaining.put(fid, seats - 1);
+    if (txid != null) {
+      holds.computeIfAbsent(txid, t -> new Hold()).fids.add(fid);
+      heldSeats.merge(fid, 1, Integer::sum);
+    }
+    return "OK";
+  }
+
+  /**
+   * @return false if a commit comes for a txid that is neither held nor committed, e.g. one whose
+   *         hold expired
+   */
+  private synchronized boolean finish(String txid, boolean abort) {
+    Hold hold = holds.remove(txid);
+    if (hold == null) {
+      return abort || committed.containsKey(txid);
+    }
+    if (!abort) {
+      committed.put(txid, System.currentTimeMillis());
+    }
+    for (int fid : hold.fids) {
+      if (heldSeats.merge(fid, -1, Integer::sum) == 0) {
+        heldSeats.remove(fid);
+      }
+      if (abort) {
+        remaining.merge(fid, 1, Integer::sum);
+      }
+    }
+    notifyAll();
+    return true;
+  }
+
+  private synchronized String release(int fid, int capacity) {
+    Integer seats = inventory(fid, capacity);
+    if (seats == null) {
+      return "RETRY";
+    }
+    remaining.put(fid, Math.min(capacity, seats + 1));
+    return "OK";
+  }
+
+  private synchronized void setRing(boolean migrating, List<String> nodes) {
+    this.ring = new HashRing(nodes);
+    this.migrating = migrating;
+  }
+
+  private synchronized String held() {
+    StringBuilder sb = new StringBuilder();
+    for (int fid : remaining.keySet()) {
+      sb.append(sb.length() == 0 ? "" : " ").append(fid);
+    }
+    return sb.toString();
+  }
+
+  // waits for the fid's holds to finish, so no abort can return a seat after the hand-over
+  private synchronized String export(int fid) throws InterruptedException {
+    while (heldSeats.containsKey(fid)) {
+      wait(HOLD_TIMEOUT_MS);
+    }
+    Integer seats = remaining.remove(fid);
+    return seats == null ? "NONE" : seats.toString();
+  }
+
+  private synchronized void importSeats(int fid, int seats) {
+    remaining.put(fid, seats);
+  }
+
+  private void abortExpiredHolds() {
+    List<String> expired = new ArrayList<>();
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      for (Map.Entry<String, Hold> hold : holds.entrySet()) {
+        if (hold.getValue().deadline < now) {
+          expired.add(hold.getKey());
+        }
+      }
+      // a coordinator retries a commit for far less than a hold lives
+      committed.values().removeIf(at -> at + HOLD_TIMEOUT_MS < now);
+    }
+    for (String txid : expired) {
+      finish(txid, true);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.close();
+    connections.shutdownNow();
+    reaper.shutdownNow();
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length > 1 && args[0].equals("leave")) {
+      try (SeatCluster cluster = new SeatCluster(Collections.singletonList(args[1]))) {
+        cluster.leave(args[1]);
+        System.out.println("seat node " + args[1] + " left, members: " + cluster.nodes());
+      }
+      return;
+    }
+    SeatNode node = new SeatNode(args.length > 0 ? Integer.parseInt(args[0]) : 0);
+    String seed = args.length > 1 ? args[1] : node.address();
+    try (SeatCluster cluster = new SeatCluster(Collections.singletonList(seed))) {
+      cluster.join(node.address());
+      System.out.println("seat node listening on " + node.address() + ", members: "
+          + cluster.nodes());
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package flightapp;
+
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Issues and checks resumable session tokens, so a reconnecting client can skip the password hash.
+ * A token is {@code base64(username).expiry.id.signature}, signed with HMAC-SHA256 under a key
+ * generated when the process starts; tokens are therefore only valid in the process that issued
+ * them.
+ *
+ * A valid signature is not enough: the token's id must also still be in the live set. The set is
+ * bounded, and when it is full the oldest token is dropped, as if it had been revoked.
+ */
+public class SessionTokens {
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+  private final SecretKeySpec key;
+  private final long ttlMillis;
+  private final int capacity;
+  private final SecureRandom random = new SecureRandom();
+  // Mac.getInstance is far slower than the HMAC itself, so each thread keeps one
+  private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(this::newMac);
+
+  // token id -> lowercased username, oldest first; guarded by this
+  private final LinkedHashMap<Long, String> live = new LinkedHashMap<>();
+
+  public SessionTokens(long ttlMillis, int capacity) {
+    byte[] secret = new byte[32];
+    random.nextBytes(secret);
+    this.key = new SecretKeySpec(secret, "HmacSHA256");
+    this.ttlMillis = ttlMillis;
+    this.capacity = capacity;
+  }
+
+  /**
+   * Reads the lifetime and the live-token bound from the flightapp.sessionTtlSeconds and
+   * flightapp.sessionTokens system properties
+   */
+  public static SessionTokens fromSystemProperties() {
+    return new SessionTokens(Long.getLong("flightapp.sessionTtlSeconds", 3600) * 1000,
+        Integer.getInteger("flightapp.sessionTokens", 100_000));
+  }
+
+  /**
+   * Issues a token for a user that has just logged in
+   */
+  public String issue(String username) {
+    long id = random.nextLong();
+    long expiry = System.currentTimeMillis() + ttlMillis;
+    String payload = ENCODER.encodeToString(username.getBytes(StandardCharsets.UTF_8)) + "."
+        + expiry + "." + Long.toHexString(id);
+    synchronized (this) {
+      live.put(id, key(username));
+      if (live.size() > capacity) {
+        Iterator<Long> oldest = live.keySet().iterator();
+        oldest.next();
+        oldest.remove();
+      }
+    }
+    return payload + "." + sign(payload);
+  }
+
+  /**
+   * @return the user the token was issued to, or null if it is forged, expired or revoked
+   */
+  public String verify(String token) {
+    int signatureStart = token.lastIndexOf('.');
+    if (signatureStart < 0) {
+      return null;
+    }
+    String payload = token.substring(0, signatureStart);
+    byte[] expected = sign(payload).getBytes(StandardCharsets.US_ASCII);
+    byte[] actual = token.substring(signatureStart + 1).getBytes(StandardCharsets.US_ASCII);
+    if (!MessageDigest.isEqual(expected, actual)) {
+      return null;
+    }
+    String[] fields = payload.split("\\.");
+    if (fields.length != 3 || Long.parseLong(fields[1]) < System.currentTimeMillis()) {
+      return null;
+    }
+    long id = Long.parseUnsignedLong(fields[2], 16);
+    synchronized (this) {
+      if (!live.containsKey(id)) {
+        return null;
+      }
+    }
+    return new String(DECODER.decode(fields[0]), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Revokes one token. Unknown or malformed tokens are ignored.
+   */
+  public void revoke(String token) {
+    String[] fields = token.split("\\.");
+    if (fields.length == 4) {
+      try {
+        long id = Long.parseUnsignedLong(fields[2], 16);
+        synchronized (this) {
+          live.remove(id);
+        }
+      } catch (NumberFormatException e) {
+        // not one of ours
+      }
+    }
+  }
+
+  /**
+   * Revokes every token issued to the user, e.g. after a password change
+   */
+  public synchronized void revokeAll(String username) {
+    live.values().removeIf(key(username)::equals);
+  }
+
+  private String sign(String payload) {
+    return ENCODER.encodeToString(macs.get().doFinal(payload.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private Mac newMac() {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(key);
+      return mac;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String key(String username) {
+    return username.toLowerCase(Locale.ROOT);
+  }
+}
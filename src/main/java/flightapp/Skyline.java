@@ -0,0 +1,66 @@
+package flightapp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Price/duration skyline of itineraries offered in order of total time (sort-first skyline). An
+ * itinerary is kept only if it is strictly cheaper than every itinerary kept before it, so no kept
+ * itinerary is both slower and no cheaper than another, and the state is just the last point.
+ * A cheaper itinerary with the same time as the last point replaces it. One itinerary is kept per
+ * (time, price) point: the first one offered.
+ */
+public class Skyline {
+  private final List<Itinerary> points = new ArrayList<>();
+  private final int limit;
+
+  /**
+   * @param limit the most points to keep; the fastest ones are kept
+   */
+  public Skyline(int limit) {
+    this.limit = limit;
+  }
+
+  /**
+   * @param itinerary no faster than any itinerary offered before
+   * @return true if it is on the skyline so far
+   */
+  public boolean offer(Itinerary itinerary) {
+    if (!points.isEmpty()) {
+      Itinerary last = points.get(points.size() - 1);
+      if (itinerary.price >= last.price) {
+        return false;
+      }
+      if (itinerary.totalTime == last.totalTime) {
+        points.remove(points.size() - 1);
+      }
+    }
+    if (points.size() == limit) {
+      return false;
+    }
+    points.add(itinerary);
+    return true;
+  }
+
+  /**
+   * @return the price an itinerary must be below to be kept, or Integer.MAX_VALUE if none is kept
+   */
+  public int cheapest() {
+    return points.isEmpty() ? Integer.MAX_VALUE : points.get(points.size() - 1).price;
+  }
+
+  /**
+   * @return true if no itinerary of this total time or longer can change the skyline
+   */
+  public boolean isComplete(int totalTime) {
+    return limit <= 0
+        || (points.size() == limit && totalTime > points.get(points.size() - 1).totalTime);
+  }
+
+  /**
+   * @return the kept itineraries, fastest (and most expensive) first
+   */
+  public List<Itinerary> points() {
+    return points;
+  }
+}
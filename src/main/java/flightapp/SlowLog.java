@@ -0,0 +1,70 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Append-only log of slow request traces. When the file grows past its size limit it is rotated:
+ * {@code log} becomes {@code log.1}, {@code log.1} becomes {@code log.2} and so on, and the
+ * oldest file beyond the kept count is deleted.
+ */
+public class SlowLog {
+  private final Path path;
+  private final long maxBytes;
+  private final int keep;
+
+  public SlowLog(Path path, long maxBytes, int keep) {
+    this.path = path;
+    this.maxBytes = maxBytes;
+    this.keep = keep;
+  }
+
+  /**
+   * Reads the flightapp.slowLog, flightapp.slowLog.maxBytes and flightapp.slowLog.files system
+   * properties
+   *
+   * @return null if no log file is configured
+   */
+  public static SlowLog fromSystemProperties() {
+    String file = System.getProperty("flightapp.slowLog");
+    if (file == null || file.isEmpty()) {
+      return null;
+    }
+    return new SlowLog(Paths.get(file), Long.getLong("flightapp.slowLog.maxBytes", 10 << 20),
+        Integer.getInteger("flightapp.slowLog.files", 5));
+  }
+
+  /**
+   * Appends an entry. Failures are reported on stderr, never to the request being logged.
+   */
+  public synchronized void write(String entry) {
+    try {
+      if (Files.exists(path) && Files.size(path) >= maxBytes) {
+        rotate();
+      }
+      Files.write(path, (entry + "\n").getBytes(StandardCharsets.UTF_8),
+          StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    } catch (IOException e) {
+      System.err.println("Cannot write slow log " + path + ": " + e);
+    }
+  }
+
+  private void rotate() throws IOException {
+    Files.deleteIfExists(rotated(keep));
+    for (int i = keep - 1; i >= 1; i--) {
+      if (Files.exists(rotated(i))) {
+        Files.move(rotated(i), rotated(i + 1));
+      }
+    }
+    if (keep > 0) {
+      Files.move(path, rotated(1));
+    } else {
+      Files.delete(path);
+    }
+  }
+
+  private Path rotated(int generation) {
+    return path.resolveSibling(path.getFileName() + "." + generation);
+  }
+}
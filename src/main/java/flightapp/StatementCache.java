@@ -0,0 +1,112 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Prepared statements of one physical connection, keyed by their {@link QueryStorage} SQL. A
+ * statement is prepared the first time it is asked for and then reused by every
+ * {@link JdbcFlightStorage} created on the same connection, so creating a session prepares
+ * nothing and statements a session never runs are never prepared.
+ *
+ * Statements are prepared through a {@link Trace} wrapper of the connection, whichever storage asks
+ * first, so every storage sharing them is traced alike. Every statement handed out is given the
+ * time left to the command running on this thread as its query timeout (see {@link Deadline}).
+ *
+ * Like the connection itself, a cache must be used by one thread at a time.
+ */
+public class StatementCache {
+  // by physical connection; entries are dropped when their last user releases them or once their
+  // connection is closed
+  private static final Map<Connection, StatementCache> caches = new IdentityHashMap<>();
+
+  private final Connection conn;
+  private final Map<String, PreparedStatement> statements = new HashMap<>();
+  // users that have not released the cache yet, guarded by caches
+  private int users;
+
+  private StatementCache(Connection conn) {
+    this.conn = conn;
+  }
+
+  /**
+   * @param physical the connection the cache is kept for
+   * @return the connection's cache, to be given back with {@link #release} once done with it
+   */
+  public static StatementCache forConnection(Connection physical) throws SQLException {
+    synchronized (caches) {
+      StatementCache cache = caches.get(physical);
+      if (cache == null) {
+        Iterator<Connection> it = caches.keySet().iterator();
+        while (it.hasNext()) {
+          if (it.next().isClosed()) {
+            it.remove();
+          }
+        }
+        cache = new StatementCache(Trace.wrapConnection(physical));
+        caches.put(physical, cache);
+      }
+      cache.users++;
+      return cache;
+    }
+  }
+
+  /**
+   * Gives the cache back; the last user to do so forgets it, e.g. when closing the connection
+   */
+  public void release() {
+    synchronized (caches) {
+      if (--users == 0) {
+        caches.values().remove(this);
+      }
+    }
+  }
+
+  /**
+   * @return the statement for this SQL, prepared on first use
+   * @throws SQLTimeoutException if the command on this thread is past its deadline
+   */
+  public PreparedStatement get(String sql) throws SQLException {
+    PreparedStatement statement = statements.get(sql);
+    if (statement == null) {
+      statement = conn.prepareStatement(sql);
+      statements.put(sql, statement);
+    }
+    Deadline.apply(statement);
+    return statement;
+  }
+
+  /**
+   * @return the statement for this SQL without a query timeout, for housekeeping that must run
+   *         even after the command's deadline, e.g. checking for a dangling transaction
+   */
+  public PreparedStatement getUnbounded(String sql) throws SQLException {
+    PreparedStatement statement = statements.get(sql);
+    if (statement == null) {
+      statement = conn.prepareStatement(sql);
+      statements.put(sql, statement);
+    }
+    statement.setQueryTimeout(0);
+    return statement;
+  }
+
+  /**
+   * @return the statement for this SQL, prepared on first use to return generated keys
+   */
+  public PreparedStatement getReturningKeys(String sql) throws SQLException {
+    PreparedStatement statement = statements.get(sql);
+    if (statement == null) {
+      statement = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+      statements.put(sql, statement);
+    }
+    Deadline.apply(statement);
+    return statement;
+  }
+
+  /**
+   * @return the number of statements prepared so far
+   */
+  public int size() {
+    return statements.size();
+  }
+}
@@ -0,0 +1,282 @@
+package flightapp;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Per-request trace: a tree of timed spans for the storage calls, SQL statements, commits and
+ * rollbacks made while one command runs. The trace lives in a thread local, begun and ended by
+ * {@link FlightService#execute}, so nothing has to be passed down explicitly; storage calls and
+ * JDBC objects are traced by wrapping them once with {@link #wrap} and {@link #wrapConnection}.
+ *
+ * Requests slower than the threshold are written with their span tree to the {@link SlowLog}.
+ * Tracing is off unless the flightapp.slowLog system property names a log file; then the wrap
+ * methods return their argument and no spans are recorded.
+ */
+public class Trace {
+  private static final SlowLog SLOW_LOG = SlowLog.fromSystemProperties();
+  public static final boolean ENABLED = SLOW_LOG != null;
+  private static final long THRESHOLD_NANOS =
+      Long.getLong("flightapp.slowMillis", 1000) * 1_000_000;
+  // SQL text is cut to this many characters in the log
+  private static final int MAX_SQL_LENGTH = 120;
+
+  private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+
+  /**
+   * A timed step of a request. Spans opened with {@link #span} nest the spans opened inside them;
+   * SQL statement spans are always leaves.
+   */
+  public static final class Span implements AutoCloseable {
+    private final Trace trace;
+    private final Span parent;
+    private final String name;
+    private final long start = System.nanoTime();
+    private long end = -1;
+    private long rows = -1;
+    private String error;
+    private final List<Span> children = new ArrayList<>();
+
+    private Span(Trace trace, Span parent, String name) {
+      this.trace = trace;
+      this.parent = parent;
+      this.name = name;
+    }
+
+    /**
+     * Records the rows a statement returned or changed
+     */
+    public void rows(long rows) {
+      this.rows = rows;
+    }
+
+    public void fail(Throwable e) {
+      error = e instanceof SQLException
+          ? "SQL error " + ((SQLException) e).getErrorCode() + ": " + e.getMessage()
+          : e.toString();
+    }
+
+    @Override
+    public void close() {
+      if (end < 0) {
+        end = System.nanoTime();
+      }
+      if (trace != null && trace.current == this) {
+        trace.current = parent;
+      }
+    }
+
+    private void render(StringBuilder sb, int depth, long traceEnd) {
+      long elapsed = (end < 0 ? traceEnd : end) - start;
+      sb.append(String.format("%10.3f ms  ", elapsed / 1e6));
+      for (int i = 0; i < depth; i++) {
+        sb.append("  ");
+      }
+      sb.append(name);
+      if (rows >= 0) {
+        sb.append(" [rows=").append(rows).append(']');
+      }
+      if (end < 0) {
+        sb.append(" [not closed]");
+      }
+      if (error != null) {
+        sb.append(" [").append(error).append(']');
+      }
+      sb.append('\n');
+      for (Span child : children) {
+        child.render(sb, depth + 1, traceEnd);
+      }
+    }
+  }
+
+  // spans are still recorded and closed on a request that is not traced, but go nowhere
+  private static final Span DETACHED = new Span(null, null, "detached");
+
+  private final Span root;
+  private Span current;
+  private int statements;
+  private int commits;
+  private int rollbacks;
+
+  private Trace(String name) {
+    root = new Span(this, null, name);
+    current = root;
+  }
+
+  /**
+   * Starts tracing a request on this thread
+   */
+  public static void begin(String name) {
+    if (ENABLED) {
+      CURRENT.set(new Trace(name));
+    }
+  }
+
+  /**
+   * Ends the request traced on this thread and logs it if it was slow
+   */
+  public static void end() {
+    Trace trace = CURRENT.get();
+    if (trace == null) {
+      return;
+    }
+    CURRENT.remove();
+    trace.root.close();
+    if (trace.root.end - trace.root.start >= THRESHOLD_NANOS) {
+      SLOW_LOG.write(trace.toString());
+    }
+  }
+
+  /**
+   * Opens a span under the innermost open span of this thread's request
+   */
+  public static Span span(String name) {
+    Trace trace = CURRENT.get();
+    if (trace == null) {
+      return DETACHED;
+    }
+    Span span = new Span(trace, trace.current, name);
+    trace.current.children.add(span);
+    trace.current = span;
+    return span;
+  }
+
+  // a leaf span for one round trip; left open until its results are read
+  private static Span roundTrip(String name) {
+    Trace trace = CURRENT.get();
+    if (trace == null) {
+      return DETACHED;
+    }
+    Span span = new Span(null, trace.current, name);
+    trace.current.children.add(span);
+    if (name.equals("commit")) {
+      trace.commits++;
+    } else if (name.equals("rollback")) {
+      trace.rollbacks++;
+    } else {
+      trace.statements++;
+    }
+    return span;
+  }
+
+  /**
+   * Wraps an interface so that every call through it is a span named after the method
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> T wrap(Class<T> type, T target) {
+    if (!ENABLED) {
+      return target;
+    }
+    return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+        (proxy, method, args) -> {
+          try (Span span = span(method.getName())) {
+            return invoke(span, target, method, args);
+          }
+        });
+  }
+
+  /**
+   * Wraps a connection so that its prepared statements, commits and rollbacks are recorded as
+   * round trips of the current request
+   */
+  public static Connection wrapConnection(Connection conn) {
+    if (!ENABLED) {
+      return conn;
+    }
+    return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+        new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "prepareStatement":
+              return tracedStatement((PreparedStatement) invoke(null, conn, method, args),
+                  (String) args[0]);
+            case "commit":
+            case "rollback":
+              if (args == null) {
+                try (Span span = roundTrip(method.getName())) {
+                  return invoke(span, conn, method, args);
+                }
+              }
+              return invoke(null, conn, method, args);
+            default:
+              return invoke(null, conn, method, args);
+          }
+        });
+  }
+
+  private static PreparedStatement tracedStatement(PreparedStatement statement, String sql) {
+    String name = "sql " + (sql.length() > MAX_SQL_LENGTH
+        ? sql.substring(0, MAX_SQL_LENGTH) + "..." : sql);
+    return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+        new Class<?>[] {PreparedStatement.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "executeQuery": {
+              Span span = roundTrip(name);
+              ResultSet results;
+              try {
+                results = (ResultSet) invoke(span, statement, method, args);
+              } catch (Throwable e) {
+                span.close();
+                throw e;
+              }
+              return tracedResults(results, span);
+            }
+            case "executeUpdate":
+            case "execute": {
+              try (Span span = roundTrip(name)) {
+                Object result = invoke(span, statement, method, args);
+                if (result instanceof Integer) {
+                  span.rows((Integer) result);
+                }
+                return result;
+              }
+            }
+            default:
+              return invoke(null, statement, method, args);
+          }
+        });
+  }
+
+  // counts the rows read and ends the statement's span when the results are closed
+  private static ResultSet tracedResults(ResultSet results, Span span) {
+    long[] rows = {0};
+    return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+        new Class<?>[] {ResultSet.class}, (proxy, method, args) -> {
+          Object result = invoke(null, results, method, args);
+          if (method.getName().equals("next") && (Boolean) result) {
+            rows[0]++;
+          } else if (method.getName().equals("close")) {
+            span.rows(rows[0]);
+            span.close();
+          }
+          return result;
+        });
+  }
+
+  // calls through a proxy, recording a failure on the span and rethrowing it unwrapped
+  private static Object invoke(Span span, Object target, Method method, Object[] args)
+      throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      if (span != null) {
+        span.fail(e.getCause());
+      }
+      throw e.getCause();
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(Instant.now()).append(' ').append(root.name).append(String.format(
+        ": %.3f ms, %d round trips (%d statements, %d commits, %d rollbacks)%n",
+        (root.end - root.start) / 1e6, statements + commits + rollbacks, statements, commits,
+        rollbacks));
+    for (Span child : root.children) {
+      child.render(sb, 0, root.end);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,236 @@
+package flightapp;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Opt-in waitlist for full flights. Instead of retrying a failed booking, a session queues the
+ * request here; each flight keeps a FIFO of the requests that need a seat on it. When
+ * cancellations release seats, a background allocator walks the FIFOs of the released flights and
+ * books queued requests in order until a flight is full again. A request that does not fit, say
+ * because another of its flights is still full, stays queued without holding up the ones behind it.
+ * A finished request is listed by {@link #getRequests} once, then forgotten.
+ *
+ * Only releases reported through {@link #seatsReleased} are seen, so every session that can cancel
+ * must share the same waitlist.
+ */
+public class Waitlist implements AutoCloseable {
+
+  /**
+   * Status of a queued booking request
+   */
+  public enum Status {
+    WAITING, BOOKED, FAILED
+  }
+
+  /**
+   * A queued booking request. {@link #outcome} completes with the reservation ID once the request
+   * is booked, or with -1 if it can no longer be booked.
+   */
+  public static class Request {
+    public final int id;
+    public final String username;
+    public final Itinerary itinerary;
+    public final CompletableFuture<Integer> outcome = new CompletableFuture<>();
+
+    Request(int id, String username, Itinerary itinerary) {
+      this.id = id;
+      this.username = username;
+      this.itinerary = itinerary;
+    }
+
+    public Status status() {
+      if (!outcome.isDone()) {
+        return Status.WAITING;
+      }
+      return outcome.join() == -1 ? Status.FAILED : Status.BOOKED;
+    }
+  }
+
+  // consecutive requests that may not fit before a drain takes the flight itself to be full
+  private static final int MAX_BLOCKED = 8;
+  // finished requests kept per user until they are listed
+  private static final int KEPT_FINISHED = 8;
+
+  // storage the allocator books on, used only from the allocator thread
+  private final FlightStorage storage;
+  private final Thread allocator;
+
+  // guarded by this
+  private final Map<Integer, ArrayDeque<Request>> queues = new HashMap<>();
+  private final Map<String, List<Request>> requestsByUser = new HashMap<>();
+  private final Set<Integer> released = new LinkedHashSet<>();
+  private int nextRequestId = 1;
+  private boolean closed = false;
+
+  /**
+   * @param storage a backend owned by the waitlist, e.g. its own JDBC connection
+   */
+  public Waitlist(FlightStorage storage) {
+    this.storage = storage;
+    this.allocator = new Thread(this::allocate, "waitlist-allocator");
+    this.allocator.setDaemon(true);
+    this.allocator.start();
+  }
+
+  /**
+   * Queues a booking request on every flight of the itinerary
+   */
+  public synchronized Request enqueue(String username, Itinerary itinerary) {
+    Request request = new Request(nextRequestId++, username, itinerary);
+    for (Flight leg : itinerary.legs) {
+      queues.computeIfAbsent(leg.fid, f -> new ArrayDeque<>()).add(request);
+    }
+    requestsByUser.computeIfAbsent(key(username), u -> new ArrayList<>()).add(request);
+    return request;
+  }
+
+  /**
+   * @return the user's requests in the order they were queued; finished ones are returned only
+   *         this once
+   */
+  public synchronized List<Request> getRequests(String username) {
+    List<Request> requests = requestsByUser.get(key(username));
+    if (requests == null) {
+      return Collections.emptyList();
+    }
+    List<Request> listed = new ArrayList<>(requests);
+    requests.removeIf(request -> request.outcome.isDone());
+    if (requests.isEmpty()) {
+      requestsByUser.remove(key(username));
+    }
+    return listed;
+  }
+
+  /**
+   * Tells the allocator that seats on the itinerary's flights were released
+   */
+  public synchronized void seatsReleased(Itinerary itinerary) {
+    for (Flight leg : itinerary.legs) {
+      released.add(leg.fid);
+    }
+    notifyAll();
+  }
+
+  private static String key(String username) {
+    return username.toLowerCase(Locale.ROOT);
+  }
+
+  private void allocate() {
+    while (true) {
+      List<Integer> batch;
+      synchronized (this) {
+        while (released.isEmpty() && !closed) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (closed) {
+          return;
+        }
+        batch = new ArrayList<>(released);
+        released.clear();
+      }
+      for (int fid : batch) {
+        drain(fid);
+      }
+    }
+  }
+
+  /**
+   * Books a flight's queued requests in FIFO order. One that does not fit stays queued and is
+   * skipped, since another of its flights may be the full one; the drain stops once a request for
+   * this flight alone does not fit, or {@link #MAX_BLOCKED} in a row do not.
+   */
+  private void drain(int fid) {
+    List<Request> queued;
+    synchronized (this) {
+      ArrayDeque<Request> queue = queues.get(fid);
+      if (queue == null) {
+        return;
+      }
+      queued = new ArrayList<>(queue);
+    }
+    int blocked = 0;
+    for (Request request : queued) {
+      if (request.outcome.isDone()) {
+        continue; // finished by an earlier drain of another of its flights
+      }
+      int reservationId;
+      try {
+        if (storage.hasReservationOnDay(request.username, request.itinerary.f1.dayOfMonth)) {
+          finish(request, -1);
+          continue;
+        }
+        reservationId = storage.bookItinerary(request.username, request.itinerary);
+      } catch (SQLException e) {
+        e.printStackTrace();
+        return;
+      }
+      if (reservationId == -1) {
+        if (request.itinerary.legs.length == 1 || ++blocked == MAX_BLOCKED) {
+          return; // the flight is full again
+        }
+        continue;
+      }
+      blocked = 0;
+      finish(request, reservationId);
+    }
+  }
+
+  private synchronized void finish(Request request, int reservationId) {
+    for (Flight leg : request.itinerary.legs) {
+      removeFromQueue(leg.fid, request);
+    }
+    request.outcome.complete(reservationId);
+    // forget the user's oldest finished requests beyond the ones kept for listing
+    List<Request> requests = requestsByUser.get(key(request.username));
+    if (requests == null) {
+      return;
+    }
+    int finished = 0;
+    for (ListIterator<Request> it = requests.listIterator(requests.size()); it.hasPrevious(); ) {
+      if (it.previous().outcome.isDone() && ++finished > KEPT_FINISHED) {
+        it.remove();
+      }
+    }
+  }
+
+  private void removeFromQueue(int fid, Request request) {
+    ArrayDeque<Request> queue = queues.get(fid);
+    if (queue != null) {
+      queue.remove(request);
+      if (queue.isEmpty()) {
+        queues.remove(fid);
+      }
+    }
+  }
+
+  /**
+   * Stops the allocator and fails every request still waiting
+   */
+  @Override
+  public void close() throws SQLException {
+    List<Request> waiting = new ArrayList<>();
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+      for (ArrayDeque<Request> queue : queues.values()) {
+        waiting.addAll(queue);
+      }
+      queues.clear();
+    }
+    for (Request request : waiting) {
+      request.outcome.complete(-1);
+    }
+    try {
+      allocator.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    storage.close();
+  }
+}
@@ -0,0 +1,99 @@
+package flightapp;
+
+import org.junit.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Admission control rejects right away with a retry hint, and limits changed at runtime apply to
+ * the next command.
+ */
+public class AdmissionControlTest {
+
+  @After
+  public void resetServiceLimits() {
+    FlightService.admission.setUserRate(0, 0);
+  }
+
+  @Test
+  public void emptyUserBucketFailsFastWithRetryHint() {
+    AdmissionControl admission = new AdmissionControl(1, 2, 0, 0, 0);
+    for (int i = 0; i < 2; i++) {
+      assertEquals(0, admission.tryAdmit("user1", "search"));
+      admission.done("search");
+    }
+    long retryAfter = admission.tryAdmit("user1", "search");
+    assertTrue(retryAfter > 0 && retryAfter <= 1000);
+    assertEquals(0, admission.getInFlight("search"));
+    // other users have buckets of their own
+    assertEquals(0, admission.tryAdmit("user2", "search"));
+  }
+
+  @Test
+  public void fullCommandTypeFailsFastWithRetryHint() {
+    AdmissionControl admission = new AdmissionControl(0, 0, 0, 0, 0);
+    admission.setMaxInFlight("search", 1);
+    assertEquals(0, admission.tryAdmit("user1", "search"));
+    assertTrue(admission.tryAdmit("user2", "search") > 0);
+    assertEquals(0, admission.tryAdmit("user2", "book"));
+    admission.done("search");
+    assertEquals(0, admission.tryAdmit("user2", "search"));
+  }
+
+  @Test
+  public void limitsChangeAtRuntime() {
+    AdmissionControl admission = new AdmissionControl(0, 0, 0, 0, 0);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(0, admission.tryAdmit("user1", "search"));
+      admission.done("search");
+    }
+
+    admission.setUserRate(1, 1);
+    assertEquals(0, admission.tryAdmit("user1", "search"));
+    admission.done("search");
+    assertTrue(admission.tryAdmit("user1", "search") > 0);
+    admission.setUserRate(0, 0);
+    assertEquals(0, admission.tryAdmit("user1", "search"));
+    admission.done("search");
+
+    admission.setGlobalRate(1, 1);
+    assertEquals(0, admission.tryAdmit("user1", "search"));
+    admission.done("search");
+    assertTrue(admission.tryAdmit("user2", "search") > 0);
+    admission.setGlobalRate(0, 0);
+
+    admission.setDefaultMaxInFlight(1);
+    assertEquals(0, admission.tryAdmit("user1", "book"));
+    assertTrue(admission.tryAdmit("user2", "book") > 0);
+    admission.setMaxInFlight("book", 2);
+    assertEquals(0, admission.tryAdmit("user2", "book"));
+    assertTrue(admission.tryAdmit("user3", "book") > 0);
+  }
+
+  @Test
+  public void serviceAnswersOverloadedWithRetryHint() {
+    FlightService.admission.setUserRate(1, 1);
+    Query session = new Query(new InMemoryFlightStorage(Collections.emptyList()));
+    assertFalse(FlightService.execute(session, "reservations").startsWith("Overloaded"));
+    assertTrue(FlightService.execute(session, "reservations")
+        .matches("Overloaded, retry after [0-9]+ ms\n"));
+  }
+
+  @Test
+  public void reconnectingAnonymousSessionsShareABucket() {
+    FlightService.admission.setUserRate(1, 1);
+    FlightStorage storage = new InMemoryFlightStorage(Collections.emptyList());
+    Query first = new Query(storage);
+    first.setClient("192.0.2.1");
+    assertFalse(FlightService.execute(first, "reservations").startsWith("Overloaded"));
+
+    Query reconnected = new Query(storage);
+    reconnected.setClient("192.0.2.1");
+    assertTrue(FlightService.execute(reconnected, "reservations").startsWith("Overloaded"));
+
+    Query otherClient = new Query(storage);
+    otherClient.setClient("192.0.2.2");
+    assertFalse(FlightService.execute(otherClient, "reservations").startsWith("Overloaded"));
+  }
+}
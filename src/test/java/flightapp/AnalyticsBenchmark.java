@@ -0,0 +1,64 @@
+package flightapp;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Aggregation throughput of {@link Analytics} on a synthetic month: 31 days of the flights of
+ * {@link MultiLegSearchBenchmark}'s day and tens of millions of reservations, a tenth of them
+ * one-hop and a few multi-leg, fed as fast as one reader can produce them, as from a snapshot.
+ * Compares one worker with all cores and checks that both reports are identical.
+ *
+ * Run with: java flightapp.AnalyticsBenchmark [reservations] [flights per day]
+ */
+public class AnalyticsBenchmark {
+  public static void main(String[] args) throws Exception {
+    int reservations = args.length > 0 ? Integer.parseInt(args[0]) : 20_000_000;
+    int flightsPerDay = args.length > 1 ? Integer.parseInt(args[1]) : 37_000;
+    Random random = new Random(42);
+    List<Flight> flights = new ArrayList<>();
+    for (int fid = 0; fid < 31 * flightsPerDay; fid++) {
+      int origin = random.nextInt(300);
+      int dest = (origin + 1 + random.nextInt(299)) % 300;
+      flights.add(new Flight(fid, 1 + fid / flightsPerDay, "AS", Integer.toString(fid),
+          "City " + origin, "City " + dest, 40 + random.nextInt(300), 100 + random.nextInt(200),
+          100 + random.nextInt(900)));
+    }
+    String expected = null;
+    int cores = Runtime.getRuntime().availableProcessors();
+    for (int parallelism : new int[] {1, cores, 1, cores}) { // the first two warm up the JIT
+      ForkJoinPool pool = new ForkJoinPool(parallelism);
+      Analytics analytics = new Analytics(flights, pool);
+      Random reservationRandom = new Random(7);
+      long begin = System.nanoTime();
+      for (int i = 0; i < reservations; i++) {
+        boolean paid = reservationRandom.nextInt(3) != 0;
+        int first = reservationRandom.nextInt(flights.size());
+        int kind = reservationRandom.nextInt(100);
+        if (kind < 90) {
+          analytics.addReservation(paid, flights.get(first).price, first, -1);
+        } else if (kind < 99) {
+          int second = reservationRandom.nextInt(flights.size());
+          analytics.addReservation(paid, 500, first, second);
+        } else {
+          analytics.addReservation(paid, 700, new int[] {first,
+              reservationRandom.nextInt(flights.size()), reservationRandom.nextInt(flights.size())});
+        }
+      }
+      Analytics.Report report = analytics.finish();
+      long elapsed = System.nanoTime() - begin;
+      pool.shutdown();
+      StringWriter out = new StringWriter();
+      report.writeRevenue(out);
+      report.writeOccupancy(out);
+      if (expected == null) {
+        expected = out.toString();
+      } else if (!expected.equals(out.toString())) {
+        throw new IllegalStateException("reports differ with " + parallelism + " workers");
+      }
+      System.out.println(String.format("%2d workers: %,d reservations in %.2fs (%,.0f/s)",
+          parallelism, report.reservations, elapsed / 1e9, reservations / (elapsed / 1e9)));
+    }
+  }
+}
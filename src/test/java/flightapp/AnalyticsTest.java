@@ -0,0 +1,106 @@
+package flightapp;
+
+import org.junit.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Aggregates of a snapshot spread over several chunks and workers match totals computed one
+ * reservation at a time.
+ */
+public class AnalyticsTest {
+  private final List<Flight> flights = Arrays.asList(
+      new Flight(1, 1, "AS", "1", "Seattle WA", "Chicago IL", 200, 500_000, 100),
+      new Flight(2, 1, "AS", "2", "Chicago IL", "Boston MA", 150, 500_000, 80),
+      new Flight(3, 1, "AS", "3", "Seattle WA", "Boston MA", 300, 500_000, 150),
+      new Flight(5, 2, "UA", "5", "Boston MA", "New York, NY", 60, 0, 50));
+
+  @Test
+  public void reportMatchesPerReservationTotals() throws Exception {
+    ForkJoinPool pool = new ForkJoinPool(3);
+    try {
+      Analytics analytics = new Analytics(flights, pool);
+      Random random = new Random(3);
+      Map<Integer, Integer> seats = new HashMap<>();
+      Map<String, long[]> routes = new TreeMap<>(); // reservations, paid, unpaid
+      long paid = 0;
+      long unpaid = 0;
+      int count = 2 * Analytics.CHUNK + 1000;
+      for (int i = 0; i < count; i++) {
+        boolean isPaid = random.nextBoolean();
+        int price = 50 + random.nextInt(200);
+        String route;
+        switch (random.nextInt(3)) {
+          case 0:
+            analytics.addReservation(isPaid, price, 1, 2);
+            seats.merge(1, 1, Integer::sum);
+            seats.merge(2, 1, Integer::sum);
+            route = "Seattle WA,Boston MA";
+            break;
+          case 1:
+            analytics.addReservation(isPaid, price, 3, -1);
+            seats.merge(3, 1, Integer::sum);
+            route = "Seattle WA,Boston MA";
+            break;
+          default:
+            analytics.addReservation(isPaid, price, new int[] {3, 5});
+            seats.merge(3, 1, Integer::sum);
+            seats.merge(5, 1, Integer::sum);
+            route = "Seattle WA,\"New York, NY\"";
+        }
+        long[] totals = routes.computeIfAbsent(route, r -> new long[3]);
+        totals[0]++;
+        totals[isPaid ? 1 : 2] += price;
+        paid += isPaid ? price : 0;
+        unpaid += isPaid ? 0 : price;
+      }
+      analytics.addReservation(true, 100, 1, 4); // no flight 4 in the snapshot
+      Analytics.Report report = analytics.finish();
+
+      assertEquals(count, report.reservations);
+      assertEquals(paid, report.paidRevenue);
+      assertEquals(unpaid, report.unpaidValue);
+      assertEquals(1, report.skipped);
+      for (int fid : new int[] {1, 2, 3}) {
+        assertEquals(seats.get(fid) / 500_000.0, report.loadFactor(fid), 1e-9);
+      }
+      assertEquals(0, report.loadFactor(5), 0); // no capacity
+
+      StringWriter revenue = new StringWriter();
+      report.writeRevenue(revenue);
+      List<String> expected = new ArrayList<>();
+      for (Map.Entry<String, long[]> route : routes.entrySet()) {
+        long[] totals = route.getValue();
+        expected.add(route.getKey() + "," + totals[0] + "," + totals[1] + "," + totals[2]);
+      }
+      expected.sort(Comparator.comparingLong((String line) -> -paidRevenue(line)));
+      expected.add(0, "origin,dest,reservations,paid_revenue,unpaid_value");
+      assertEquals(expected, Arrays.asList(revenue.toString().split("\n")));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void occupancyListsBookedFlightsByDay() throws Exception {
+    Analytics analytics = new Analytics(flights);
+    analytics.addReservation(true, 100, 3, -1);
+    analytics.addReservation(false, 100, 3, -1);
+    analytics.setRemainingSeats(3, 499_997); // one more seat held but not reserved
+    analytics.setRemainingSeats(5, 0);
+    StringWriter occupancy = new StringWriter();
+    analytics.finish().writeOccupancy(occupancy);
+    assertEquals("day,fid,carrier,flight_num,origin,dest,capacity,seats_reserved,seats_taken,"
+        + "load_factor\n"
+        + "1,3,AS,3,Seattle WA,Boston MA,500000,2,3,0.000\n"
+        + "2,5,UA,5,Boston MA,\"New York, NY\",0,0,0,0.000\n", occupancy.toString());
+  }
+
+  private static long paidRevenue(String line) {
+    String[] cols = line.split(",");
+    return Long.parseLong(cols[cols.length - 2]);
+  }
+}
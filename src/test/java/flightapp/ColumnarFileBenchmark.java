@@ -0,0 +1,102 @@
+package flightapp;
+
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+import flightapp.ColumnarFile.Column;
+import flightapp.ColumnarFile.Type;
+
+/**
+ * Write and read throughput of {@link ColumnarFile} on synthetic Reservations rows, in chunks of
+ * {@link BackupJob#CHUNK} as the backup job uses it. Then cuts the file in the middle of a chunk,
+ * as a crash would, and checks that appending keeps the complete chunks and resumes after the
+ * last one, as an interrupted export does.
+ *
+ * Run with: java flightapp.ColumnarFileBenchmark [rows] [file]
+ */
+public class ColumnarFileBenchmark {
+  private static final List<Column> COLUMNS = Arrays.asList(new Column("ID", Type.INT),
+      new Column("itinerary", Type.LONG), new Column("date", Type.INT),
+      new Column("username", Type.STRING), new Column("paid", Type.INT),
+      new Column("cancelled", Type.INT));
+
+  public static void main(String[] args) throws Exception {
+    int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20_000_000;
+    Path file = args.length > 1 ? Paths.get(args[1])
+        : Files.createTempFile("reservations", ".col");
+    try {
+      ColumnarFile.Chunk chunk = new ColumnarFile.Chunk(COLUMNS, BackupJob.CHUNK);
+      long begin = System.nanoTime();
+      try (ColumnarFile.Writer writer = ColumnarFile.create(file, COLUMNS)) {
+        write(writer, chunk, 0, rows);
+      }
+      long written = System.nanoTime() - begin;
+      long bytes = Files.size(file);
+      begin = System.nanoTime();
+      long checksum = read(file, chunk, rows);
+      long read = System.nanoTime() - begin;
+      System.out.println(String.format("%,d rows, %,d bytes (%.1f bytes/row)", rows, bytes,
+          bytes / (double) rows));
+      System.out.println(String.format("write: %.2fs (%,.0f rows/s)", written / 1e9,
+          rows / (written / 1e9)));
+      System.out.println(String.format("read: %.2fs (%,.0f rows/s), checksum %d", read / 1e9,
+          rows / (read / 1e9), checksum));
+
+      // a crash halfway through writing the last chunk
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+        channel.truncate(bytes - 1000);
+      }
+      try (ColumnarFile.Writer writer = ColumnarFile.append(file, COLUMNS, chunk)) {
+        int resume = chunk.rows() == 0 ? 0 : (Integer) chunk.get(0, chunk.rows() - 1) + 1;
+        System.out.println(String.format("restart after the crash resumes at row %,d", resume));
+        write(writer, chunk, resume, rows);
+      }
+      if (Files.size(file) != bytes || read(file, chunk, rows) != checksum) {
+        throw new IllegalStateException("restarted file differs");
+      }
+      System.out.println("restarted file is identical");
+    } finally {
+      if (args.length <= 1) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  private static void write(ColumnarFile.Writer writer, ColumnarFile.Chunk chunk, int from,
+      int to) throws Exception {
+    chunk.clear();
+    for (int id = from; id < to; id++) {
+      Random random = new Random(id);
+      chunk.add(id, 1_000_000L * random.nextInt(1000) + random.nextInt(1000),
+          1 + random.nextInt(31), "user" + random.nextInt(100_000), random.nextInt(2),
+          random.nextInt(10) == 0 ? 0 : 1);
+      if (chunk.rows() == chunk.capacity()) {
+        writer.write(chunk);
+        chunk.clear();
+      }
+    }
+    if (chunk.rows() > 0) {
+      writer.write(chunk);
+    }
+  }
+
+  private static long read(Path file, ColumnarFile.Chunk chunk, int rows) throws Exception {
+    long checksum = 0;
+    int expected = 0;
+    try (ColumnarFile.Reader reader = ColumnarFile.open(file)) {
+      while (reader.next(chunk)) {
+        for (int r = 0; r < chunk.rows(); r++) {
+          if ((Integer) chunk.get(0, r) != expected++) {
+            throw new IllegalStateException("row " + (expected - 1) + " out of order");
+          }
+          checksum = checksum * 31 + (Long) chunk.get(1, r) + chunk.get(3, r).hashCode();
+        }
+      }
+    }
+    if (expected != rows) {
+      throw new IllegalStateException(expected + " rows read, expected " + rows);
+    }
+    return checksum;
+  }
+}
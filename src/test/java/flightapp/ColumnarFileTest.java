@@ -0,0 +1,134 @@
+package flightapp;
+
+import org.junit.*;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+import flightapp.ColumnarFile.Chunk;
+import flightapp.ColumnarFile.Column;
+import flightapp.ColumnarFile.Type;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rows written to a columnar file read back unchanged, and a file cut off mid-chunk resumes after
+ * its last complete chunk.
+ */
+public class ColumnarFileTest {
+  private static final List<Column> COLUMNS = Arrays.asList(new Column("id", Type.INT),
+      new Column("itinerary", Type.LONG), new Column("username", Type.STRING),
+      new Column("password", Type.BYTES));
+  private static final int CAPACITY = 100;
+
+  private Path file;
+
+  @Before
+  public void createFile() throws IOException {
+    file = Files.createTempFile("columnar", ".col");
+  }
+
+  @After
+  public void deleteFile() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  @Test
+  public void rowsRoundTrip() throws IOException {
+    List<Object[]> rows = rows(250);
+    write(rows);
+    assertRows(rows, readAll());
+  }
+
+  @Test
+  public void appendResumesAfterLastCompleteChunk() throws IOException {
+    List<Object[]> rows = rows(300);
+    write(rows.subList(0, 200));
+    long complete = Files.size(file);
+    write(rows.subList(0, 250));
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.truncate(complete + 40); // the third chunk was cut off
+    }
+
+    Chunk last = new Chunk(COLUMNS, CAPACITY);
+    try (ColumnarFile.Writer writer = ColumnarFile.append(file, COLUMNS, last)) {
+      assertEquals(CAPACITY, last.rows());
+      assertEquals(199, last.get(0, CAPACITY - 1));
+      Chunk chunk = new Chunk(COLUMNS, CAPACITY);
+      for (Object[] row : rows.subList(200, 300)) {
+        chunk.add(row);
+      }
+      writer.write(chunk);
+    }
+    assertRows(rows, readAll());
+  }
+
+  @Test
+  public void appendRejectsOtherColumns() throws IOException {
+    write(rows(10));
+    List<Column> other = Arrays.asList(new Column("id", Type.LONG));
+    try {
+      ColumnarFile.append(file, other, new Chunk(other, CAPACITY)).close();
+      fail("appended with other columns");
+    } catch (IOException e) {
+      assertEquals(10, readAll().size());
+    }
+  }
+
+  // ascending and scattered values, nulls in every column but the key, non-ASCII text
+  private static List<Object[]> rows(int count) {
+    Random random = new Random(11);
+    List<Object[]> rows = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      byte[] password = new byte[random.nextInt(20)];
+      random.nextBytes(password);
+      rows.add(new Object[] {i, i % 7 == 0 ? null : random.nextLong(),
+          i % 5 == 0 ? null : "user" + i + (i % 3 == 0 ? " Z\u00fcrich" : ""),
+          i % 11 == 0 ? null : password});
+    }
+    return rows;
+  }
+
+  private void write(List<Object[]> rows) throws IOException {
+    try (ColumnarFile.Writer writer = ColumnarFile.create(file, COLUMNS)) {
+      Chunk chunk = new Chunk(COLUMNS, CAPACITY);
+      for (Object[] row : rows) {
+        chunk.add(row);
+        if (chunk.rows() == CAPACITY) {
+          writer.write(chunk);
+          chunk.clear();
+        }
+      }
+      if (chunk.rows() > 0) {
+        writer.write(chunk);
+      }
+    }
+  }
+
+  private List<Object[]> readAll() throws IOException {
+    List<Object[]> rows = new ArrayList<>();
+    try (ColumnarFile.Reader reader = ColumnarFile.open(file)) {
+      assertEquals(Arrays.asList("id:INT", "itinerary:LONG", "username:STRING", "password:BYTES"),
+          reader.columns());
+      Chunk chunk = new Chunk(COLUMNS, CAPACITY);
+      while (reader.next(chunk)) {
+        for (int r = 0; r < chunk.rows(); r++) {
+          Object[] row = new Object[COLUMNS.size()];
+          for (int c = 0; c < row.length; c++) {
+            row[c] = chunk.get(c, r);
+          }
+          rows.add(row);
+        }
+      }
+    }
+    return rows;
+  }
+
+  private static void assertRows(List<Object[]> expected, List<Object[]> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertTrue("row " + i, Arrays.deepEquals(expected.get(i), actual.get(i)));
+    }
+  }
+}
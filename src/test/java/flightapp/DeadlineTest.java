@@ -0,0 +1,194 @@
+package flightapp;
+
+import org.junit.*;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * A command past its deadline is stopped and its transaction rolled back, leaving none open. The
+ * storage runs on a scripted connection whose flight update takes longer than the deadline.
+ */
+public class DeadlineTest {
+  private static final String COMMAND = "deadlinetest";
+  private static final long TIMEOUT_MS = 100;
+
+  private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+  private boolean inTransaction;
+  // how the flight update behaves: how long it takes, and whether cancel() stops it early
+  private long updateMillis;
+  private boolean cancelable;
+  private volatile boolean canceled;
+
+  @Before
+  public void setTimeout() {
+    System.setProperty("flightapp.commandTimeoutMillis." + COMMAND, Long.toString(TIMEOUT_MS));
+  }
+
+  @After
+  public void clearTimeout() {
+    Deadline.end();
+    System.clearProperty("flightapp.commandTimeoutMillis." + COMMAND);
+  }
+
+  @Test
+  public void blockedStatementIsCanceledAtDeadline() throws Exception {
+    updateMillis = 10_000;
+    cancelable = true;
+    JdbcFlightStorage storage = new JdbcFlightStorage(connection());
+    long timeouts = Deadline.timeouts(COMMAND);
+    Deadline.begin(COMMAND);
+    long begin = System.nanoTime();
+    try {
+      storage.cancelFlight(1);
+      fail("canceled the flight past the deadline");
+    } catch (SQLException e) {
+      assertTrue((System.nanoTime() - begin) / 1_000_000 < 5_000);
+    }
+    assertTrue(Deadline.end());
+    assertEquals(timeouts + 1, Deadline.timeouts(COMMAND));
+    assertTrue(canceled);
+    assertRolledBack();
+    storage.close();
+  }
+
+  @Test
+  public void commitPastDeadlineRollsBack() throws Exception {
+    updateMillis = 2 * TIMEOUT_MS;
+    JdbcFlightStorage storage = new JdbcFlightStorage(connection());
+    Deadline.begin(COMMAND);
+    try {
+      storage.cancelFlight(1);
+      fail("committed past the deadline");
+    } catch (SQLTimeoutException e) {
+      // the update finished, but the commit was refused
+    }
+    assertTrue(Deadline.end());
+    assertRolledBack();
+    storage.close();
+  }
+
+  @Test
+  public void commandWithinDeadlineCommits() throws Exception {
+    JdbcFlightStorage storage = new JdbcFlightStorage(connection());
+    Deadline.begin(COMMAND);
+    storage.cancelFlight(1);
+    assertFalse(Deadline.end());
+    assertTrue(calls.contains("commit"));
+    assertFalse(calls.contains("rollback"));
+    assertTrue(calls.contains("setQueryTimeout 1"));
+    assertFalse(inTransaction);
+    storage.close();
+  }
+
+  private void assertRolledBack() {
+    assertFalse(calls.contains("commit"));
+    assertTrue(calls.contains("rollback"));
+    assertFalse(inTransaction);
+    assertEquals("setAutoCommit true", lastAutoCommit());
+  }
+
+  private String lastAutoCommit() {
+    synchronized (calls) {
+      for (int i = calls.size() - 1; i >= 0; i--) {
+        if (calls.get(i).startsWith("setAutoCommit")) {
+          return calls.get(i);
+        }
+      }
+    }
+    return null;
+  }
+
+  // a connection that records transaction control and runs every statement through statement()
+  private Connection connection() {
+    return proxy(Connection.class, (method, args) -> {
+      switch (method.getName()) {
+        case "getCatalog":
+          return "deadline_test";
+        case "prepareStatement":
+          return statement((String) args[0]);
+        case "setAutoCommit":
+          calls.add("setAutoCommit " + args[0]);
+          if (!(Boolean) args[0]) {
+            inTransaction = true;
+          }
+          return null;
+        case "commit":
+        case "rollback":
+          calls.add(method.getName());
+          inTransaction = false;
+          return null;
+        default:
+          return null;
+      }
+    });
+  }
+
+  private PreparedStatement statement(String sql) {
+    return proxy(PreparedStatement.class, (method, args) -> {
+      switch (method.getName()) {
+        case "setQueryTimeout":
+          calls.add("setQueryTimeout " + args[0]);
+          return null;
+        case "cancel":
+          canceled = true;
+          return null;
+        case "executeUpdate":
+          long end = System.currentTimeMillis() + updateMillis;
+          while (System.currentTimeMillis() < end) {
+            if (canceled && cancelable) {
+              throw new SQLException("The query was canceled");
+            }
+            Thread.sleep(5);
+          }
+          return 0;
+        case "executeQuery":
+          return tranCount(sql);
+        default:
+          return null;
+      }
+    });
+  }
+
+  private ResultSet tranCount(String sql) {
+    assertEquals(QueryStorage.TRANCOUNT_SQL, sql);
+    return proxy(ResultSet.class, (method, args) -> {
+      switch (method.getName()) {
+        case "next":
+          return true;
+        case "getInt":
+          return inTransaction ? 1 : 0;
+        default:
+          return null;
+      }
+    });
+  }
+
+  private interface Handler {
+    Object call(Method method, Object[] args) throws Exception;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, Handler handler) {
+    return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+        (proxy, method, args) -> {
+          if (method.getName().equals("hashCode")) {
+            return System.identityHashCode(proxy);
+          }
+          if (method.getName().equals("equals")) {
+            return proxy == args[0];
+          }
+          Object result = handler.call(method, args);
+          Class<?> returns = method.getReturnType();
+          if (result != null || !returns.isPrimitive() || returns == void.class) {
+            return result;
+          }
+          if (returns == boolean.class) {
+            return false;
+          }
+          return returns == long.class ? (Object) 0L : (Object) 0;
+        });
+  }
+}
@@ -0,0 +1,113 @@
+package flightapp;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Loopback load test for {@link FlightServer} on the in-memory backend: opens many idle
+ * connections, then has a few active clients run searches back to back while they stay open, and
+ * reports throughput, latency and the JVM's thread count. Finally shuts the server down with the
+ * idle connections still open. Searches need no login, so password hashing stays out of the
+ * numbers.
+ *
+ * Every connection takes two file descriptors here, one per end, so the idle count is bounded by
+ * half of ulimit -n.
+ *
+ * Run with: java flightapp.FlightServerBenchmark [idle clients] [active clients] [seconds]
+ */
+public class FlightServerBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int idle = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+    int active = args.length > 1 ? Integer.parseInt(args[1])
+        : 2 * Runtime.getRuntime().availableProcessors();
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+    List<Flight> flights = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      flights.add(new Flight(i + 1, 1, "AS", String.valueOf(i), "Seattle WA", "Boston MA",
+          300 + i, 1000, 100 + i));
+    }
+    InMemoryFlightStorage storage = new InMemoryFlightStorage(flights);
+    FlightServer server = new FlightServer(0, () -> new Query(storage), idle + active, 0);
+    System.out.println("virtual threads: " + FlightServer.virtualThreads());
+
+    long begin = System.nanoTime();
+    List<Socket> idlers = new ArrayList<>();
+    for (int i = 0; i < idle; i++) {
+      idlers.add(new Socket(InetAddress.getLoopbackAddress(), server.port()));
+    }
+    while (server.connections() < idle) {
+      Thread.sleep(10);
+    }
+    System.out.println(String.format("%,d idle connections open in %d ms, %d JVM threads", idle,
+        (System.nanoTime() - begin) / 1_000_000,
+        ManagementFactory.getThreadMXBean().getThreadCount()));
+
+    ExecutorService pool = Executors.newFixedThreadPool(active);
+    long until = System.nanoTime() + seconds * 1_000_000_000L;
+    List<Future<long[]>> results = new ArrayList<>();
+    for (int c = 0; c < active; c++) {
+      results.add(pool.submit(() -> client(server.port(), until)));
+    }
+    List<Long> latencies = new ArrayList<>();
+    for (Future<long[]> result : results) {
+      for (long latency : result.get()) {
+        latencies.add(latency);
+      }
+    }
+    pool.shutdown();
+    Collections.sort(latencies);
+    System.out.println(String.format("%d active clients: %,.0f searches/s, p50 %d us, p99 %d us",
+        active, latencies.size() / (double) seconds,
+        latencies.get(latencies.size() / 2) / 1000,
+        latencies.get(latencies.size() * 99 / 100) / 1000));
+
+    begin = System.nanoTime();
+    server.shutdown(10_000);
+    System.out.println(String.format("shut down with %,d connections open in %d ms", idle,
+        (System.nanoTime() - begin) / 1_000_000));
+    for (Socket socket : idlers) {
+      socket.close();
+    }
+  }
+
+  // runs searches until the deadline and returns their round-trip times in nanoseconds
+  private static long[] client(int port, long until) throws IOException {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        BufferedReader in = new BufferedReader(
+            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        Writer out = new BufferedWriter(
+            new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+      socket.setTcpNoDelay(true);
+      long[] latencies = new long[1 << 16];
+      int n = 0;
+      while (System.nanoTime() < until) {
+        long start = System.nanoTime();
+        call(in, out, "search \"Seattle WA\" \"Boston MA\" 1 1 10");
+        if (n == latencies.length) {
+          latencies = Arrays.copyOf(latencies, n * 2);
+        }
+        latencies[n++] = System.nanoTime() - start;
+      }
+      call(in, out, "quit");
+      return Arrays.copyOf(latencies, n);
+    }
+  }
+
+  // sends a command and reads its response up to the empty line that ends it
+  private static String call(BufferedReader in, Writer out, String command) throws IOException {
+    out.write(command + "\n");
+    out.flush();
+    StringBuilder response = new StringBuilder();
+    String line;
+    while ((line = in.readLine()) != null && !line.isEmpty()) {
+      response.append(line).append('\n');
+    }
+    return response.toString();
+  }
+}
@@ -19,7 +19,7 @@ import static org.junit.Assert.assertTrue;
 @RunWith(Parameterized.class)
 public class FlightServiceTest {
   /** Maximum number of concurrent users we will be testing */
-  private static final int MAX_USERS = 5;
+  static final int MAX_USERS = 5;
   /** Max time in seconds to wait for a response for a user */
   private static final int RESPONSE_TIME = 60;
   /** Thread pool used to run different users */
@@ -32,10 +32,12 @@ public class FlightServiceTest {
   /** Denotes alternate result */
   static final String SEPARATOR = "|";
 
-  private static String serverURL = null;
-  private static String dbName = null;
-  private static String adminName = null;
-  private static String password = null;
+  static String serverURL = null;
+  static String dbName = null;
+  static String adminName = null;
+  static String password = null;
+  /** Shared backend when running with -Dstorage=memory, null for SQL Server */
+  private static InMemoryFlightStorage memoryStorage = null;
 
   public static void initCredential() {
     String credential = System.getProperty("credential");
@@ -53,6 +55,23 @@ public class FlightServiceTest {
     }
   }
 
+  /**
+   * Opens a session on the backend selected for this run
+   */
+  static Query newQuery() throws IOException, SQLException {
+    if (memoryStorage != null) {
+      return new Query(memoryStorage);
+    }
+    return serverURL == null ? new Query() : new Query(serverURL, dbName, adminName, password);
+  }
+
+  /**
+   * Opens the sessions a scenario's users run on
+   */
+  interface Sessions {
+    Query open() throws IOException, SQLException;
+  }
+
   /**
    * Models a single user. Callable from a thread.
    */
@@ -61,8 +80,9 @@ public class FlightServiceTest {
     private List<String> cmds; // commands that this user will execute
     private List<String> results; // the expected results from those commands
 
-    public User(List<String> cmds, List<String> results) throws IOException, SQLException {
-      this.q = new Query(serverURL, dbName, adminName, password);
+    public User(List<String> cmds, List<String> results, Sessions sessions)
+        throws IOException, SQLException {
+      this.q = sessions.open();
       this.cmds = cmds;
       this.results = results;
     }
@@ -94,6 +114,13 @@ public class FlightServiceTest {
    * @throws Exception
    */
   static List<User> parse(String filename) throws IOException, SQLException {
+    return parse(filename, FlightServiceTest::newQuery);
+  }
+
+  /**
+   * Parse the input test case, opening each user's session from {@code sessions}
+   */
+  static List<User> parse(String filename, Sessions sessions) throws IOException, SQLException {
     List<User> users = new ArrayList<>();
     List<String> cmds = new ArrayList<>();
     List<String> results = new ArrayList<>();
@@ -116,7 +143,7 @@ public class FlightServiceTest {
         } else {
           // Result recordings finished for a user so user is fully specified
           results.add(r);
-          users.add(new User(cmds, results));
+          users.add(new User(cmds, results, sessions));
           cmds = new ArrayList<>();
           results = new ArrayList<>();
           r = "";
@@ -178,8 +205,18 @@ public class FlightServiceTest {
     pool = Executors.newFixedThreadPool(MAX_USERS);
     initCredential();
     try {
+      String flights = System.getProperty("flights");
+      if ("memory".equals(System.getProperty("storage")) && flights != null) {
+        memoryStorage = InMemoryFlightStorage.fromCsv(Paths.get(flights));
+        return;
+      }
       Connection conn = serverURL == null ? Query.openConnectionFromDbConn()
           : Query.openConnectionFromCredential(serverURL, dbName, adminName, password);
+      if ("memory".equals(System.getProperty("storage"))) {
+        memoryStorage = InMemoryFlightStorage.fromConnection(conn);
+        conn.close();
+        return;
+      }
       TestUtils.dropTables(conn);
       TestUtils.runCreateTables(conn);
       conn.close();
@@ -222,8 +259,7 @@ public class FlightServiceTest {
 
   @Before
   public void clearDB() throws SQLException, IOException {
-    Query query =
-        serverURL == null ? new Query() : new Query(serverURL, dbName, adminName, password);
+    Query query = newQuery();
     query.clearTables();
     query.closeConnection();
   }
@@ -233,10 +269,21 @@ public class FlightServiceTest {
    */
   @Test
   public void runTest() throws Exception {
-    System.out.println("running test scenario: " + this.file);
+    String failure = runScenario(this.file, FlightServiceTest::newQuery, pool);
+    assertTrue(failure, failure == null);
+  }
+
+  /**
+   * Runs one scenario file with its users on the given pool
+   *
+   * @return null if the outputs match one of the possible outcomes, otherwise the failure message
+   */
+  static String runScenario(String file, Sessions sessions, ExecutorService pool)
+      throws Exception {
+    System.out.println("running test scenario: " + file);
 
     // Loads the scenario and initializes users
-    List<User> users = parse(this.file);
+    List<User> users = parse(file, sessions);
     List<Future<String>> futures = new ArrayList<>();
     for (User user : users) {
       futures.add(pool.submit(user));
@@ -272,17 +319,16 @@ public class FlightServiceTest {
 
       // Print the result and debugging info if applicable under the assertion
       System.out.println(passed ? "passed" : "failed");
+      if (passed) {
+        return null;
+      }
       String outcomesFormatted = "";
-      if (!passed) {
-        for (Map.Entry<Integer, List<String>> outcome : outcomes.entrySet()) {
-          outcomesFormatted += "===== Outcome " + outcome.getKey() + " =====\n";
-          outcomesFormatted += outcome.getValue().toString() + "\n";
-        }
+      for (Map.Entry<Integer, List<String>> outcome : outcomes.entrySet()) {
+        outcomesFormatted += "===== Outcome " + outcome.getKey() + " =====\n";
+        outcomesFormatted += outcome.getValue().toString() + "\n";
       }
-      assertTrue(
-          String.format("Failed: actual outputs for %s were: \n%s\n\nPossible outcomes were: \n%s",
-              this.file, outputs, outcomesFormatted),
-          passed);
+      return String.format("Failed: actual outputs for %s were: \n%s\n\nPossible outcomes were: \n%s",
+          file, outputs, outcomesFormatted);
     } finally {
       // Cleanup
       for (User u : users) {
@@ -0,0 +1,63 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Load test for one hot flight on the in-memory backend: every thread books the same flight as
+ * its own user, and booking throughput is reported per thread count. With escrowed seat buckets
+ * the throughput should grow with the number of cores.
+ *
+ * Run with: java flightapp.HotFlightBenchmark [bookings per thread]
+ */
+public class HotFlightBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int perThread = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+    int cores = Runtime.getRuntime().availableProcessors();
+    System.out.println("seat buckets: " + FlightStorage.SEAT_BUCKETS);
+    for (int threads = 1; threads <= cores; threads *= 2) {
+      double rate = run(threads, perThread);
+      System.out.println(String.format("%2d threads: %,.0f bookings/s", threads, rate));
+    }
+  }
+
+  private static double run(int threads, int perThread) throws Exception {
+    Flight hot = new Flight(1, 1, "AS", "1", "Seattle WA", "Boston MA", 300,
+        threads * perThread, 100);
+    InMemoryFlightStorage storage = new InMemoryFlightStorage(Collections.singletonList(hot));
+    Itinerary itinerary = new Itinerary(hot);
+    for (int t = 0; t < threads; t++) {
+      storage.createUser("user" + t, new byte[0], new byte[0], 0);
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      String user = "user" + t;
+      futures.add(pool.submit(() -> {
+        start.await();
+        int booked = 0;
+        for (int i = 0; i < perThread; i++) {
+          if (storage.bookItinerary(user, itinerary) != -1) {
+            booked++;
+          }
+        }
+        return booked;
+      }));
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    int booked = 0;
+    for (Future<Integer> f : futures) {
+      booked += f.get();
+    }
+    long elapsed = System.nanoTime() - begin;
+    pool.shutdown();
+    if (booked != threads * perThread) {
+      throw new IllegalStateException("booked " + booked + " of " + threads * perThread);
+    }
+    return booked / (elapsed / 1e9);
+  }
+}
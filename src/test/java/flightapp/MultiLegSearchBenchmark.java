@@ -0,0 +1,69 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * Latency of {@link RouteGraph#search} on one synthetic day shaped like a day of the July 2015
+ * data: about 37,000 flights between 300 cities, with traffic concentrated on a few hubs as in
+ * the real network (city popularity follows a Zipf distribution). Prints the latency percentiles
+ * over random city pairs for each leg limit.
+ *
+ * Run with: java flightapp.MultiLegSearchBenchmark [flights] [cities] [searches]
+ */
+public class MultiLegSearchBenchmark {
+  public static void main(String[] args) {
+    int flightCount = args.length > 0 ? Integer.parseInt(args[0]) : 37_000;
+    int cityCount = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+    int searches = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+    Random random = new Random(42);
+    double[] weights = new double[cityCount];
+    double total = 0;
+    for (int c = 0; c < cityCount; c++) {
+      weights[c] = 1.0 / (c + 1);
+      total += weights[c];
+    }
+    List<Flight> flights = new ArrayList<>();
+    for (int fid = 0; fid < flightCount; fid++) {
+      int origin = pick(random, weights, total);
+      int dest;
+      do {
+        dest = pick(random, weights, total);
+      } while (dest == origin);
+      flights.add(new Flight(fid, 1, "AS", Integer.toString(fid), "City " + origin,
+          "City " + dest, 40 + random.nextInt(300), 1 + random.nextInt(20), 100));
+    }
+    RouteGraph graph = new RouteGraph(flights);
+    for (int maxLegs = 2; maxLegs <= 4; maxLegs++) {
+      for (int round = 0; round < 2; round++) { // the first round warms up the JIT
+        long[] nanos = new long[searches];
+        int found = 0;
+        for (int i = 0; i < searches; i++) {
+          int origin = random.nextInt(cityCount);
+          int dest = random.nextInt(cityCount);
+          long begin = System.nanoTime();
+          found += graph.search("City " + origin, "City " + dest, maxLegs, 10, fid -> true,
+              Long.MAX_VALUE).size();
+          nanos[i] = System.nanoTime() - begin;
+        }
+        Arrays.sort(nanos);
+        if (round == 1) {
+          System.out.println(String.format(
+              "max %d legs: p50 %.2f ms, p99 %.2f ms, max %.2f ms, %.1f itineraries/search",
+              maxLegs, nanos[searches / 2] / 1e6, nanos[searches * 99 / 100] / 1e6,
+              nanos[searches - 1] / 1e6, found / (double) searches));
+        }
+      }
+    }
+  }
+
+  private static int pick(Random random, double[] weights, double total) {
+    double r = random.nextDouble() * total;
+    for (int c = 0; c < weights.length; c++) {
+      r -= weights[c];
+      if (r <= 0) {
+        return c;
+      }
+    }
+    return weights.length - 1;
+  }
+}
@@ -0,0 +1,110 @@
+package flightapp;
+
+import org.junit.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * The relay hands each outbox event to a subscriber once, and a subscriber resumes from its saved
+ * offset.
+ */
+public class OutboxRelayTest {
+  private final Flight flight =
+      new Flight(1, 1, "AS", "1", "Seattle WA", "Boston MA", 300, 10, 100);
+  private final InMemoryFlightStorage storage =
+      new InMemoryFlightStorage(Collections.singletonList(flight));
+
+  @Before
+  public void setUp() {
+    storage.createUser("user1", new byte[0], new byte[0], 1000);
+  }
+
+  @Test
+  public void eachEventIsDeliveredOnce() throws Exception {
+    int id = storage.bookItinerary("user1", new Itinerary(flight));
+    storage.payReservation("user1", id);
+    storage.cancelReservation("user1", id);
+
+    List<BookingEvent> delivered = new ArrayList<>();
+    OutboxRelay relay = new OutboxRelay(storage, 2, 10);
+    relay.subscribe("sink", delivered::addAll);
+    assertEquals(2, relay.poll());
+    assertEquals(1, relay.poll());
+    assertEquals(0, relay.poll());
+    assertEquals(Arrays.asList(BookingEvent.Kind.BOOKED, BookingEvent.Kind.PAID,
+        BookingEvent.Kind.CANCELED), kinds(delivered));
+    assertEquals(Arrays.asList(1L, 2L, 3L), seqs(delivered));
+    assertEquals(3, storage.getSubscriberOffset("sink"));
+  }
+
+  @Test
+  public void subscriberResumesFromSavedOffset() throws Exception {
+    int id = storage.bookItinerary("user1", new Itinerary(flight));
+    OutboxRelay relay = new OutboxRelay(storage, 10, 10);
+    relay.subscribe("sink", events -> { });
+    relay.poll();
+
+    storage.payReservation("user1", id);
+    List<BookingEvent> delivered = new ArrayList<>();
+    OutboxRelay restarted = new OutboxRelay(storage, 10, 10);
+    restarted.subscribe("sink", delivered::addAll);
+    restarted.poll();
+    assertEquals(Collections.singletonList(BookingEvent.Kind.PAID), kinds(delivered));
+    assertEquals(2, storage.getSubscriberOffset("sink"));
+  }
+
+  @Test
+  public void failedBatchIsRedelivered() throws Exception {
+    storage.bookItinerary("user1", new Itinerary(flight));
+    List<BookingEvent> delivered = new ArrayList<>();
+    boolean[] failed = {false};
+    OutboxRelay relay = new OutboxRelay(storage, 10, 10);
+    relay.subscribe("sink", events -> {
+      if (!failed[0]) {
+        failed[0] = true;
+        throw new Exception("sink unavailable");
+      }
+      delivered.addAll(events);
+    });
+    relay.poll();
+    assertEquals(0, storage.getSubscriberOffset("sink"));
+    relay.poll();
+    assertEquals(Collections.singletonList(1L), seqs(delivered));
+    assertEquals(1, storage.getSubscriberOffset("sink"));
+
+    relay.purge();
+    assertTrue(storage.readEvents(0, 10).isEmpty());
+  }
+
+  @Test
+  public void backgroundPollerDeliversNewEvents() throws Exception {
+    List<BookingEvent> delivered = Collections.synchronizedList(new ArrayList<>());
+    try (OutboxRelay relay = new OutboxRelay(storage, 10, 10)) {
+      relay.subscribe("sink", delivered::addAll);
+      relay.start();
+      storage.bookItinerary("user1", new Itinerary(flight));
+      long deadline = System.currentTimeMillis() + 10_000;
+      while (delivered.isEmpty() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+    }
+    assertEquals(Collections.singletonList(1L), seqs(delivered));
+  }
+
+  private static List<BookingEvent.Kind> kinds(List<BookingEvent> events) {
+    List<BookingEvent.Kind> kinds = new ArrayList<>();
+    for (BookingEvent event : events) {
+      kinds.add(event.kind);
+    }
+    return kinds;
+  }
+
+  private static List<Long> seqs(List<BookingEvent> events) {
+    List<Long> seqs = new ArrayList<>();
+    for (BookingEvent event : events) {
+      seqs.add(event.seq);
+    }
+    return seqs;
+  }
+}
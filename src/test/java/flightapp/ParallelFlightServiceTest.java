@@ -0,0 +1,183 @@
+package flightapp;
+
+import org.junit.*;
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the test case scenarios sharded across workers, each on its own isolated backend: a
+ * private database per worker on SQL Server, or a fork of the flight index with
+ * -Dstorage=memory. Outcomes are checked with the same rules as {@link FlightServiceTest}.
+ *
+ * Enabled with -Dworkers=N; N = 0 uses one worker per core.
+ */
+public class ParallelFlightServiceTest {
+
+  /**
+   * An isolated backend owned by one worker thread
+   */
+  interface Worker extends FlightServiceTest.Sessions {
+    void clear() throws Exception;
+
+    void close() throws Exception;
+  }
+
+  static class MemoryWorker implements Worker {
+    private final InMemoryFlightStorage storage;
+
+    MemoryWorker(InMemoryFlightStorage template) {
+      this.storage = template.fork();
+    }
+
+    @Override
+    public Query open() {
+      return new Query(storage);
+    }
+
+    @Override
+    public void clear() {
+      storage.clearTables();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  static class DatabaseWorker implements Worker {
+    private final String workerDb;
+
+    DatabaseWorker(int index) throws SQLException, IOException {
+      this.workerDb = FlightServiceTest.dbName + "_w" + index;
+      try (Connection admin = openMain()) {
+        TestUtils.createWorkerDatabase(admin, FlightServiceTest.dbName, workerDb);
+      }
+      try (Connection conn = Query.openConnectionFromCredential(FlightServiceTest.serverURL,
+          workerDb, FlightServiceTest.adminName, FlightServiceTest.password)) {
+        TestUtils.runCreateTables(conn);
+      }
+    }
+
+    @Override
+    public Query open() throws IOException, SQLException {
+      return new Query(FlightServiceTest.serverURL, workerDb, FlightServiceTest.adminName,
+          FlightServiceTest.password);
+    }
+
+    @Override
+    public void clear() throws Exception {
+      Query query = open();
+      query.clearTables();
+      query.closeConnection();
+    }
+
+    @Override
+    public void close() throws Exception {
+      try (Connection admin = openMain()) {
+        TestUtils.dropWorkerDatabase(admin, workerDb);
+      }
+    }
+  }
+
+  private static Connection openMain() throws SQLException {
+    return Query.openConnectionFromCredential(FlightServiceTest.serverURL,
+        FlightServiceTest.dbName, FlightServiceTest.adminName, FlightServiceTest.password);
+  }
+
+  /**
+   * Fills in the credentials from dbconn.properties unless -Dcredential was given
+   */
+  private static void initCredential() throws IOException {
+    FlightServiceTest.initCredential();
+    if (FlightServiceTest.serverURL == null) {
+      Properties configProps = new Properties();
+      try (FileInputStream in = new FileInputStream("dbconn.properties")) {
+        configProps.load(in);
+      }
+      FlightServiceTest.serverURL = configProps.getProperty("flight_service.server_url");
+      FlightServiceTest.dbName = configProps.getProperty("flight_service.database_name");
+      FlightServiceTest.adminName = configProps.getProperty("flight_service.username");
+      FlightServiceTest.password = configProps.getProperty("flight_service.password");
+    }
+  }
+
+  @Test
+  public void runAllScenarios() throws Exception {
+    String workersProperty = System.getProperty("workers");
+    Assume.assumeTrue("set -Dworkers to run the parallel runner", workersProperty != null);
+    int workers = Integer.parseInt(workersProperty);
+    if (workers <= 0) {
+      workers = Runtime.getRuntime().availableProcessors();
+    }
+    boolean memory = "memory".equals(System.getProperty("storage"));
+    String flights = System.getProperty("flights");
+    if (!memory || flights == null) {
+      initCredential();
+    }
+
+    InMemoryFlightStorage template = null;
+    if (memory) {
+      if (flights != null) {
+        template = InMemoryFlightStorage.fromCsv(Paths.get(flights));
+      } else {
+        try (Connection conn = openMain()) {
+          template = InMemoryFlightStorage.fromConnection(conn);
+        }
+      }
+    }
+
+    Queue<String> files = new ConcurrentLinkedQueue<>(FlightServiceTest.files());
+    int total = files.size();
+    List<String> failures = Collections.synchronizedList(new ArrayList<>());
+    ExecutorService workerPool = Executors.newFixedThreadPool(workers);
+    long start = System.nanoTime();
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < workers; i++) {
+        Worker worker = memory ? new MemoryWorker(template) : new DatabaseWorker(i);
+        futures.add(workerPool.submit(() -> {
+          runWorker(worker, files, failures);
+          return null;
+        }));
+      }
+      for (Future<?> f : futures) {
+        f.get();
+      }
+    } finally {
+      workerPool.shutdownNow();
+    }
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    System.out.println(String.format("ran %d scenarios on %d workers in %d ms", total, workers,
+        elapsed));
+
+    assertTrue(failures.size() + " of " + total + " scenarios failed:\n"
+        + String.join("\n", failures), failures.isEmpty());
+  }
+
+  /**
+   * Pulls scenarios off the shared queue until it is empty, clearing the worker's backend
+   * between scenarios
+   */
+  private static void runWorker(Worker worker, Queue<String> files, List<String> failures)
+      throws Exception {
+    ExecutorService users = Executors.newFixedThreadPool(FlightServiceTest.MAX_USERS);
+    try {
+      String file;
+      while ((file = files.poll()) != null) {
+        worker.clear();
+        String failure = FlightServiceTest.runScenario(file, worker, users);
+        if (failure != null) {
+          failures.add(failure);
+        }
+      }
+    } finally {
+      users.shutdownNow();
+      worker.close();
+    }
+  }
+}
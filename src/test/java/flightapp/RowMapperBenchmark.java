@@ -0,0 +1,120 @@
+package flightapp;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Allocation benchmark for mapping search results: the old label-based mapping that builds a new
+ * Flight per row against {@link FlightRowMapper} with a flight pool. Rows come from a stub
+ * ResultSet that, like a real driver, resolves labels with a case-insensitive lookup and returns
+ * a fresh String from every getString call. The stub's own boxing of arguments is counted in
+ * both numbers.
+ *
+ * Run with: java flightapp.RowMapperBenchmark [rows]
+ */
+public class RowMapperBenchmark {
+  private static final String[] LABELS = {"fid", "day_of_month", "carrier_id", "flight_num",
+      "origin_city", "dest_city", "actual_time", "capacity", "price", "canceled"};
+  // a search touches a few hundred distinct flights over and over
+  private static final int DISTINCT_FLIGHTS = 500;
+
+  public static void main(String[] args) throws Exception {
+    int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+    Object[][] table = new Object[DISTINCT_FLIGHTS][];
+    for (int i = 0; i < table.length; i++) {
+      table[i] = new Object[] {i, 1 + i % 28, "AS", Integer.toString(i), "Seattle WA",
+          "Boston MA", 100 + i % 300, 10, 100 + i % 500, 0};
+    }
+    for (int round = 0; round < 3; round++) { // first rounds warm up the JIT
+      report("by label, new Flight per row", measure(table, rows, false));
+      report("ordinal mapper with pool     ", measure(table, rows, true));
+    }
+  }
+
+  private static void report(String name, long[] result) {
+    System.out.println(String.format("%s: %,6.1f bytes/row, %,5.1f ns/row", name,
+        result[0] / (double) result[2], result[1] / (double) result[2]));
+  }
+
+  /**
+   * @return allocated bytes, elapsed nanos and the number of rows mapped
+   */
+  private static long[] measure(Object[][] table, int rows, boolean mapper) throws SQLException {
+    ResultSet results = stubResultSet(table);
+    FlightRowMapper rowMapper =
+        FlightRowMapper.forColumns(results.getMetaData(), new FlightRowMapper.Pool(4096));
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long id = Thread.currentThread().getId();
+    long checksum = 0;
+    long bytesBefore = threads.getThreadAllocatedBytes(id);
+    long begin = System.nanoTime();
+    for (int i = 0; i < rows; i++) {
+      results.next();
+      Flight flight = mapper ? rowMapper.map(results) : mapByLabel(results);
+      checksum += flight.fid + flight.time;
+    }
+    long elapsed = System.nanoTime() - begin;
+    long bytes = threads.getThreadAllocatedBytes(id) - bytesBefore;
+    if (checksum == 42) {
+      System.out.println(); // keeps the loop from being optimized away
+    }
+    return new long[] {bytes, elapsed, rows};
+  }
+
+  // the mapping the backends used before FlightRowMapper
+  private static Flight mapByLabel(ResultSet resultSet) throws SQLException {
+    Flight flight = new Flight(resultSet.getInt("fid"), resultSet.getInt("day_of_month"),
+        resultSet.getString("carrier_id"), resultSet.getString("flight_num"),
+        resultSet.getString("origin_city"), resultSet.getString("dest_city"),
+        resultSet.getInt("actual_time"), resultSet.getInt("capacity"), resultSet.getInt("price"));
+    flight.canceled = resultSet.getInt("canceled") != 0;
+    return flight;
+  }
+
+  /**
+   * Endless ResultSet cycling through the rows of the table
+   */
+  private static ResultSet stubResultSet(Object[][] table) {
+    ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(
+        RowMapperBenchmark.class.getClassLoader(), new Class<?>[] {ResultSetMetaData.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getColumnCount":
+              return LABELS.length;
+            case "getColumnLabel":
+            case "getColumnName":
+              return LABELS[(Integer) args[0] - 1];
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+    Map<String, Integer> ordinals = new HashMap<>();
+    for (int i = 0; i < LABELS.length; i++) {
+      ordinals.put(LABELS[i], i + 1);
+    }
+    int[] row = {-1};
+    return (ResultSet) Proxy.newProxyInstance(RowMapperBenchmark.class.getClassLoader(),
+        new Class<?>[] {ResultSet.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "next":
+              row[0] = (row[0] + 1) % table.length;
+              return true;
+            case "getMetaData":
+              return metaData;
+            case "getInt":
+            case "getString": {
+              int column = args[0] instanceof String
+                  ? ordinals.get(((String) args[0]).toLowerCase(Locale.ROOT))
+                  : (Integer) args[0];
+              Object value = table[row[0]][column - 1];
+              return method.getName().equals("getInt") ? value : new String(value.toString());
+            }
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+}
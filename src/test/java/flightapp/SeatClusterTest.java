@@ -0,0 +1,161 @@
+package flightapp;
+
+import org.junit.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a seat cluster of {@link SeatNode} JVMs on loopback: nodes start and join through the
+ * SeatNode command line, bookings go through {@link ClusterFlightStorage}, and a node leaves while
+ * the seats it held stay sold.
+ */
+public class SeatClusterTest {
+  // short enough for a test to outlive a hold
+  private static final long HOLD_TIMEOUT_MS = 1000;
+
+  private final List<Process> nodes = new ArrayList<>();
+  private SeatCluster cluster;
+
+  @After
+  public void stopNodes() throws IOException {
+    if (cluster != null) {
+      cluster.close();
+    }
+    for (Process node : nodes) {
+      node.destroy();
+    }
+  }
+
+  @Test
+  public void nodesJoinAndLeaveWithoutLosingSeats() throws Exception {
+    String first = startNode(null);
+    String second = startNode(first);
+    String third = startNode(first);
+    cluster = new SeatCluster(Collections.singletonList(first));
+    assertEquals(new TreeSet<>(Arrays.asList(first, second, third)),
+        new TreeSet<>(cluster.nodes()));
+
+    List<Flight> flights = new ArrayList<>();
+    for (int fid = 1; fid <= 30; fid++) {
+      flights.add(new Flight(fid, 1, "AS", String.valueOf(fid), "Seattle WA", "Boston MA", 300,
+          2, 100));
+    }
+    ClusterFlightStorage storage =
+        new ClusterFlightStorage(new InMemoryFlightStorage(flights), cluster);
+    int user = 0;
+    for (Flight flight : flights) {
+      assertTrue(book(storage, "user" + user++, new Itinerary(flight)) > 0);
+    }
+
+    run("leave", second);
+    try (SeatCluster members = new SeatCluster(Collections.singletonList(first))) {
+      assertEquals(new TreeSet<>(Arrays.asList(first, third)), new TreeSet<>(members.nodes()));
+    }
+
+    // one seat was left on every flight before the leave, and still is after it
+    for (Flight flight : flights) {
+      assertTrue(book(storage, "user" + user++, new Itinerary(flight)) > 0);
+      assertEquals(-1, book(storage, "user" + user++, new Itinerary(flight)));
+    }
+  }
+
+  @Test
+  public void lateCommitIsRefusedAndTheReservationCanceled() throws Exception {
+    String node = startNode(null);
+    cluster = new SeatCluster(Collections.singletonList(node));
+    Flight first = new Flight(1, 1, "AS", "1", "Seattle WA", "Chicago IL", 200, 1, 100);
+    Flight second = new Flight(2, 1, "AS", "2", "Chicago IL", "Boston MA", 200, 1, 100);
+    boolean[] slow = {true};
+    InMemoryFlightStorage memory = new InMemoryFlightStorage(Arrays.asList(first, second)) {
+      @Override
+      public int recordReservation(String username, Itinerary itinerary) {
+        if (slow[0]) {
+          try {
+            Thread.sleep(3 * HOLD_TIMEOUT_MS); // the reaper runs once a second
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return super.recordReservation(username, itinerary);
+      }
+    };
+    ClusterFlightStorage storage = new ClusterFlightStorage(memory, cluster);
+    memory.createUser("late", new byte[0], new byte[0], 0);
+    try {
+      storage.bookItinerary("late", new Itinerary(first, second));
+      fail("a commit after the hold expired must fail the booking");
+    } catch (SQLException expected) {
+      // the hold had expired
+    }
+    assertEquals(1, memory.getReservations("late").size());
+    assertTrue(memory.getReservations("late").get(0).cancelled);
+
+    // both seats are back: the flights have one seat each
+    slow[0] = false;
+    assertTrue(book(storage, "on time", new Itinerary(first, second)) > 0);
+    assertEquals(-1, book(storage, "too late", new Itinerary(first)));
+  }
+
+  @Test
+  public void malformedRequestsGetAnErrorAndKeepTheConnection() throws Exception {
+    String node = startNode(null);
+    int colon = node.lastIndexOf(':');
+    try (Socket socket = new Socket(node.substring(0, colon),
+        Integer.parseInt(node.substring(colon + 1)));
+        BufferedReader in = new BufferedReader(
+            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+      out.write("TAKE one 2\nPREPARE tx\nCOMMIT nosuchtx\nRING\n");
+      out.flush();
+      assertTrue(in.readLine().startsWith("ERROR"));
+      assertTrue(in.readLine().startsWith("ERROR"));
+      assertTrue(in.readLine().startsWith("ERROR"));
+      assertEquals(node, in.readLine());
+    }
+  }
+
+  private static int book(FlightStorage storage, String user, Itinerary itinerary)
+      throws SQLException {
+    storage.createUser(user, new byte[0], new byte[0], 0);
+    return storage.bookItinerary(user, itinerary);
+  }
+
+  /**
+   * Starts a node in a JVM of its own, joining the seed's cluster or founding one
+   *
+   * @return its address
+   */
+  private String startNode(String seed) throws IOException {
+    List<String> args = new ArrayList<>(Collections.singletonList("0"));
+    if (seed != null) {
+      args.add(seed);
+    }
+    Process node = start(args);
+    nodes.add(node);
+    String line = new BufferedReader(new InputStreamReader(node.getInputStream(),
+        StandardCharsets.UTF_8)).readLine();
+    assertNotNull(line);
+    // seat node listening on <address>, members: [...]
+    return line.substring("seat node listening on ".length(), line.indexOf(','));
+  }
+
+  private static void run(String... args) throws IOException, InterruptedException {
+    Process process = start(Arrays.asList(args));
+    assertEquals(0, process.waitFor());
+  }
+
+  private static Process start(List<String> args) throws IOException {
+    List<String> command = new ArrayList<>(Arrays.asList(
+        Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+        "-cp", System.getProperty("java.class.path"),
+        "-Dflightapp.seatHoldTimeoutMillis=" + HOLD_TIMEOUT_MS, "flightapp.SeatNode"));
+    command.addAll(args);
+    return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+  }
+}
@@ -0,0 +1,88 @@
+package flightapp;
+
+import java.lang.reflect.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Cost of creating a session ({@code new Query(new JdbcFlightStorage(conn))}) on a connection
+ * that earlier sessions have used, against preparing every {@link QueryStorage} statement up front
+ * as sessions used to. Runs on the database in dbconn.properties if there is one, otherwise on a
+ * stub connection whose statements do nothing, which only shows the client-side cost.
+ *
+ * Run with: java flightapp.SessionBenchmark [sessions]
+ */
+public class SessionBenchmark {
+  public static void main(String[] args) throws Exception {
+    int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    boolean database = Files.exists(Paths.get("dbconn.properties"));
+    try (Connection conn = database ? Query.openConnectionFromDbConn() : stubConnection()) {
+      System.out.println(database ? "database connection" : "stub connection");
+      List<String> sqls = new ArrayList<>();
+      for (Field field : QueryStorage.class.getFields()) {
+        if (Modifier.isStatic(field.getModifiers()) && field.getType() == String.class) {
+          sqls.add((String) field.get(null));
+        }
+      }
+      for (int round = 0; round < 2; round++) { // the first round warms up the JIT
+        long begin = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+          List<PreparedStatement> prepared = new ArrayList<>(sqls.size());
+          for (String sql : sqls) {
+            prepared.add(conn.prepareStatement(sql));
+          }
+          new Query(new JdbcFlightStorage(conn));
+          for (PreparedStatement statement : prepared) {
+            statement.close();
+          }
+        }
+        long eager = System.nanoTime() - begin;
+        begin = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+          new Query(new JdbcFlightStorage(conn));
+        }
+        long lazy = System.nanoTime() - begin;
+        if (round == 1) {
+          System.out.println(String.format("preparing %d statements: %.2f us/session", sqls.size(),
+              eager / 1e3 / sessions));
+          System.out.println(String.format("lazy, cached per connection: %.2f us/session",
+              lazy / 1e3 / sessions));
+        }
+      }
+      JdbcFlightStorage storage = new JdbcFlightStorage(conn);
+      storage.getSalt("nobody");
+      System.out.println("statements prepared after one lookup: "
+          + StatementCache.forConnection(conn).size());
+    }
+  }
+
+  private static Connection stubConnection() {
+    ResultSet empty = stub(ResultSet.class, (proxy, method, args) -> false);
+    PreparedStatement statement = stub(PreparedStatement.class,
+        (proxy, method, args) -> method.getName().equals("executeQuery") ? empty : null);
+    return stub(Connection.class, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "prepareStatement":
+          return statement;
+        case "isClosed":
+          return false;
+        default:
+          return null;
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T stub(Class<T> type, InvocationHandler handler) {
+    return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+        (proxy, method, args) -> {
+          Object result = handler.invoke(proxy, method, args);
+          if (result == null && method.getReturnType().isPrimitive()
+              && method.getReturnType() != void.class) {
+            return method.getReturnType() == boolean.class ? false : 0;
+          }
+          return result;
+        });
+  }
+}
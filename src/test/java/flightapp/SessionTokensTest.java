@@ -0,0 +1,74 @@
+package flightapp;
+
+import org.junit.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Session tokens resume the user they were issued to until they expire, are revoked or are
+ * tampered with.
+ */
+public class SessionTokensTest {
+
+  @Test
+  public void tokenRoundTrips() {
+    SessionTokens tokens = new SessionTokens(60_000, 10);
+    assertEquals("User1", tokens.verify(tokens.issue("User1")));
+  }
+
+  @Test
+  public void expiredTokenIsRejected() throws InterruptedException {
+    SessionTokens tokens = new SessionTokens(1, 10);
+    String token = tokens.issue("user1");
+    Thread.sleep(10);
+    assertNull(tokens.verify(token));
+  }
+
+  @Test
+  public void tamperedTokenIsRejected() {
+    SessionTokens tokens = new SessionTokens(60_000, 10);
+    String token = tokens.issue("user1");
+    String other = tokens.issue("user2");
+    String forged = other.substring(0, other.indexOf('.')) + token.substring(token.indexOf('.'));
+    assertNull(tokens.verify(forged));
+    assertNull(tokens.verify("not a token"));
+    assertNull(new SessionTokens(60_000, 10).verify(token));
+  }
+
+  @Test
+  public void revokedTokensAreRejected() {
+    SessionTokens tokens = new SessionTokens(60_000, 2);
+    String first = tokens.issue("user1");
+    String second = tokens.issue("user1");
+    tokens.revoke(first);
+    assertNull(tokens.verify(first));
+    assertEquals("user1", tokens.verify(second));
+    tokens.revokeAll("USER1");
+    assertNull(tokens.verify(second));
+
+    // beyond the capacity the oldest token is dropped
+    String oldest = tokens.issue("user2");
+    tokens.issue("user2");
+    tokens.issue("user2");
+    assertNull(tokens.verify(oldest));
+  }
+
+  @Test
+  public void resumeLogsInWithoutPassword() {
+    FlightStorage storage = new InMemoryFlightStorage(Collections.emptyList());
+    Query first = new Query(storage);
+    first.transaction_createCustomer("user1", "password", 100);
+    String login = first.transaction_login("user1", "password", true);
+    assertTrue(login.startsWith("Logged in as user1\nSession token: "));
+    String token = login.substring(login.lastIndexOf(' ') + 1).trim();
+
+    Query resumed = new Query(storage);
+    assertEquals("Logged in as user1\n", resumed.transaction_resume(token));
+    assertEquals("user1", resumed.getUser());
+    assertEquals("User already logged in\n", resumed.transaction_resume(token));
+
+    Query.getSessionTokens().revoke(token);
+    assertEquals("Resume failed\n", new Query(storage).transaction_resume(token));
+  }
+}
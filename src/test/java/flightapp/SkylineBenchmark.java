@@ -0,0 +1,117 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * Latency of {@link InMemoryFlightStorage#searchSkyline} between the busiest hubs of a synthetic
+ * day shaped like {@link MultiLegSearchBenchmark}'s, where each route has thousands of one-hop
+ * candidates. Prices fall as flights get longer, with noise, so the skyline has more than a couple
+ * of points. The baseline fetches every candidate in time order and filters it; both must agree.
+ *
+ * Run with: java flightapp.SkylineBenchmark [flights] [cities] [hubs] [rounds]
+ */
+public class SkylineBenchmark {
+  private static final int ALL = 1_000_000;
+
+  public static void main(String[] args) {
+    int flightCount = args.length > 0 ? Integer.parseInt(args[0]) : 37_000;
+    int cityCount = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+    int hubs = args.length > 2 ? Integer.parseInt(args[2]) : 6;
+    int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+    Random random = new Random(42);
+    double[] weights = new double[cityCount];
+    double total = 0;
+    for (int c = 0; c < cityCount; c++) {
+      weights[c] = 1.0 / (c + 1);
+      total += weights[c];
+    }
+    List<Flight> flights = new ArrayList<>();
+    for (int fid = 0; fid < flightCount; fid++) {
+      int origin = pick(random, weights, total);
+      int dest;
+      do {
+        dest = pick(random, weights, total);
+      } while (dest == origin);
+      int time = 40 + random.nextInt(300);
+      int price = 100 + (340 - time) + random.nextInt(400);
+      flights.add(new Flight(fid, 1, "AS", Integer.toString(fid), "City " + origin,
+          "City " + dest, time, 1 + random.nextInt(20), price));
+    }
+    InMemoryFlightStorage storage = new InMemoryFlightStorage(flights);
+
+    List<long[]> pairs = new ArrayList<>();
+    for (int o = 0; o < hubs; o++) {
+      for (int d = 0; d < hubs; d++) {
+        if (o != d) {
+          pairs.add(new long[] {o, d});
+        }
+      }
+    }
+    long candidates = 0;
+    long points = 0;
+    for (long[] pair : pairs) {
+      String origin = "City " + pair[0];
+      String dest = "City " + pair[1];
+      List<Itinerary> all = storage.searchItineraries(origin, dest, false, 1, ALL);
+      List<Itinerary> expected = baseline(all);
+      if (!expected.equals(storage.searchSkyline(origin, dest, false, 1, ALL))) {
+        throw new IllegalStateException("skyline mismatch for " + origin + " -> " + dest);
+      }
+      candidates += all.size();
+      points += expected.size();
+    }
+    System.out.println(String.format("%d hub pairs, %.0f candidates and %.1f skyline points each",
+        pairs.size(), candidates / (double) pairs.size(), points / (double) pairs.size()));
+
+    for (int round = 0; round < 2; round++) { // the first round warms up the JIT
+      long[] skyline = new long[pairs.size() * rounds];
+      long[] baseline = new long[pairs.size() * rounds];
+      int n = 0;
+      for (int r = 0; r < rounds; r++) {
+        for (long[] pair : pairs) {
+          String origin = "City " + pair[0];
+          String dest = "City " + pair[1];
+          long begin = System.nanoTime();
+          storage.searchSkyline(origin, dest, false, 1, ALL);
+          skyline[n] = System.nanoTime() - begin;
+          begin = System.nanoTime();
+          baseline(storage.searchItineraries(origin, dest, false, 1, ALL));
+          baseline[n++] = System.nanoTime() - begin;
+        }
+      }
+      if (round == 1) {
+        print("streamed skyline", skyline);
+        print("fetch all, filter", baseline);
+      }
+    }
+  }
+
+  private static List<Itinerary> baseline(List<Itinerary> sortedByTime) {
+    List<Itinerary> sorted = new ArrayList<>(sortedByTime);
+    sorted.sort(Comparator.comparingInt((Itinerary i) -> i.totalTime)
+        .thenComparingInt(i -> i.price).thenComparing(i -> i));
+    Skyline skyline = new Skyline(Integer.MAX_VALUE);
+    for (Itinerary itinerary : sorted) {
+      skyline.offer(itinerary);
+    }
+    return skyline.points();
+  }
+
+  private static void print(String name, long[] nanos) {
+    Arrays.sort(nanos);
+    System.out.println(String.format("%-18s p50 %.3f ms, p99 %.3f ms, max %.3f ms", name,
+        nanos[nanos.length / 2] / 1e6, nanos[nanos.length * 99 / 100] / 1e6,
+        nanos[nanos.length - 1] / 1e6));
+  }
+
+  private static int pick(Random random, double[] weights, double total) {
+    double r = random.nextDouble() * total;
+    for (int c = 0; c < weights.length; c++) {
+      r -= weights[c];
+      if (r <= 0) {
+        return c;
+      }
+    }
+    return weights.length - 1;
+  }
+}
@@ -0,0 +1,102 @@
+package flightapp;
+
+import org.junit.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * The skyline search returns the same (time, price) points as a brute-force dominance filter over
+ * every itinerary of the route.
+ */
+public class SkylineTest {
+  private static final int ALL = 1_000_000;
+
+  private InMemoryFlightStorage storage;
+
+  @Before
+  public void setUp() {
+    Random random = new Random(7);
+    List<Flight> flights = new ArrayList<>();
+    for (int fid = 1; fid <= 400; fid++) {
+      int origin = random.nextInt(6);
+      int dest = (origin + 1 + random.nextInt(5)) % 6;
+      int time = 40 + random.nextInt(60);
+      int price = 100 + random.nextInt(200);
+      Flight flight = new Flight(fid, 1, "AS", Integer.toString(fid), "City " + origin,
+          "City " + dest, time, 10, price);
+      flight.canceled = fid % 17 == 0;
+      flights.add(flight);
+    }
+    storage = new InMemoryFlightStorage(flights);
+  }
+
+  @Test
+  public void skylineMatchesBruteForce() {
+    for (int origin = 0; origin < 6; origin++) {
+      for (int dest = 0; dest < 6; dest++) {
+        if (origin == dest) {
+          continue;
+        }
+        for (boolean directOnly : new boolean[] {true, false}) {
+          String from = "City " + origin;
+          String to = "City " + dest;
+          List<String> expected =
+              points(bruteForce(storage.searchItineraries(from, to, directOnly, 1, ALL)));
+          List<String> skyline = points(storage.searchSkyline(from, to, directOnly, 1, ALL));
+          assertFalse(expected.isEmpty());
+          assertEquals(from + " -> " + to, expected, skyline);
+          // a limit keeps the fastest points
+          List<String> limited = points(storage.searchSkyline(from, to, directOnly, 1, 2));
+          assertEquals(expected.subList(0, Math.min(2, expected.size())), limited);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void cheaperItineraryWithSameTimeReplacesPoint() {
+    Skyline skyline = new Skyline(10);
+    Flight a = new Flight(1, 1, "AS", "1", "A", "B", 60, 10, 300);
+    Flight b = new Flight(2, 1, "AS", "2", "A", "B", 60, 10, 200);
+    Flight c = new Flight(3, 1, "AS", "3", "A", "B", 90, 10, 250);
+    Flight d = new Flight(4, 1, "AS", "4", "A", "B", 120, 10, 100);
+    assertTrue(skyline.offer(new Itinerary(a)));
+    assertTrue(skyline.offer(new Itinerary(b)));
+    assertFalse(skyline.offer(new Itinerary(c)));
+    assertTrue(skyline.offer(new Itinerary(d)));
+    assertEquals(Arrays.asList("60/200", "120/100"), points(skyline.points()));
+  }
+
+  // the itineraries no other one beats on time or price without losing on the other, fastest first
+  private static List<Itinerary> bruteForce(List<Itinerary> all) {
+    List<Itinerary> kept = new ArrayList<>();
+    for (Itinerary candidate : all) {
+      boolean dominated = false;
+      for (Itinerary other : all) {
+        if (other.totalTime <= candidate.totalTime && other.price <= candidate.price
+            && (other.totalTime < candidate.totalTime || other.price < candidate.price)) {
+          dominated = true;
+          break;
+        }
+      }
+      if (!dominated) {
+        kept.add(candidate);
+      }
+    }
+    kept.sort(Comparator.comparingInt((Itinerary itinerary) -> itinerary.totalTime));
+    return kept;
+  }
+
+  // distinct (time, price) points in the order given
+  private static List<String> points(List<Itinerary> itineraries) {
+    List<String> points = new ArrayList<>();
+    for (Itinerary itinerary : itineraries) {
+      String point = itinerary.totalTime + "/" + itinerary.price;
+      if (!points.contains(point)) {
+        points.add(point);
+      }
+    }
+    return points;
+  }
+}
@@ -45,4 +45,32 @@ public class TestUtils {
     FileReader reader = new FileReader("createTables.sql");
     scriptRunner.runScript(reader);
   }
+
+  /**
+   * (Re)creates an isolated worker database next to the main one. Flights is copied, since a
+   * worker may cancel flights; the read-only tables are exposed through synonyms so the
+   * unqualified names in QueryStorage resolve unchanged.
+   */
+  public static void createWorkerDatabase(Connection admin, String mainDb, String workerDb)
+      throws SQLException {
+    dropWorkerDatabase(admin, workerDb);
+    try (Statement st = admin.createStatement()) {
+      st.execute("CREATE DATABASE [" + workerDb + "]");
+      st.execute("SELECT * INTO [" + workerDb + "].dbo.Flights FROM [" + mainDb + "].dbo.Flights");
+      st.execute("USE [" + workerDb + "]; CREATE UNIQUE CLUSTERED INDEX FlightsByFid ON Flights (fid); "
+          + "USE [" + mainDb + "];");
+      for (String table : new String[] {"Carriers", "Months", "Weekdays"}) {
+        st.execute("USE [" + workerDb + "]; CREATE SYNONYM " + table + " FOR [" + mainDb
+            + "].dbo." + table + "; USE [" + mainDb + "];");
+      }
+    }
+  }
+
+  public static void dropWorkerDatabase(Connection admin, String workerDb) throws SQLException {
+    try (Statement st = admin.createStatement()) {
+      st.execute("IF DB_ID('" + workerDb + "') IS NOT NULL BEGIN "
+          + "ALTER DATABASE [" + workerDb + "] SET SINGLE_USER WITH ROLLBACK IMMEDIATE; "
+          + "DROP DATABASE [" + workerDb + "]; END");
+    }
+  }
 }
@@ -0,0 +1,83 @@
+package flightapp;
+
+import org.junit.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a batch session in a JVM with the slow request log on and a zero threshold, so every
+ * command is logged with its span tree. Tracing is fixed when {@link Trace} is loaded, hence the
+ * separate JVM.
+ */
+public class TraceTest {
+  private Path dir;
+
+  @Before
+  public void createDir() throws IOException {
+    dir = Files.createTempDirectory("trace");
+  }
+
+  @After
+  public void deleteDir() throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(dir);
+  }
+
+  @Test
+  public void everyCommandIsLoggedWithItsSpans() throws Exception {
+    Path flights = dir.resolve("flights.csv");
+    Files.write(flights, Collections.singletonList(
+        "1,7,1,1,AS,1,Seattle WA,WA,Boston MA,MA,0,0,0,0,300,0,10,100"), StandardCharsets.UTF_8);
+    Path commands = dir.resolve("commands.txt");
+    Files.write(commands, Arrays.asList("create user1 user1 1000", "login user1 user1",
+        "search \"Seattle WA\" \"Boston MA\" 1 1 1", "book 0", "quit"), StandardCharsets.UTF_8);
+    Path log = dir.resolve("slow.log");
+
+    Process service = new ProcessBuilder(
+        Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+        "-cp", System.getProperty("java.class.path"),
+        "-Dflightapp.slowLog=" + log, "-Dflightapp.slowMillis=0",
+        "flightapp.FlightService", "--demo", flights.toString(), "--batch", commands.toString())
+        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+        .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    assertTrue(service.waitFor(60, TimeUnit.SECONDS));
+    assertEquals(0, service.exitValue());
+
+    String entries = new String(Files.readAllBytes(log), StandardCharsets.UTF_8);
+    for (String command : new String[] {"create", "login", "search", "book"}) {
+      assertTrue(entries, entries.contains(" " + command + ": "));
+    }
+    // storage calls and the password hash are spans of their command, in call order
+    assertTrue(entries, entries.matches(
+        "(?s).* login: [^\n]*\n *[0-9.]+ ms  getSalt\n *[0-9.]+ ms  hashPassword\n"
+            + " *[0-9.]+ ms  checkPassword\n.*"));
+    assertTrue(entries, entries.contains("bookItinerary"));
+    assertFalse(entries, entries.contains("[not closed]"));
+  }
+
+  @Test
+  public void slowLogRotates() throws IOException {
+    Path log = dir.resolve("slow.log");
+    SlowLog slowLog = new SlowLog(log, 10, 2);
+    for (int i = 1; i <= 4; i++) {
+      slowLog.write("entry " + i + " is longer than the limit");
+    }
+    assertEquals("entry 4", firstLine(log));
+    assertEquals("entry 3", firstLine(dir.resolve("slow.log.1")));
+    assertEquals("entry 2", firstLine(dir.resolve("slow.log.2")));
+    assertFalse(Files.exists(dir.resolve("slow.log.3")));
+  }
+
+  private static String firstLine(Path path) throws IOException {
+    return Files.readAllLines(path, StandardCharsets.UTF_8).get(0).substring(0, 7);
+  }
+}
@@ -0,0 +1,80 @@
+package flightapp;
+
+import org.junit.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bookings on a sold-out flight are waitlisted, and each cancellation grants the seat to the
+ * request that has waited longest.
+ */
+public class WaitlistTest {
+  private static final String[] USERS = {"holder", "first", "second"};
+
+  private InMemoryFlightStorage storage;
+  private Waitlist waitlist;
+  private final Map<String, Query> sessions = new HashMap<>();
+
+  @Before
+  public void setUp() {
+    storage = new InMemoryFlightStorage(Collections.singletonList(
+        new Flight(1, 1, "AS", "1", "Seattle WA", "Boston MA", 300, 1, 100)));
+    waitlist = new Waitlist(storage);
+    for (String user : USERS) {
+      Query session = new Query(storage, waitlist);
+      session.transaction_createCustomer(user, user, 1000);
+      session.transaction_login(user, user);
+      session.transaction_search("Seattle WA", "Boston MA", true, 1, 1);
+      sessions.put(user, session);
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    waitlist.close();
+  }
+
+  @Test
+  public void soldOutBookingsAreGrantedInOrder() throws Exception {
+    assertEquals("Booked flight(s), reservation ID: 1\n",
+        sessions.get("holder").transaction_book(0, true));
+    assertEquals("Flight(s) full, waitlisted as request 1\n",
+        sessions.get("first").transaction_book(0, true));
+    assertEquals("Flight(s) full, waitlisted as request 2\n",
+        sessions.get("second").transaction_book(0, true));
+    List<Waitlist.Request> first = waitlist.getRequests("first");
+    List<Waitlist.Request> second = waitlist.getRequests("second");
+    assertEquals(Waitlist.Status.WAITING, first.get(0).status());
+    assertEquals("Waitlist request 2: waiting\n", sessions.get("second").transaction_waitlist());
+
+    assertEquals("Canceled reservation 1\n", sessions.get("holder").transaction_cancel(1));
+    assertEquals(2, (int) first.get(0).outcome.get(10, TimeUnit.SECONDS));
+    assertEquals(Waitlist.Status.BOOKED, first.get(0).status());
+    assertEquals(Waitlist.Status.WAITING, second.get(0).status());
+    assertEquals("Waitlist request 1: booked, reservation ID: 2\n",
+        sessions.get("first").transaction_waitlist());
+    // a finished request is listed once
+    assertEquals("", sessions.get("first").transaction_waitlist());
+
+    assertEquals("Canceled reservation 2\n", sessions.get("first").transaction_cancel(2));
+    assertEquals(3, (int) second.get(0).outcome.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void waitingRequestsFailWhenTheWaitlistCloses() throws Exception {
+    sessions.get("holder").transaction_book(0, true);
+    sessions.get("first").transaction_book(0, true);
+    Waitlist.Request request = waitlist.getRequests("first").get(0);
+    waitlist.close();
+    assertEquals(-1, (int) request.outcome.get(10, TimeUnit.SECONDS));
+    assertEquals(Waitlist.Status.FAILED, request.status());
+  }
+
+  @Test
+  public void bookingWithoutAWaitlistFails() {
+    Query session = new Query(storage);
+    assertEquals("Waitlist is not enabled\n", session.transaction_book(0, true));
+  }
+}